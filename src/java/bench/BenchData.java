@@ -0,0 +1,56 @@
+package cst420.thread.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Purpose: Class fills the server's library for the benchmarks, with the
+ *          same made up waypoints every run so results can be compared
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class BenchData {
+
+  private BenchData() { }
+
+
+  /**
+   * Leave exactly size waypoints in the library, named wp0 up
+   */
+  public static void fill(int size) {
+
+    WaypointStore library = Server.waypointList;
+
+    if (library.size() == size && library.contains("wp0") && library.contains("wp" + (size - 1))) {
+      return;
+    }
+
+    List<String> names = new ArrayList<String>();
+
+    for (String name : library.names()) {
+      names.add(name);
+    }
+
+    for (String name : names) {
+      library.remove(name);
+    }
+
+    for (int i = 0; i < size; i++) {
+
+      //Spread over the south west, where the class's waypoints were
+      double lat = 31.0 + (i % 1000) * 0.005;
+      double lon = -114.0 + (i / 1000) * 0.005;
+
+      library.put("wp" + i, lat, lon, 300 + i % 2000);
+    }
+  }
+
+
+  /**
+   * A request body as a client sends it
+   */
+  public static byte[] call(String method, String params, int id) {
+    return ("{\"jsonrpc\":\"2.0\",\"method\":\"" + method + "\",\"params\":" + params + ",\"id\":" + id + "}").getBytes();
+  }
+}
@@ -0,0 +1,90 @@
+package cst420.thread.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Purpose: Class times callFunction, the dispatch table lookup, param check,
+ *          invoke and result envelope of one already parsed call
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBench {
+
+  private final Server server = new Server();
+
+  private final RpcParams none     = new RpcParams();
+  private final RpcParams twoNames = new RpcParams();
+  private final RpcParams oneName  = new RpcParams();
+  private final RpcParams badType  = new RpcParams();
+
+  private final Object id = 1;
+
+
+  @Setup
+  public void setup() {
+
+    BenchData.fill(1000);
+
+    twoNames.add("wp1").add("wp500");
+    oneName.add("wp42");
+    badType.add(1).add("wp500");
+  }
+
+
+  @Benchmark
+  public String noParams() {
+    return server.callFunction("getLibrarySize", none, id);
+  }
+
+
+  @Benchmark
+  public String calcDistBear() {
+    return server.callFunction("calcDistBear", twoNames, id);
+  }
+
+
+  /**
+   * A @Cached method, answered from the response cache
+   */
+  @Benchmark
+  public String cachedPoint() {
+    return server.callFunction("getJSONPointFromLibrary", oneName, id);
+  }
+
+
+  @Benchmark
+  public String methodNotFound() {
+    return server.callFunction("noSuchMethod", none, id);
+  }
+
+
+  @Benchmark
+  public String invalidParams() {
+    return server.callFunction("calcDistBear", badType, id);
+  }
+
+
+  @Benchmark
+  public JSONObject cacheStats() {
+    return server.cacheStats();
+  }
+}
@@ -0,0 +1,78 @@
+package cst420.thread.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Purpose: Class times the great circle math behind calcDistBear. The points
+ *          are walked through so the jit can't fold a single pair away
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeodesyBench {
+
+  private final Server server = new Server();
+
+  private Waypoint[] points;
+  private int next;
+
+
+  @Setup
+  public void setup() {
+
+    points = new Waypoint[1024];
+
+    for (int i = 0; i < points.length; i++) {
+      points[i] = new Waypoint(31.0 + (i * 7919 % 1000) * 0.01, -114.0 + (i * 104729 % 1000) * 0.01, 300);
+    }
+  }
+
+
+  @Benchmark
+  public double distanceGCTo() {
+
+    int i = next++ & (points.length - 1);
+
+    return server.distanceGCTo(points[i], points[(i + 1) & (points.length - 1)], Server.STATUTE);
+  }
+
+
+  @Benchmark
+  public double bearingGCInitTo() {
+
+    int i = next++ & (points.length - 1);
+
+    return server.bearingGCInitTo(points[i], points[(i + 1) & (points.length - 1)]);
+  }
+
+
+  /**
+   * Both, as calcDistBear works them out
+   */
+  @Benchmark
+  public double distanceAndBearing() {
+
+    int i         = next++ & (points.length - 1);
+    Waypoint from = points[i];
+    Waypoint to   = points[(i + 1) & (points.length - 1)];
+
+    return server.distanceGCTo(from, to, Server.STATUTE) + server.bearingGCInitTo(from, to);
+  }
+}
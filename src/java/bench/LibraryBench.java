@@ -0,0 +1,78 @@
+package cst420.thread.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Purpose: Class times getNamesFromLibrary as the library grows, built and
+ *          serialized every time, answered from the response cache, and
+ *          streamed a piece at a time
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LibraryBench {
+
+  @Param({ "10", "100", "1000", "10000", "100000", "1000000" })
+  public int size;
+
+  private final Server server = new Server();
+  private final RpcParams none = new RpcParams();
+
+
+  @Setup(Level.Trial)
+  public void setup() {
+    BenchData.fill(size);
+  }
+
+
+  @Benchmark
+  public String names() {
+    return server.setupJSONResult(server.getNamesFromLibrary());
+  }
+
+
+  /**
+   * Through dispatch, where the @Cached result is only serialized once
+   */
+  @Benchmark
+  public String cachedNames() {
+    return server.callFunction("getNamesFromLibrary", none, 1);
+  }
+
+
+  /**
+   * Every piece the transport would send as a chunk
+   */
+  @Benchmark
+  public long streamedNames() {
+
+    ResultStream stream = server.streamNamesFromLibrary();
+    long bytes          = 0;
+    byte[] piece;
+
+    while ((piece = stream.next()) != null) {
+      bytes += piece.length;
+    }
+
+    return bytes;
+  }
+}
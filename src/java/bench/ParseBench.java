@@ -0,0 +1,115 @@
+package cst420.thread.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Purpose: Class times Server.parseJSON, reading a request body through to
+ *          its response, for the shapes of body clients send. The methods
+ *          called are cheap so the time is mostly the json, and the reader
+ *          on its own is timed alongside for comparison
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBench {
+
+  private final Server server   = new Server();
+  private final JsonReader text = new JsonReader();
+  private final RpcCall call    = new RpcCall();
+
+  private byte[] noParams;
+  private byte[] twoNames;
+  private byte[] numbers;
+  private byte[] batch;
+  private byte[] lenient;
+  private String twoNamesText;
+
+
+  @Setup
+  public void setup() {
+
+    BenchData.fill(100);
+
+    noParams     = BenchData.call("getLibrarySize", "null", 1);
+    twoNames     = BenchData.call("calcDistBear", "[\"wp1\",\"wp2\"]", 2);
+    numbers      = BenchData.call("nearestWaypoints", "[33.4192,-111.9315,5]", 3);
+    lenient      = "{method:'getLibrarySize',id:4}".getBytes();
+    twoNamesText = new String(twoNames);
+
+    StringBuilder calls = new StringBuilder("[");
+
+    for (int i = 0; i < 10; i++) {
+      calls.append((i > 0) ? "," : "").append(new String(BenchData.call("calcDistBear", "[\"wp" + i + "\",\"wp" + (i + 1) + "\"]", i)));
+    }
+
+    batch = calls.append(']').toString().getBytes();
+  }
+
+
+  @Benchmark
+  public String noParams() {
+    return server.parseJSON(noParams, noParams.length);
+  }
+
+
+  @Benchmark
+  public String stringParams() {
+    return server.parseJSON(twoNames, twoNames.length);
+  }
+
+
+  @Benchmark
+  public String numberParams() {
+    return server.parseJSON(numbers, numbers.length);
+  }
+
+
+  @Benchmark
+  public String batchOfTen() {
+    return server.parseJSON(batch, batch.length);
+  }
+
+
+  /**
+   * Not strict json, read again by org.json
+   */
+  @Benchmark
+  public String lenientBody() {
+    return server.parseJSON(lenient, lenient.length);
+  }
+
+
+  /**
+   * The older entry point, which encodes the text first
+   */
+  @Benchmark
+  public String fromString() {
+    return server.parseJSON(twoNamesText);
+  }
+
+
+  @Benchmark
+  public RpcCall readOnly() {
+
+    text.reset(twoNames, 0, twoNames.length);
+
+    return call.read(text);
+  }
+}
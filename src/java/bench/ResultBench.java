@@ -0,0 +1,134 @@
+package cst420.thread.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Purpose: Class times turning results into responses. Each kind of value
+ *          setupJSONResult takes is wrapped in its envelope, and the http
+ *          response for a body is built the way handleRequest builds it
+ *          (the old buildResponse), plain and gzipped
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultBench {
+
+  //Bytes of json in the response body
+  @Param({ "64", "4096", "262144" })
+  public int bodySize;
+
+  private final Server server         = new Server();
+  private final ResponseWriter writer = new ResponseWriter();
+
+  private JSONObject object;
+  private JSONArray array;
+  private JsonValue value;
+  private String body;
+
+
+  @Setup
+  public void setup() {
+
+    BenchData.fill(1000);
+
+    object = new JSONObject().put("wp1", new JSONObject().put("lat", 33.4).put("lon", -111.9).put("ele", 360));
+    array  = new JSONArray().put(1234.5678).put(271.25);
+    value  = server.calcDistBear(new RpcParams().add("wp1").add("wp2"));
+
+    StringBuilder names = new StringBuilder("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":[");
+
+    for (int i = 0; names.length() < bodySize - 2; i++) {
+      names.append((i > 0) ? "," : "").append("\"wp").append(i).append('"');
+    }
+
+    body = names.append("]}").toString();
+  }
+
+
+  @Benchmark
+  public String stringResult() {
+    return server.setupJSONResult("passed");
+  }
+
+
+  @Benchmark
+  public String numberResult() {
+    return server.setupJSONResult(1000);
+  }
+
+
+  @Benchmark
+  public String jsonObjectResult() {
+    return server.setupJSONResult(object);
+  }
+
+
+  @Benchmark
+  public String jsonArrayResult() {
+    return server.setupJSONResult(array);
+  }
+
+
+  /**
+   * What the handlers return now, written straight into the envelope
+   */
+  @Benchmark
+  public String jsonValueResult() {
+    return server.setupJSONResult(value);
+  }
+
+
+  /**
+   * Outside of handleRequest a stream is drained into one string
+   */
+  @Benchmark
+  public String streamResult() {
+    return server.setupJSONResult(server.streamNamesFromLibrary());
+  }
+
+
+  @Benchmark
+  public int response() {
+    return build(ContentCoding.IDENTITY);
+  }
+
+
+  @Benchmark
+  public int gzipResponse() {
+    return build(ContentCoding.GZIP);
+  }
+
+
+  /**
+   * Build a response and give its buffers back, as the transport would
+   */
+  private int build(int coding) {
+
+    HttpResponse response = writer.json(body, coding, true);
+    int count             = response.getCount();
+
+    response.release();
+
+    return count;
+  }
+}
@@ -0,0 +1,534 @@
+package cst420.thread.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class calls the waypoint server over its binary protocol, the
+ *          MessagePack port it opens with -Dwaypoint.binary.port, where the
+ *          http client would post json. Every thread using a client shares
+ *          its one connection: calls go out as they are made and a reader
+ *          thread hands each answer to whoever is waiting on its msgid, so
+ *          any number can be in flight at once
+ *
+ *          Results come back as the values org.json parses the same result
+ *          to, String, Integer, Long, Double, Boolean, JSONArray, JSONObject
+ *          or JSONObject.NULL. An error from the server is an RpcException.
+ *          A result the server streams comes in parts, which are put back
+ *          together into one JSONArray
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+public class BinaryRpcClient implements Closeable {
+
+  private final static int REQUEST      = 0;
+  private final static int RESPONSE     = 1;
+  private final static int NOTIFICATION = 2;
+  private final static int PART         = 3;
+
+  private final Socket socket;
+  private final DataOutputStream out;
+  private final DataInputStream in;
+
+  private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+  private final AtomicLong ids                               = new AtomicLong();
+
+  //Elements of streamed results so far, by msgid, only the reader uses it
+  private final Map<Long, JSONArray> parts = new HashMap<Long, JSONArray>();
+
+  //Why the connection is gone, once it is
+  private volatile IOException failure;
+
+
+  public BinaryRpcClient(String host, int port) throws IOException {
+
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+    in  = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        readLoop();
+      }
+    }, "waypoint-binary-client");
+
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+
+  /**
+   * Call a method and wait for its result
+   */
+  public Object call(String method, Object... params) throws Exception {
+
+    try {
+      return submit(method, params).get();
+    } catch (ExecutionException e) {
+
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+
+      throw e;
+    }
+  }
+
+
+  /**
+   * Send a call without waiting for it, the future holds its result
+   */
+  public Future<Object> submit(String method, Object... params) throws IOException {
+
+    long msgid                       = ids.getAndIncrement() & 0xffffffffL;
+    CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+    byte[] message = encode(REQUEST, msgid, method, params);
+
+    pending.put(msgid, result);
+
+    try {
+      send(message);
+    } catch (IOException e) {
+      pending.remove(msgid);
+      throw e;
+    }
+
+    //The reader may have failed everything pending just before we were added
+    if (failure != null && pending.remove(msgid) != null) {
+      throw failure;
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Call a method without wanting anything back, not even an error
+   */
+  public void sendNotification(String method, Object... params) throws IOException {
+    send(encode(NOTIFICATION, -1, method, params));
+  }
+
+
+  public void close() throws IOException {
+    socket.close();
+  }
+
+
+  private void send(byte[] message) throws IOException {
+
+    if (failure != null) {
+      throw failure;
+    }
+
+    synchronized (out) {
+      out.writeInt(message.length);
+      out.write(message);
+      out.flush();
+    }
+  }
+
+
+  /**
+   * Hand answers out until the connection goes, then fail whoever is left
+   */
+  private void readLoop() {
+
+    try {
+
+      byte[] frame = new byte[1024];
+
+      while (true) {
+
+        int size = in.readInt();
+
+        if (size < 0) {
+          throw new IOException("Bad frame length " + size);
+        }
+
+        if (size > frame.length) {
+          frame = new byte[Math.max(size, frame.length * 2)];
+        }
+
+        in.readFully(frame, 0, size);
+
+        DataInputStream message = new DataInputStream(new ByteArrayInputStream(frame, 0, size));
+
+        int fields = arrayHeader(message, message.readUnsignedByte());
+        int type   = ((Number) unpack(message)).intValue();
+        long msgid = ((Number) unpack(message)).longValue();
+
+        if (type == PART && fields == 3) {
+          addPart(msgid, (JSONArray) unpack(message));
+          continue;
+        }
+
+        if (type != RESPONSE || fields != 4) {
+          throw new IOException("Not a response");
+        }
+
+        Object error       = unpack(message);
+        Object value       = unpack(message);
+        JSONArray streamed = parts.remove(msgid);
+
+        CompletableFuture<Object> result = pending.remove(msgid);
+
+        if (result == null) {
+          continue;
+        }
+
+        if (error == JSONObject.NULL) {
+          result.complete((streamed != null) ? streamed : value);
+        } else {
+
+          JSONArray why = (JSONArray) error;
+
+          result.completeExceptionally(new RpcException(why.getInt(0), why.optString(1)));
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      failure = new IOException("Bad response: " + e, e);
+    }
+
+    for (Iterator<CompletableFuture<Object>> it = pending.values().iterator(); it.hasNext(); ) {
+      it.next().completeExceptionally(failure);
+      it.remove();
+    }
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      //Already gone
+    }
+  }
+
+
+  private static byte[] encode(int type, long msgid, String method, Object[] params) throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream message    = new DataOutputStream(bytes);
+
+    if (type == REQUEST) {
+      message.writeByte(0x94);
+      pack(message, type);
+      pack(message, msgid);
+    } else {
+      message.writeByte(0x93);
+      pack(message, type);
+    }
+
+    pack(message, method);
+    pack(message, params);
+
+    return bytes.toByteArray();
+  }
+
+
+  /**
+   * Write a value as MessagePack, anything org.json would hold or put in json
+   */
+  private static void pack(DataOutputStream out, Object value) throws IOException {
+
+    if (value == null || value == JSONObject.NULL) {
+      out.writeByte(0xc0);
+    } else if (value instanceof Boolean) {
+      out.writeByte(((Boolean) value) ? 0xc3 : 0xc2);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      packLong(out, ((Number) value).longValue());
+    } else if (value instanceof Number) {
+      out.writeByte(0xcb);
+      out.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof String) {
+      packString(out, (String) value);
+    } else if (value instanceof Object[]) {
+
+      Object[] arr = (Object[]) value;
+
+      packHeader(out, 0x90, 0xdc, 0xdd, arr.length);
+
+      for (Object item : arr) {
+        pack(out, item);
+      }
+    } else if (value instanceof JSONArray) {
+
+      JSONArray arr = (JSONArray) value;
+
+      packHeader(out, 0x90, 0xdc, 0xdd, arr.length());
+
+      for (int i = 0; i < arr.length(); i++) {
+        pack(out, arr.get(i));
+      }
+    } else if (value instanceof Collection) {
+
+      packHeader(out, 0x90, 0xdc, 0xdd, ((Collection<?>) value).size());
+
+      for (Object item : (Collection<?>) value) {
+        pack(out, item);
+      }
+    } else if (value instanceof JSONObject) {
+
+      JSONObject obj = (JSONObject) value;
+
+      packHeader(out, 0x80, 0xde, 0xdf, obj.length());
+
+      for (Object key : obj.keySet()) {
+        packString(out, (String) key);
+        pack(out, obj.get((String) key));
+      }
+    } else {
+      throw new IllegalArgumentException("Can't send a " + value.getClass().getName());
+    }
+  }
+
+
+  private static void packLong(DataOutputStream out, long value) throws IOException {
+
+    if (value >= -32 && value < 128) {
+      out.writeByte((int) value);
+    } else if (value == (int) value) {
+      out.writeByte(0xd2);
+      out.writeInt((int) value);
+    } else {
+      out.writeByte(0xd3);
+      out.writeLong(value);
+    }
+  }
+
+
+  private static void packString(DataOutputStream out, String value) throws IOException {
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    if (bytes.length < 32) {
+      out.writeByte(0xa0 | bytes.length);
+    } else {
+      out.writeByte(0xdb);
+      out.writeInt(bytes.length);
+    }
+
+    out.write(bytes);
+  }
+
+
+  /**
+   * Header of an array or map, fix size when it fits, otherwise 16 or 32 bit
+   */
+  private static void packHeader(DataOutputStream out, int fix, int wide16, int wide32, int size) throws IOException {
+
+    if (size < 16) {
+      out.writeByte(fix | size);
+    } else if (size < 65536) {
+      out.writeByte(wide16);
+      out.writeShort(size);
+    } else {
+      out.writeByte(wide32);
+      out.writeInt(size);
+    }
+  }
+
+
+  /**
+   * Read a value as the org.json value the same json would parse to
+   */
+  private static Object unpack(DataInputStream in) throws IOException {
+
+    int b = in.readUnsignedByte();
+
+    if (b <= 0x7f) {
+      return b;
+    }
+
+    if (b >= 0xe0) {
+      return (int) (byte) b;
+    }
+
+    if ((b >= 0xa0 && b <= 0xbf) || (b >= 0xd9 && b <= 0xdb)) {
+
+      int size = (b <= 0xbf) ? (b & 0x1f) : (b == 0xd9) ? in.readUnsignedByte() : (b == 0xda) ? in.readUnsignedShort() : in.readInt();
+      byte[] bytes = new byte[size];
+
+      in.readFully(bytes);
+
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    if ((b >= 0x90 && b <= 0x9f) || b == 0xdc || b == 0xdd) {
+
+      int size      = arrayHeader(in, b);
+      JSONArray arr = new JSONArray();
+
+      for (int i = 0; i < size; i++) {
+        arr.put(unpack(in));
+      }
+
+      return arr;
+    }
+
+    if ((b >= 0x80 && b <= 0x8f) || b == 0xde || b == 0xdf) {
+
+      int size       = (b <= 0x8f) ? (b & 0x0f) : (b == 0xde) ? in.readUnsignedShort() : in.readInt();
+      JSONObject obj = new JSONObject();
+
+      for (int i = 0; i < size; i++) {
+
+        Object key = unpack(in);
+
+        obj.put(String.valueOf(key), unpack(in));
+      }
+
+      return obj;
+    }
+
+    switch (b) {
+      case 0xc0:
+        return JSONObject.NULL;
+      case 0xc2:
+        return Boolean.FALSE;
+      case 0xc3:
+        return Boolean.TRUE;
+      case 0xca:
+        return (double) in.readFloat();
+      case 0xcb:
+        return in.readDouble();
+      case 0xcc:
+        return in.readUnsignedByte();
+      case 0xcd:
+        return in.readUnsignedShort();
+      case 0xce:
+        return narrow(in.readInt() & 0xffffffffL);
+      case 0xcf:
+        return narrow(in.readLong());
+      case 0xd0:
+        return (int) in.readByte();
+      case 0xd1:
+        return (int) in.readShort();
+      case 0xd2:
+        return in.readInt();
+      case 0xd3:
+        return narrow(in.readLong());
+      default:
+        throw new IOException("Unexpected MessagePack type 0x" + Integer.toHexString(b));
+    }
+  }
+
+
+  private static int arrayHeader(DataInputStream in, int b) throws IOException {
+
+    if (b >= 0x90 && b <= 0x9f) {
+      return b & 0x0f;
+    }
+
+    if (b == 0xdc) {
+      return in.readUnsignedShort();
+    }
+
+    if (b == 0xdd) {
+      return in.readInt();
+    }
+
+    throw new IOException("Expected an array, got 0x" + Integer.toHexString(b));
+  }
+
+
+  //Integer when it fits, like org.json
+  private static Object narrow(long value) {
+    return (value == (int) value) ? Integer.valueOf((int) value) : Long.valueOf(value);
+  }
+
+
+  /**
+   * Purpose: The server answered a call with an error, code is the
+   *          json-rpc error code
+   */
+  public static class RpcException extends Exception {
+
+    private final static long serialVersionUID = 1L;
+
+    private final int code;
+
+
+    public RpcException(int code, String message) {
+
+      super(message);
+      this.code = code;
+    }
+
+
+    public int getCode() {
+      return code;
+    }
+  }
+
+
+  /**
+   * Elements of the next part of a streamed result, on the end of those
+   * that came before
+   */
+  private void addPart(long msgid, JSONArray part) {
+
+    JSONArray sofar = parts.get(msgid);
+
+    if (sofar == null) {
+      parts.put(msgid, part);
+      return;
+    }
+
+    for (int i = 0; i < part.length(); i++) {
+      sofar.put(part.get(i));
+    }
+  }
+
+
+  /**
+   * Call one method from the command line, params as a json array
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 3) {
+      System.out.println("usage: BinaryRpcClient host port method [params as json]");
+      return;
+    }
+
+    BinaryRpcClient client = new BinaryRpcClient(args[0], Integer.parseInt(args[1]));
+
+    try {
+
+      JSONArray params = (args.length > 3) ? new JSONArray(args[3]) : new JSONArray();
+      Object[] values  = new Object[params.length()];
+
+      for (int i = 0; i < values.length; i++) {
+        values[i] = params.get(i);
+      }
+
+      System.out.println(JSONObject.valueToString(client.call(args[2], values)));
+    } finally {
+      client.close();
+    }
+  }
+}
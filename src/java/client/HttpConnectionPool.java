@@ -0,0 +1,815 @@
+package cst420.thread.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Purpose: Class sends http requests to one server over a few persistent
+ *          connections without blocking. A single selector thread owns every
+ *          connection: a request goes out on an idle connection, or a new
+ *          one while the pool has fewer than its size, and otherwise is
+ *          pipelined behind those already out on the least busy connection,
+ *          never more than its in-flight limit. Requests with no room wait
+ *          their turn. Answers come back in order on a connection and each
+ *          completes its future on the selector thread, so nothing that
+ *          blocks should be chained onto one without an executor
+ *
+ *          A response with Connection: close means the server read nothing
+ *          after it, so requests pipelined behind it go out again on another
+ *          connection, as do any not yet fully written when a connection
+ *          drops. Those fully written when it drops fail, the server may
+ *          have run them
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class HttpConnectionPool implements Closeable {
+
+  //Bytes read per selector wakeup, shared by every connection
+  private final static int READ_SIZE = 64 * 1024;
+
+  //Times a request is sent again after its connection went before it was out
+  private final static int RETRIES = 3;
+
+  //Most requests written to a connection in one go
+  private final static int GATHER = 64;
+
+  private final InetSocketAddress address;
+  private final int maxConnections;
+  private final int maxInFlight;
+
+  private final Selector selector;
+  private final Queue<Request> submitted = new ConcurrentLinkedQueue<Request>();
+
+  //Only touched by the selector thread
+  private final ArrayDeque<Request> waiting  = new ArrayDeque<Request>();
+  private final List<Connection> connections = new ArrayList<Connection>();
+  private final ByteBuffer readBuffer        = ByteBuffer.allocate(READ_SIZE);
+
+  //Requests the server takes on a connection, once an answer has said
+  private int keepAliveMax = Integer.MAX_VALUE;
+
+  private volatile boolean closed;
+
+
+  public HttpConnectionPool(String host, int port, int maxConnections, int maxInFlight) throws IOException {
+
+    if (maxConnections < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("Connections and in-flight requests must be at least 1");
+    }
+
+    this.address        = new InetSocketAddress(host, port);
+    this.maxConnections = maxConnections;
+    this.maxInFlight    = maxInFlight;
+    this.selector       = Selector.open();
+
+    Thread loop = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    }, "waypoint-http-client");
+
+    loop.setDaemon(true);
+    loop.start();
+  }
+
+
+  /**
+   * Send a whole request, head and body, the future holds its response
+   */
+  public CompletableFuture<Response> send(byte[] request) {
+
+    Request sent = new Request(request);
+
+    if (closed) {
+      sent.result.completeExceptionally(new IOException("Client is closed"));
+      return sent.result;
+    }
+
+    submitted.add(sent);
+    selector.wakeup();
+
+    return sent.result;
+  }
+
+
+  /**
+   * Drop every connection and fail whatever hasn't been answered
+   */
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+
+  private void loop() {
+
+    try {
+
+      while (!closed) {
+
+        selector.select();
+
+        Request request;
+
+        while ((request = submitted.poll()) != null) {
+          waiting.add(request);
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+
+          SelectionKey key = keys.next();
+          Connection conn  = (Connection) key.attachment();
+
+          keys.remove();
+
+          try {
+
+            if (key.isValid() && key.isConnectable()) {
+              conn.connected();
+            }
+
+            if (key.isValid() && key.isReadable()) {
+              conn.read();
+            }
+
+            if (key.isValid() && key.isWritable() && !conn.draining) {
+              conn.flush();
+            }
+          } catch (IOException e) {
+            retire(conn, e);
+          }
+        }
+
+        dispatch();
+      }
+    } catch (IOException e) {
+      //Selector gone, fall through and fail everyone
+    }
+
+    IOException gone = new IOException("Client is closed");
+
+    for (Connection conn : new ArrayList<Connection>(connections)) {
+      retire(conn, gone);
+    }
+
+    Request request;
+
+    while ((request = submitted.poll()) != null) {
+      waiting.add(request);
+    }
+
+    while ((request = waiting.poll()) != null) {
+      request.result.completeExceptionally(gone);
+    }
+
+    try {
+      selector.close();
+    } catch (IOException e) {
+      //Nothing left to tell
+    }
+  }
+
+
+  /**
+   * Hand waiting requests to connections while any has room
+   */
+  private void dispatch() {
+
+    while (!waiting.isEmpty()) {
+
+      Connection conn;
+
+      try {
+        conn = choose();
+      } catch (IOException e) {
+
+        //Can't even start a connection, no request would get further
+        Request request;
+
+        while ((request = waiting.poll()) != null) {
+          request.result.completeExceptionally(e);
+        }
+
+        return;
+      }
+
+      if (conn == null) {
+        return;
+      }
+
+      conn.send(waiting.poll());
+    }
+  }
+
+
+  /**
+   * An idle connection, else a new one, else the least busy one with room.
+   * One that has taken all the server allows is left to finish and isn't
+   * counted against the pool
+   */
+  private Connection choose() throws IOException {
+
+    Connection best = null;
+    int usable      = 0;
+
+    for (Connection conn : connections) {
+
+      if (!conn.isUsable()) {
+        continue;
+      }
+
+      usable++;
+
+      if (best == null || conn.inFlight.size() < best.inFlight.size()) {
+        best = conn;
+      }
+    }
+
+    if (best != null && best.inFlight.isEmpty()) {
+      return best;
+    }
+
+    if (usable < maxConnections) {
+
+      Connection conn = new Connection();
+
+      connections.add(conn);
+
+      return conn;
+    }
+
+    return (best.inFlight.size() < maxInFlight) ? best : null;
+  }
+
+
+  /**
+   * Close a connection. Requests the server can't have read are sent again,
+   * the rest fail with why, which is null when the server closed it cleanly
+   * after a response
+   */
+  private void retire(Connection conn, IOException why) {
+
+    connections.remove(conn);
+
+    try {
+      conn.channel.close();
+    } catch (IOException e) {
+      //Closing anyway
+    }
+
+    List<Request> again = new ArrayList<Request>();
+
+    for (Request request : conn.inFlight) {
+
+      //Behind a clean close is never read, so can go again any number of times
+      if (why == null || (!request.written && conn.opened && ++request.attempts <= RETRIES)) {
+        request.bytes.rewind();
+        request.written = false;
+        again.add(request);
+      } else {
+        request.result.completeExceptionally(why);
+      }
+    }
+
+    conn.inFlight.clear();
+    conn.out.clear();
+
+    //Ahead of anything newer, in the order they were sent
+    for (int i = again.size() - 1; i >= 0; i--) {
+      waiting.addFirst(again.get(i));
+    }
+  }
+
+
+  /**
+   * Purpose: One request on its way, its bytes and the future its
+   *          response completes
+   */
+  private static class Request {
+
+    final ByteBuffer bytes;
+    final CompletableFuture<Response> result = new CompletableFuture<Response>();
+
+    //Every byte has gone out
+    boolean written;
+    int attempts;
+
+
+    Request(byte[] bytes) {
+      this.bytes = ByteBuffer.wrap(bytes);
+    }
+  }
+
+
+  /**
+   * Purpose: One persistent connection, the requests sent on it in order
+   *          and the response being read
+   */
+  private class Connection {
+
+    final SocketChannel channel;
+    final SelectionKey key;
+
+    //Sent and not yet answered, oldest first
+    final ArrayDeque<Request> inFlight = new ArrayDeque<Request>();
+
+    //Not yet fully written, oldest first
+    final ArrayDeque<Request> out = new ArrayDeque<Request>();
+
+    final ResponseParser parser = new ResponseParser();
+
+    //Connected at some point, so a drop isn't the server being unreachable
+    boolean opened;
+
+    //Requests sent, and how many the server's Keep-Alive max says it takes
+    int sent;
+    int limit = keepAliveMax;
+    boolean answered;
+
+    //Nothing more is sent, it is only read until the server closes it
+    boolean draining;
+
+
+    Connection() throws IOException {
+
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+      try {
+
+        if (channel.connect(address)) {
+          opened = true;
+          key    = channel.register(selector, SelectionKey.OP_READ, this);
+        } else {
+          key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+
+    /**
+     * Can take another request
+     */
+    boolean isUsable() {
+      return !draining && sent < limit;
+    }
+
+
+    void connected() throws IOException {
+
+      channel.finishConnect();
+
+      opened = true;
+      key.interestOps(SelectionKey.OP_READ);
+
+      flush();
+    }
+
+
+    void send(Request request) {
+
+      inFlight.add(request);
+      out.add(request);
+      sent++;
+
+      if (opened) {
+        flush();
+      }
+    }
+
+
+    /**
+     * Write what the socket will take of the requests not yet out, several
+     * at once so pipelined requests share packets. A failed write leaves the
+     * answers already on their way to be read before the connection goes
+     */
+    void flush() {
+
+      try {
+        write();
+      } catch (IOException e) {
+        draining = true;
+        out.clear();
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+
+    private void write() throws IOException {
+
+      while (!out.isEmpty()) {
+
+        ByteBuffer[] buffers      = new ByteBuffer[Math.min(GATHER, out.size())];
+        Iterator<Request> pending = out.iterator();
+
+        for (int i = 0; i < buffers.length; i++) {
+          buffers[i] = pending.next().bytes;
+        }
+
+        channel.write(buffers);
+
+        while (!out.isEmpty() && !out.peek().bytes.hasRemaining()) {
+          out.poll().written = true;
+        }
+
+        //The socket is full, wait until it says it can take more
+        if (buffers[buffers.length - 1].hasRemaining()) {
+          break;
+        }
+      }
+
+      key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+
+    void read() throws IOException {
+
+      readBuffer.clear();
+
+      int count = channel.read(readBuffer);
+
+      if (count < 0) {
+
+        Response last = parser.finish();
+
+        if (last != null) {
+          answer(last);
+        }
+
+        if (connections.contains(this)) {
+          retire(this, inFlight.isEmpty() ? null : new IOException("Connection closed by server"));
+        }
+
+        return;
+      }
+
+      readBuffer.flip();
+
+      while (readBuffer.hasRemaining() && connections.contains(this)) {
+
+        Response response = parser.feed(readBuffer);
+
+        if (response != null) {
+          answer(response);
+        }
+      }
+    }
+
+
+    private void answer(Response response) throws IOException {
+
+      Request request = inFlight.poll();
+
+      if (request == null) {
+        throw new IOException("Response with no request");
+      }
+
+      request.result.complete(response);
+
+      //The first answer says how many requests the connection will take
+      if (!answered) {
+        answered     = true;
+        limit        = keepAliveMax(response.getHeader("Keep-Alive"));
+        keepAliveMax = limit;
+      }
+
+      //Used up and answered, rather than wait on the server to close it
+      if (response.isClose() || (!isUsable() && inFlight.isEmpty())) {
+        retire(this, null);
+      }
+    }
+  }
+
+
+  /**
+   * Requests a Keep-Alive header's max allows on a connection, or no limit
+   */
+  private static int keepAliveMax(String keepAlive) {
+
+    if (keepAlive != null) {
+
+      for (String param : keepAlive.split(",")) {
+
+        String text = param.trim().toLowerCase();
+
+        if (text.startsWith("max=")) {
+
+          try {
+            return Math.max(1, Integer.parseInt(text.substring(4).trim()));
+          } catch (NumberFormatException e) {
+            break;
+          }
+        }
+      }
+    }
+
+    return Integer.MAX_VALUE;
+  }
+
+
+  /**
+   * Purpose: A response read off a connection, its status, headers (by
+   *          lower case name) and body with any chunking taken off
+   */
+  static class Response {
+
+    private final int status;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final boolean close;
+
+
+    Response(int status, Map<String, String> headers, byte[] body, boolean close) {
+
+      this.status  = status;
+      this.headers = headers;
+      this.body    = body;
+      this.close   = close;
+    }
+
+
+    public int getStatus() {
+      return status;
+    }
+
+
+    public String getHeader(String name) {
+      return headers.get(name.toLowerCase());
+    }
+
+
+    public byte[] getBody() {
+      return body;
+    }
+
+
+    /**
+     * The server will read nothing more on this connection
+     */
+    public boolean isClose() {
+      return close;
+    }
+  }
+
+
+  /**
+   * Purpose: Reads responses a piece at a time as they arrive, by
+   *          Content-Length, chunks or to the end of the connection
+   */
+  private static class ResponseParser {
+
+    private final static int HEAD      = 0;
+    private final static int BODY      = 1;
+    private final static int SIZE      = 2;
+    private final static int CHUNK     = 3;
+    private final static int CHUNK_END = 4;
+    private final static int TRAILER   = 5;
+    private final static int TO_CLOSE  = 6;
+
+    //Longest status line and headers taken
+    private final static int HEAD_MAX = 64 * 1024;
+
+    private final StringBuilder line = new StringBuilder();
+    private final List<String> lines = new ArrayList<String>();
+
+    private int state                  = HEAD;
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private long remaining;
+    private int headBytes;
+
+    private int status;
+    private Map<String, String> headers;
+    private boolean close;
+
+
+    /**
+     * Read what is there of one response, returning it once complete. Any
+     * bytes after it are left in the buffer for the next call
+     */
+    Response feed(ByteBuffer in) throws IOException {
+
+      while (in.hasRemaining()) {
+
+        switch (state) {
+
+          case HEAD:
+          case SIZE:
+          case CHUNK_END:
+          case TRAILER:
+
+            if (!readLine(in)) {
+              return null;
+            }
+
+            String text = line.toString();
+
+            line.setLength(0);
+
+            if (state == HEAD) {
+
+              if (text.length() > 0) {
+                lines.add(text);
+              } else if (!lines.isEmpty()) {
+
+                if (startBody()) {
+
+                  //An interim 1xx, the real response follows it
+                  if (status / 100 == 1) {
+                    lines.clear();
+                    headBytes = 0;
+                    break;
+                  }
+
+                  return done();
+                }
+              }
+            } else if (state == SIZE) {
+
+              int semi = text.indexOf(';');
+
+              try {
+                remaining = Long.parseLong(((semi < 0) ? text : text.substring(0, semi)).trim(), 16);
+              } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size " + text);
+              }
+
+              state = (remaining == 0) ? TRAILER : CHUNK;
+            } else if (state == CHUNK_END) {
+              state = SIZE;
+            } else if (text.length() == 0) {
+              return done();
+            }
+
+            break;
+
+          case BODY:
+          case CHUNK:
+          case TO_CLOSE:
+
+            int count = (state == TO_CLOSE) ? in.remaining() : (int) Math.min(remaining, in.remaining());
+
+            body.write(in.array(), in.arrayOffset() + in.position(), count);
+            in.position(in.position() + count);
+            remaining -= count;
+
+            if (state == BODY && remaining == 0) {
+              return done();
+            }
+
+            if (state == CHUNK && remaining == 0) {
+              state = CHUNK_END;
+            }
+
+            break;
+        }
+      }
+
+      return null;
+    }
+
+
+    /**
+     * The connection ended, which completes a response read to its close
+     */
+    Response finish() {
+      return (state == TO_CLOSE) ? done() : null;
+    }
+
+
+    private boolean readLine(ByteBuffer in) throws IOException {
+
+      while (in.hasRemaining()) {
+
+        char c = (char) (in.get() & 0xff);
+
+        if (state == HEAD && ++headBytes > HEAD_MAX) {
+          throw new IOException("Response head too long");
+        }
+
+        if (c == '\n') {
+
+          int end = line.length();
+
+          if (end > 0 && line.charAt(end - 1) == '\r') {
+            line.setLength(end - 1);
+          }
+
+          return true;
+        }
+
+        line.append(c);
+      }
+
+      return false;
+    }
+
+
+    /**
+     * Status line and headers are in, work out how the body is sent.
+     * True when there is no body
+     */
+    private boolean startBody() throws IOException {
+
+      String[] statusLine = lines.get(0).split(" ", 3);
+
+      if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+        throw new IOException("Bad status line " + lines.get(0));
+      }
+
+      try {
+        status = Integer.parseInt(statusLine[1]);
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad status line " + lines.get(0));
+      }
+
+      headers = new HashMap<String, String>();
+
+      for (int i = 1; i < lines.size(); i++) {
+
+        String header = lines.get(i);
+        int colon     = header.indexOf(':');
+
+        if (colon > 0) {
+          headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+        }
+      }
+
+      String connection = headers.get("connection");
+      String encoding   = headers.get("transfer-encoding");
+      String length     = headers.get("content-length");
+
+      if (statusLine[0].equals("HTTP/1.0")) {
+        close = !"keep-alive".equalsIgnoreCase(connection);
+      } else {
+        close = "close".equalsIgnoreCase(connection);
+      }
+
+      if (status / 100 == 1 || status == 204 || status == 304) {
+        return true;
+      }
+
+      if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+        state = SIZE;
+        return false;
+      }
+
+      if (length != null) {
+
+        try {
+          remaining = Long.parseLong(length);
+        } catch (NumberFormatException e) {
+          throw new IOException("Bad Content-Length " + length);
+        }
+
+        state = BODY;
+
+        return remaining == 0;
+      }
+
+      //No length, the body runs to the end of the connection
+      state = TO_CLOSE;
+      close = true;
+
+      return false;
+    }
+
+
+    private Response done() {
+
+      Response response = new Response(status, headers, body.toByteArray(), close);
+
+      state     = HEAD;
+      body      = new ByteArrayOutputStream();
+      remaining = 0;
+      headBytes = 0;
+      headers   = null;
+      close     = false;
+      lines.clear();
+
+      return response;
+    }
+  }
+}
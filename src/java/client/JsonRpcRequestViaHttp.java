@@ -1,44 +1,251 @@
 package cst420.thread.client;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
- * Purpose: Class used to send and receive http calls
+ * Purpose: Class used to send and receive http calls. Calls to an http url
+ *          go over a small pool of persistent connections without blocking
+ *          (see HttpConnectionPool), so any number of threads, or one
+ *          thread with many calls out at once through callAsync, can share
+ *          a client. Other urls, https, are posted with HttpURLConnection
  * 
  * @author Brandon Sleater
  * @version November 20, 2014
  */
 public class JsonRpcRequestViaHttp {
 
+    //Request bodies this big or bigger are sent gzipped
+    private final static int COMPRESS_MIN = 4096;
+
+    //Connections kept to the server, and calls pipelined on each at most
+    private final static int CONNECTIONS = 4;
+    private final static int IN_FLIGHT   = 16;
+
     private final Map<String, String> headers;
     private URL url;
+    private int compressMin;
+
+    private final int connections;
+    private final int inFlight;
+    private HttpConnectionPool pool;
 
 
     public JsonRpcRequestViaHttp(URL url) {
-        this.headers = new HashMap<String, String>();
-        this.url     = url;
+        this(url, CONNECTIONS, IN_FLIGHT);
+    }
+
+
+    /**
+     * A client keeping up to connections open to the server, each with no
+     * more than inFlight calls sent and not yet answered
+     */
+    public JsonRpcRequestViaHttp(URL url, int connections, int inFlight) {
+        this.headers     = new HashMap<String, String>();
+        this.url         = url;
+        this.compressMin = COMPRESS_MIN;
+        this.connections = connections;
+        this.inFlight    = inFlight;
     }
 
 
     public void setHeader(String key, String value) {
-        this.headers.put(key, value);
+        synchronized (headers) {
+            this.headers.put(key, value);
+        }
+    }
+
+
+    /**
+     * Smallest request body to send gzipped, such as a big batch of
+     * addWaypoint calls, or -1 to never compress them
+     */
+    public void setCompressMin(int bytes) {
+        this.compressMin = bytes;
     }
 
 
     public String call(String requestData) throws Exception {
         
-        String respData = post(url, headers, requestData);
-        
-        return respData;
+        try {
+            return callAsync(requestData).get();
+        } catch (ExecutionException e) {
+
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+
+    /**
+     * Send a call without waiting, the future holds the response's json.
+     * It completes on the client's own io thread, chain anything slow on
+     * with an executor
+     */
+    public CompletableFuture<String> callAsync(final String requestData) {
+
+        if (!"http".equalsIgnoreCase(url.getProtocol())) {
+            return CompletableFuture.supplyAsync(new Supplier<String>() {
+                public String get() {
+                    try {
+                        return post(url, headers, requestData);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            });
+        }
+
+        byte[] request;
+        HttpConnectionPool connections;
+
+        try {
+            request     = encode(requestData);
+            connections = pool();
+        } catch (IOException e) {
+            CompletableFuture<String> failed = new CompletableFuture<String>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        return connections.send(request).thenApply(new Function<HttpConnectionPool.Response, String>() {
+            public String apply(HttpConnectionPool.Response response) {
+                try {
+                    return decode(response);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Drop the connections to the server, calls not yet answered fail. A
+     * call made after opens new ones
+     */
+    public synchronized void close() {
+
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+
+    private synchronized HttpConnectionPool pool() throws IOException {
+
+        if (pool == null) {
+            int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+            pool     = new HttpConnectionPool(url.getHost(), port, connections, inFlight);
+        }
+
+        return pool;
+    }
+
+
+    /**
+     * The whole http request for a call, headers and body
+     */
+    private byte[] encode(String data) throws IOException {
+
+        byte[] body = data.getBytes(StandardCharsets.UTF_8);
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+
+        StringBuilder head = new StringBuilder(256);
+
+        head.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+
+        if (url.getPort() >= 0) {
+            head.append(':').append(url.getPort());
+        }
+
+        head.append("\r\nContent-Type: application/json\r\n");
+        head.append("Accept-Encoding: gzip, deflate\r\n");
+
+        if (compressMin >= 0 && body.length >= compressMin) {
+            body = gzip(body);
+            head.append("Content-Encoding: gzip\r\n");
+        }
+
+        synchronized (headers) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+        }
+
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+
+        byte[] front   = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] request = new byte[front.length + body.length];
+
+        System.arraycopy(front, 0, request, 0, front.length);
+        System.arraycopy(body, 0, request, front.length, body.length);
+
+        return request;
+    }
+
+
+    /**
+     * The json of a response, uncompressed
+     */
+    private static String decode(HttpConnectionPool.Response response) throws IOException {
+
+        if (response.getStatus() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected status from post: " + response.getStatus());
+        }
+
+        String encoding = response.getHeader("Content-Encoding");
+        encoding        = (encoding == null ? "" : encoding.trim());
+
+        if (encoding.length() == 0 || "identity".equalsIgnoreCase(encoding)) {
+            return new String(response.getBody(), StandardCharsets.UTF_8);
+        }
+
+        InputStream in = new ByteArrayInputStream(response.getBody());
+
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            in = new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            in = new InflaterInputStream(in);
+        } else {
+            throw new IOException("Unexpected Content-Encoding " + encoding);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(response.getBody().length * 4);
+        byte[] buff               = new byte[8192];
+        int n;
+
+        try {
+            while ((n = in.read(buff)) > 0) {
+                bos.write(buff, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
     }
 
 
@@ -46,13 +253,20 @@ public class JsonRpcRequestViaHttp {
 
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         
-        if (headers != null) {
+        synchronized (headers) {
             for (Map.Entry<String, String> entry : headers.entrySet()) {
                 connection.addRequestProperty(entry.getKey(), entry.getValue());
             }
         }
 
-        connection.addRequestProperty("Accept-Encoding", "gzip");
+        byte[] body = data.getBytes();
+
+        if (compressMin >= 0 && body.length >= compressMin) {
+            body = gzip(body);
+            connection.addRequestProperty("Content-Encoding", "gzip");
+        }
+
+        connection.addRequestProperty("Accept-Encoding", "gzip, deflate");
         connection.setRequestMethod("POST");
         connection.setDoOutput(true);
         connection.connect();
@@ -63,7 +277,7 @@ public class JsonRpcRequestViaHttp {
         
             out = connection.getOutputStream();
 
-            out.write(data.getBytes());
+            out.write(body);
 
             out.flush();
             out.close();
@@ -91,6 +305,8 @@ public class JsonRpcRequestViaHttp {
         
             if ("gzip".equalsIgnoreCase(responseEncoding)) {
                 in = new GZIPInputStream(in);
+            } else if ("deflate".equalsIgnoreCase(responseEncoding)) {
+                in = new InflaterInputStream(in);
             }
         
             in = new BufferedInputStream(in);
@@ -112,4 +328,16 @@ public class JsonRpcRequestViaHttp {
 
         return bos.toString();
     }
+
+
+    private static byte[] gzip(byte[] data) throws IOException {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream out      = new GZIPOutputStream(bos);
+
+        out.write(data);
+        out.close();
+
+        return bos.toByteArray();
+    }
 }
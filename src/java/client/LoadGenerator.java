@@ -0,0 +1,742 @@
+package cst420.thread.client;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONArray;
+
+/**
+ * Purpose: Class drives a waypoint server with a mix of rpc calls, posted
+ *          through JsonRpcRequestViaHttp the way WaypointClient posts them,
+ *          and reports the rate it got and the latency of every method as
+ *          percentiles, as text and optionally as CSV
+ *
+ *          A closed loop keeps every connection busy, each sending its next
+ *          call when the last is answered. An open loop sends calls at a
+ *          fixed rate whether or not the server keeps up, and times each
+ *          from when it was due rather than when it went out, so a stalled
+ *          server shows up in the latencies instead of slowing the load
+ *          down (coordinated omission). Its service times, from send to
+ *          answer, are reported as well
+ *
+ *          java cst420.thread.client.LoadGenerator http://127.0.0.1:8080
+ *            -mode closed|open     closed (default) or open loop
+ *            -connections n        threads, each with its own connection (8)
+ *            -rate n               calls per second of an open loop (1000)
+ *            -warmup s             seconds run before anything is counted (5)
+ *            -duration s           seconds counted (30)
+ *            -think ms             pause between calls of a closed loop (0)
+ *            -library n            waypoints load0 up put in first (1000)
+ *            -mix method=weight,.. methods of waypoint.json and their share
+ *            -spec file            the waypoint.json the mix is checked against
+ *            -csv file             every percentile written as CSV too
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+public class LoadGenerator {
+
+  //Most calls the server takes in one batch
+  private final static int BATCH = 1000;
+
+  private final static String DEFAULT_MIX = "getLibrarySize=1,calcDistBear=4,getJSONPointFromLibrary=3,nearestWaypoints=2";
+
+  //Methods a call can be made up for, anything that would shrink or
+  //reshuffle the library under the load is left out
+  private final static String[] KNOWN = { "getLibrarySize", "serviceInfo", "getActive", "setActive",
+                                          "getNamesFromLibrary", "streamNamesFromLibrary", "getNamesPage",
+                                          "calcDistBear", "calcDistBearMatrix", "getJSONPointFromLibrary",
+                                          "nearestWaypoints", "waypointsWithinRadius", "waypointsInBox",
+                                          "addWaypoint", "cacheStats", "serverStats" };
+
+  private final static double[] SUMMARY = { 0.5, 0.9, 0.99, 0.999, 0.9999 };
+
+  private final URL url;
+  private final boolean open;
+  private final int connections;
+  private final double rate;
+  private final long warmupNanos;
+  private final long durationNanos;
+  private final long thinkMillis;
+  private final int library;
+  private final String[] methods;
+  private final int[] weights;
+  private final String csv;
+
+  //Next call of an open loop, by the order they are due
+  private final AtomicLong tickets = new AtomicLong();
+
+
+  public LoadGenerator(URL url, boolean open, int connections, double rate, double warmup, double duration,
+                       long thinkMillis, int library, String mix, String spec, String csv) throws IOException {
+
+    this.url           = url;
+    this.open          = open;
+    this.connections   = connections;
+    this.rate          = rate;
+    this.warmupNanos   = (long) (warmup * 1e9);
+    this.durationNanos = (long) (duration * 1e9);
+    this.thinkMillis   = thinkMillis;
+    this.library       = library;
+    this.csv           = csv;
+
+    if (connections < 1 || (open && rate <= 0) || duration <= 0 || library < 1) {
+      throw new IllegalArgumentException("Connections, rate, duration and library must be above 0");
+    }
+
+    Set<String> allowed = new HashSet<String>();
+
+    for (String method : KNOWN) {
+      allowed.add(method);
+    }
+
+    Set<String> described = described(spec);
+    String[] parts        = mix.split(",");
+
+    this.methods = new String[parts.length];
+    this.weights = new int[parts.length];
+
+    for (int i = 0; i < parts.length; i++) {
+
+      String[] pair = parts[i].trim().split("=");
+
+      methods[i] = pair[0].trim();
+      weights[i] = (i > 0 ? weights[i - 1] : 0) + ((pair.length > 1) ? Integer.parseInt(pair[1].trim()) : 1);
+
+      if (described != null && !described.contains(methods[i])) {
+        throw new IllegalArgumentException(methods[i] + " is not a method of " + spec);
+      }
+
+      if (!allowed.contains(methods[i])) {
+        throw new IllegalArgumentException("No load is made up for " + methods[i]);
+      }
+    }
+
+    if (weights[weights.length - 1] <= 0) {
+      throw new IllegalArgumentException("The mix needs a weight above 0");
+    }
+  }
+
+
+  /**
+   * Names of the methods a waypoint.json describes, or null with no file
+   */
+  private static Set<String> described(String spec) throws IOException {
+
+    File file = new File(spec);
+
+    if (!file.isFile()) {
+      return null;
+    }
+
+    JSONArray list    = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    Set<String> names = new HashSet<String>();
+
+    for (int i = 0; i < list.length(); i++) {
+      names.add(list.getJSONObject(i).getString("method"));
+    }
+
+    return names;
+  }
+
+
+  public void run() throws Exception {
+
+    fillLibrary();
+
+    Worker[] workers = new Worker[connections];
+    Thread[] threads = new Thread[connections];
+    long start       = System.nanoTime();
+
+    for (int i = 0; i < connections; i++) {
+      workers[i] = new Worker(start);
+      threads[i] = new Thread(workers[i], "load-" + i);
+      threads[i].start();
+    }
+
+    System.out.println("Warming up for " + warmupNanos / 1000000000.0 + "s, then counting for " + durationNanos / 1000000000.0 + "s");
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    report(workers);
+  }
+
+
+  /**
+   * Put waypoints load0 to load(library - 1) in, a batch at a time. Putting
+   * one that is already there only moves it to where it already was
+   */
+  private void fillLibrary() throws Exception {
+
+    JsonRpcRequestViaHttp server = new JsonRpcRequestViaHttp(url);
+    long started                 = System.currentTimeMillis();
+
+    for (int from = 0; from < library; from += BATCH) {
+
+      StringBuilder batch = new StringBuilder("[");
+
+      for (int i = from; i < Math.min(library, from + BATCH); i++) {
+
+        if (i > from) {
+          batch.append(',');
+        }
+
+        batch.append(request("addWaypoint", "[\"load" + i + "\"," + lat(i) + "," + lon(i) + "," + (300 + i % 2000) + "]", i));
+      }
+
+      String reply = server.call(batch.append(']').toString());
+
+      if (reply.contains("\"error\":")) {
+        throw new IOException("Filling the library failed: " + reply.substring(0, Math.min(200, reply.length())));
+      }
+    }
+
+    System.out.println("Library has load0 to load" + (library - 1) + ", put in " + (System.currentTimeMillis() - started) + "ms");
+  }
+
+
+  //The library is laid out on a grid over the south west
+  private static double lat(int i) {
+    return 31.0 + (i % 1000) * 0.005;
+  }
+
+
+  private static double lon(int i) {
+    return -114.0 + (i / 1000) * 0.005;
+  }
+
+
+  private static String request(String method, String params, long id) {
+    return "{\"jsonrpc\":\"2.0\",\"method\":\"" + method + "\",\"params\":" + params + ",\"id\":" + id + "}";
+  }
+
+
+  /**
+   * Params for one call of a method, about waypoints of the library or
+   * points among them
+   */
+  private String params(String method, ThreadLocalRandom random) {
+
+    int a      = random.nextInt(library);
+    double lat = lat(random.nextInt(library)) + random.nextDouble() * 0.005;
+    double lon = lon(random.nextInt(library)) + random.nextDouble() * 0.005;
+
+    switch (method) {
+
+      case "setActive":
+      case "getJSONPointFromLibrary":
+        return "[\"load" + a + "\"]";
+
+      case "getNamesPage":
+        return "[\"\",100]";
+
+      case "calcDistBear":
+        return "[\"load" + a + "\",\"load" + random.nextInt(library) + "\"]";
+
+      case "calcDistBearMatrix":
+        return "[" + names(10, random) + "," + names(10, random) + ",0]";
+
+      case "nearestWaypoints":
+        return "[" + lat + "," + lon + ",10]";
+
+      case "waypointsWithinRadius":
+        return "[" + lat + "," + lon + ",1.0,0]";
+
+      case "waypointsInBox":
+        return "[" + lat + "," + lon + "," + (lat + 0.05) + "," + (lon + 0.05) + "]";
+
+      case "addWaypoint":
+        return "[\"load" + a + "\"," + lat(a) + "," + lon(a) + "," + (300 + a % 2000) + "]";
+
+      default:
+        return "null";
+    }
+  }
+
+
+  private String names(int count, ThreadLocalRandom random) {
+
+    StringBuilder list = new StringBuilder("[");
+
+    for (int i = 0; i < count; i++) {
+      list.append((i > 0) ? "," : "").append("\"load").append(random.nextInt(library)).append('"');
+    }
+
+    return list.append(']').toString();
+  }
+
+
+  /**
+   * Index into methods of a call picked by the weights of the mix
+   */
+  private int pick(ThreadLocalRandom random) {
+
+    int roll = random.nextInt(weights[weights.length - 1]);
+    int i    = 0;
+
+    while (weights[i] <= roll) {
+      i++;
+    }
+
+    return i;
+  }
+
+
+  /**
+   * An answer is an error when the envelope has one in place of a result,
+   * its result can hold anything so only the front of it is looked at
+   */
+  private static boolean isError(String reply) {
+
+    int result = reply.indexOf("\"result\":");
+    int error  = reply.indexOf("\"error\":");
+
+    return error >= 0 && (result < 0 || error < result);
+  }
+
+
+  private void report(Worker[] workers) throws IOException {
+
+    Histogram[] latency = new Histogram[methods.length + 1];
+    Histogram[] service = new Histogram[methods.length + 1];
+    long[] errors       = new long[methods.length + 1];
+
+    for (int i = 0; i <= methods.length; i++) {
+      latency[i] = new Histogram();
+      service[i] = new Histogram();
+    }
+
+    for (Worker worker : workers) {
+
+      for (int i = 0; i < methods.length; i++) {
+
+        latency[i].add(worker.latency[i]);
+        service[i].add(worker.service[i]);
+        errors[i] += worker.errors[i];
+
+        latency[methods.length].add(worker.latency[i]);
+        service[methods.length].add(worker.service[i]);
+        errors[methods.length] += worker.errors[i];
+      }
+    }
+
+    String[] rows = new String[methods.length + 1];
+    long finished = 0;
+
+    for (Worker worker : workers) {
+      finished = Math.max(finished, worker.finished);
+    }
+
+    //Until the last counted call was answered, an open loop the server
+    //fell behind on runs over
+    double seconds = Math.max(durationNanos, finished - workers[0].counted) / 1e9;
+
+    System.arraycopy(methods, 0, rows, 0, methods.length);
+    rows[methods.length] = "all";
+
+    System.out.println();
+    System.out.println((open ? "Open loop at " + rate + " calls/s" : "Closed loop") + " over " + connections + " connections to " + url
+                       + ", " + library + " waypoints");
+    System.out.printf(Locale.ROOT, "Throughput %.1f calls/s, %d calls, %d errors%n", latency[methods.length].getCount() / seconds,
+                      latency[methods.length].getCount(), errors[methods.length]);
+
+    summary(open ? "Response time from when each call was due, in ms" : "Response time in ms", rows, latency, errors, seconds);
+
+    if (open) {
+      summary("Service time from when each call was sent, in ms", rows, service, errors, seconds);
+    }
+
+    System.out.println();
+    System.out.println("Distribution of all calls, in ms");
+    System.out.printf(Locale.ROOT, "%12s %12s %12s%n", "value", "percentile", "count");
+
+    for (double[] point : latency[methods.length].spectrum()) {
+      System.out.printf(Locale.ROOT, "%12.3f %12.6f %12d%n", point[1] / 1e6, point[0], (long) point[2]);
+    }
+
+    if (csv != null) {
+
+      PrintWriter out = new PrintWriter(new FileWriter(csv));
+
+      try {
+
+        out.println("method,kind,percentile,latencyMs,count");
+
+        for (int i = 0; i < rows.length; i++) {
+
+          csvRows(out, rows[i], "response", latency[i]);
+
+          if (open) {
+            csvRows(out, rows[i], "service", service[i]);
+          }
+        }
+      } finally {
+        out.close();
+      }
+
+      System.out.println("Percentiles written to " + csv);
+    }
+  }
+
+
+  private void summary(String title, String[] rows, Histogram[] times, long[] errors, double seconds) {
+
+    System.out.println();
+    System.out.println(title);
+    System.out.printf(Locale.ROOT, "%-24s %9s %7s %9s %9s %9s %9s %9s %9s %9s %9s%n",
+                      "method", "calls", "errors", "calls/s", "mean", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+
+    for (int i = 0; i < rows.length; i++) {
+
+      Histogram time = times[i];
+
+      System.out.printf(Locale.ROOT, "%-24s %9d %7d %9.1f %9.3f", rows[i], time.getCount(), errors[i],
+                        time.getCount() / seconds, time.getMean() / 1e6);
+
+      for (double quantile : SUMMARY) {
+        System.out.printf(Locale.ROOT, " %9.3f", time.getPercentile(quantile) / 1e6);
+      }
+
+      System.out.printf(Locale.ROOT, " %9.3f%n", time.getMax() / 1e6);
+    }
+  }
+
+
+  private static void csvRows(PrintWriter out, String method, String kind, Histogram time) {
+
+    for (double[] point : time.spectrum()) {
+      out.printf(Locale.ROOT, "%s,%s,%.6f,%.3f,%d%n", method, kind, point[0], point[1] / 1e6, (long) point[2]);
+    }
+  }
+
+
+  /**
+   * Purpose: One connection's share of the load, with its own histograms so
+   *          nothing is shared while it runs
+   */
+  private class Worker implements Runnable {
+
+    final Histogram[] latency = new Histogram[methods.length];
+    final Histogram[] service = new Histogram[methods.length];
+    final long[] errors       = new long[methods.length];
+    final long counted;
+
+    //When the last counted call was answered
+    long finished;
+
+    private final long start;
+    private final JsonRpcRequestViaHttp server;
+
+
+    Worker(long start) {
+
+      this.start   = start;
+      this.counted = start + warmupNanos;
+      this.server  = new JsonRpcRequestViaHttp(url);
+
+      for (int i = 0; i < methods.length; i++) {
+        latency[i] = new Histogram();
+        service[i] = new Histogram();
+      }
+    }
+
+
+    public void run() {
+
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long end                 = counted + durationNanos;
+      long id                  = 0;
+
+      while (true) {
+
+        long due;
+
+        if (open) {
+
+          //Due on a fixed schedule, however far behind the server is
+          due = start + (long) (tickets.getAndIncrement() * 1e9 / rate);
+
+          if (due >= end) {
+            return;
+          }
+
+          long wait;
+
+          while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        } else {
+
+          due = System.nanoTime();
+
+          if (due >= end) {
+            return;
+          }
+        }
+
+        int method  = pick(random);
+        long sent   = System.nanoTime();
+        boolean bad = false;
+
+        try {
+          bad = isError(server.call(request(methods[method], params(methods[method], random), ++id)));
+        } catch (Exception e) {
+          bad = true;
+        }
+
+        long done = System.nanoTime();
+
+        if (due >= counted) {
+
+          latency[method].record(done - due);
+          service[method].record(done - sent);
+          finished = done;
+
+          if (bad) {
+            errors[method]++;
+          }
+        }
+
+        if (!open && thinkMillis > 0) {
+
+          try {
+            Thread.sleep(thinkMillis);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Purpose: Latencies in nanoseconds counted into log linear buckets, 32 to
+   *          each power of two so a percentile is within about 3%. Each
+   *          worker fills its own and they are added together at the end
+   */
+  static class Histogram {
+
+    private final static int PRECISION   = 5;
+    private final static int SUB_BUCKETS = 1 << PRECISION;
+
+    //Longest latency told apart from longer ones, about 4.9 hours
+    private final static long HIGHEST = (1L << 44) - 1;
+
+    //Percentiles given between each halving of what is left, as HdrHistogram does
+    private final static int TICKS = 5;
+
+    private final long[] counts = new long[index(HIGHEST) + 1];
+    private long total;
+    private long sum;
+    private long max;
+
+
+    public void record(long nanos) {
+
+      long value = Math.min(Math.max(nanos, 0), HIGHEST);
+
+      counts[index(value)]++;
+      total++;
+      sum += value;
+      max  = Math.max(max, value);
+    }
+
+
+    public void add(Histogram other) {
+
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+
+      total += other.total;
+      sum   += other.sum;
+      max    = Math.max(max, other.max);
+    }
+
+
+    public long getCount() {
+      return total;
+    }
+
+
+    public long getMax() {
+      return max;
+    }
+
+
+    public double getMean() {
+      return (total == 0) ? 0 : (double) sum / total;
+    }
+
+
+    public long getPercentile(double fraction) {
+
+      if (total == 0) {
+        return 0;
+      }
+
+      long rank = Math.max(1, (long) Math.ceil(fraction * total));
+      long seen = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+
+        seen += counts[i];
+
+        if (seen >= rank) {
+          return Math.min(highestInBucket(i), max);
+        }
+      }
+
+      return max;
+    }
+
+
+    /**
+     * Percentile, latency and calls at or under it, from 0 up to the
+     * slowest call, closer together the further out they are
+     */
+    public List<double[]> spectrum() {
+
+      List<double[]> points = new ArrayList<double[]>();
+
+      if (total == 0) {
+        return points;
+      }
+
+      double fraction = 0;
+      double step     = 0.5 / TICKS;
+
+      //Past the last percentile a single call can tell apart, only the max is left
+      while (1 - fraction > 1.0 / total) {
+
+        for (int t = 0; t < TICKS; t++, fraction += step) {
+
+          long value = getPercentile(fraction);
+
+          points.add(new double[] { fraction, value, countAtOrBelow(value) });
+        }
+
+        step /= 2;
+      }
+
+      points.add(new double[] { 1.0, max, total });
+
+      return points;
+    }
+
+
+    private long countAtOrBelow(long value) {
+
+      long seen = 0;
+
+      for (int i = 0; i <= index(value); i++) {
+        seen += counts[i];
+      }
+
+      return seen;
+    }
+
+
+    private static int index(long value) {
+
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift    = exponent - PRECISION;
+
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+
+    private static long highestInBucket(int index) {
+
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+
+      int shift     = index / SUB_BUCKETS - 1;
+      long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+
+      return ((mantissa + 1) << shift) - 1;
+    }
+  }
+
+
+  public static void main(String[] args) {
+
+    if (args.length < 1) {
+      System.out.println("Usage: LoadGenerator url [-mode closed|open] [-connections n] [-rate n] [-warmup s] [-duration s]");
+      System.out.println("                         [-think ms] [-library n] [-mix method=weight,...] [-spec file] [-csv file]");
+      System.exit(1);
+    }
+
+    String mode     = "closed";
+    int connections = 8;
+    double rate     = 1000;
+    double warmup   = 5;
+    double duration = 30;
+    long think      = 0;
+    int library     = 1000;
+    String mix      = DEFAULT_MIX;
+    String spec     = "waypoint.json";
+    String csv      = null;
+
+    try {
+
+      for (int i = 1; i < args.length; i += 2) {
+
+        String option = args[i];
+        String value  = (i + 1 < args.length) ? args[i + 1] : "";
+
+        switch (option) {
+          case "-mode":        mode = value; break;
+          case "-connections": connections = Integer.parseInt(value); break;
+          case "-rate":        rate = Double.parseDouble(value); break;
+          case "-warmup":      warmup = Double.parseDouble(value); break;
+          case "-duration":    duration = Double.parseDouble(value); break;
+          case "-think":       think = Long.parseLong(value); break;
+          case "-library":     library = Integer.parseInt(value); break;
+          case "-mix":         mix = value; break;
+          case "-spec":        spec = value; break;
+          case "-csv":         csv = value; break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + option);
+        }
+      }
+
+      if (!mode.equals("closed") && !mode.equals("open")) {
+        throw new IllegalArgumentException("Mode must be closed or open");
+      }
+
+      //Otherwise only 5 connections to the server are kept alive between calls
+      System.setProperty("http.maxConnections", String.valueOf(Math.max(5, connections)));
+
+      new LoadGenerator(new URL(args[0]), mode.equals("open"), connections, rate, warmup, duration,
+                        think, library, mix, spec, csv).run();
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.exit(1);
+    } catch (Exception e) {
+      System.out.println("Load failed: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+}
@@ -12,6 +12,7 @@ import java.util.Arrays;
 import java.text.DecimalFormat;
 
 import java.net.URL;
+import java.util.function.BiConsumer;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -27,12 +28,29 @@ import org.json.JSONException;
 public class WaypointClient extends WaypointGUI implements ActionListener, ItemListener {
 
   private static final boolean debugOn = true;
+
+  //Names asked for per getNamesPage call
+  private static final int NAMES_PAGE = 1000;
+
+  //Ms the server may hold a waitForChanges call, and to wait after one fails
+  private static final int WATCH_WAIT = 25000;
+  private static final int RETRY_WAIT = 5000;
   public String lookupVal;
 
   public static String serviceURL;
   public JsonRpcRequestViaHttp server;
   public static int id = 0;
 
+  //Connection of its own for waitForChanges, calls pipelined behind
+  //one the server is holding would wait with it
+  private JsonRpcRequestViaHttp watcher;
+
+  //Our copy of the library, name to [lat, lon, ele] (null until we've seen
+  //the point), in the server's order, and the server run and version it is at
+  private final Map<String, double[]> replica = new LinkedHashMap<String, double[]>();
+  private long epoch   = -1;
+  private long version = -1;
+
 
   public WaypointClient(String url) {
 
@@ -41,14 +59,17 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
       serviceURL = url;
 
       try {
-        server = new JsonRpcRequestViaHttp(new URL(serviceURL));
+        server  = new JsonRpcRequestViaHttp(new URL(serviceURL));
+        watcher = new JsonRpcRequestViaHttp(new URL(serviceURL), 1, 1);
         distBearInGC.setText("Connected at: " + serviceURL);
       } catch (Exception ex) {
         System.out.println("Malformed URL " + ex.getMessage());
       }
 
-      //Load any currently saved waypoints from the server into the GUI
+      //Load any currently saved waypoints from the server into the GUI,
+      //then keep up with what other people change
       loadAllWaypoints();
+      watchChanges();
      
       removeWPButt.addActionListener(this);
       addWPButt.addActionListener(this);
@@ -94,40 +115,58 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
 
   /**
    * Function is used to refresh the dropdown list data. If running with a server
-   * that other people manipulate, you would want to do this to get any data they added
+   * that other people manipulate, you would want to do this to get any data they added.
+   * It loads every name, so after the first time syncWaypoints() is all that's needed
    */
   public void loadAllWaypoints() {
 
     try {
 
+      //The version first, anything changed while the pages load is caught up after
+      JSONObject start = new JSONObject(server.call(changesCall(-1))).getJSONObject("result");
+
+      epoch   = start.getLong("epoch");
+      version = start.getLong("version");
+
+      replica.clear();
       frWps.removeAllItems();
       toWps.removeAllItems();
-  
-      String jsonStr = this.packageCalcCall("getNamesFromLibrary", "null");
-      String temp    = server.call(jsonStr);
 
-      JSONObject points = new JSONObject(temp);
-      
-      Boolean isStr = false;
+      //A page at a time, so neither side ever holds the whole list as json
+      String cursor = "";
 
-      try {
-        String test = points.getString("result");
-        isStr = true;
-      } catch (JSONException e) { }
+      while (cursor != null) {
 
-      //Ensure its an array
-      if (!isStr) {
+        String params  = "[" + JSONObject.quote(cursor) + "," + NAMES_PAGE + "]";
+        String jsonStr = this.packageCalcCall("getNamesPage", params);
+        String temp    = server.call(jsonStr);
 
-        JSONArray list = points.getJSONArray("result");
+        JSONObject reply = new JSONObject(temp);
+
+        //Errors come back without a result
+        if (!reply.has("result")) {
+          System.out.println("RPC Exception Loading Points: " + temp);
+          return;
+        }
+
+        JSONObject page = reply.getJSONObject("result");
+        JSONArray list  = page.getJSONArray("names");
 
         for (int i = 0; i < list.length(); i++) {
 
           String value = list.getString(i);
 
+          replica.put(value, null);
           frWps.addItem(value);
           toWps.addItem(value);
         }
 
+        cursor = page.isNull("next") ? null : page.getString("next");
+      }
+
+      applyChanges(new JSONObject(server.call(changesCall(version))), false);
+
+      if (frWps.getItemCount() > 0) {
         loadWaypoint(String.valueOf(frWps.getSelectedItem()));
       }
     } catch(Exception ex) {
@@ -136,6 +175,169 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
   }
 
 
+  /**
+   * Function brings the dropdown lists up to date with only what has changed
+   * on the server since we last looked
+   */
+  public void syncWaypoints() {
+
+    try {
+      applyChanges(new JSONObject(server.call(changesCall(version))), true);
+    } catch(Exception ex) {
+      System.out.println("RPC Exception Syncing Points: " + ex.getMessage());
+    }
+  }
+
+
+  private String changesCall(long since) {
+    return this.packageCalcCall("getChangesSince", "[" + since + "]");
+  }
+
+
+  /**
+   * Function keeps a waitForChanges call out, which the server answers as soon
+   * as someone changes the library. No thread waits on it, the reply is
+   * applied on the swing thread, which then sends the next one
+   */
+  private void watchChanges() {
+
+    final long since = version;
+    String jsonStr   = this.packageCalcCall("waitForChanges", "[" + since + "," + WATCH_WAIT + "]");
+
+    watcher.callAsync(jsonStr).whenComplete(new BiConsumer<String, Throwable>() {
+      public void accept(final String reply, final Throwable failed) {
+
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            watched(since, reply, failed);
+          }
+        });
+      }
+    });
+  }
+
+
+  private void watched(long since, String reply, Throwable failed) {
+
+    try {
+
+      if (failed != null) {
+        throw new Exception(failed.getMessage());
+      }
+
+      //Our own changes may have moved us past what this answers
+      if (since == version) {
+        applyChanges(new JSONObject(reply), true);
+      }
+
+      watchChanges();
+    } catch(Exception ex) {
+
+      System.out.println("RPC Exception Watching Points: " + ex.getMessage());
+
+      //Give the server a while, it may be restarting
+      javax.swing.Timer retry = new javax.swing.Timer(RETRY_WAIT, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+          watchChanges();
+        }
+      });
+
+      retry.setRepeats(false);
+      retry.start();
+    }
+  }
+
+
+  /**
+   * Function applies a getChangesSince reply to the replica and the dropdowns.
+   * When the server can't answer from our version, or has restarted, everything
+   * is loaded again if reload is set
+   */
+  private void applyChanges(JSONObject reply, boolean reload) throws Exception {
+
+    if (!reply.has("result")) {
+      throw new Exception("Changes not given: " + reply);
+    }
+
+    JSONObject result = reply.getJSONObject("result");
+
+    if (result.getBoolean("reset") || result.getLong("epoch") != epoch) {
+
+      if (reload) {
+        loadAllWaypoints();
+      }
+
+      return;
+    }
+
+    JSONArray changes = result.getJSONArray("changes");
+
+    for (int i = 0; i < changes.length(); i++) {
+
+      JSONObject change = changes.getJSONObject(i);
+      String name       = change.getString("name");
+
+      if (change.optBoolean("removed")) {
+
+        if (replica.containsKey(name)) {
+          replica.remove(name);
+          frWps.removeItem(name);
+          toWps.removeItem(name);
+        }
+      } else {
+
+        if (!replica.containsKey(name)) {
+          frWps.addItem(name);
+          toWps.addItem(name);
+        }
+
+        replica.put(name, new double[] { change.getDouble("lat"), change.getDouble("lon"), change.getDouble("ele") });
+      }
+    }
+
+    version = result.getLong("version");
+  }
+
+
+  /**
+   * Function sends calls as one batch with a getChangesSince on the end, so
+   * a change and the dropdowns catching up with it cost one round trip. The
+   * replies to calls come back in the same order
+   */
+  private JSONObject[] callAndSync(String... calls) throws Exception {
+
+    StringBuilder batch = new StringBuilder("[");
+
+    for (String call : calls) {
+      batch.append(call).append(',');
+    }
+
+    String sync = changesCall(version);
+    int syncId  = id;
+
+    JSONArray replies   = new JSONArray(server.call(batch.append(sync).append(']').toString()));
+    JSONObject[] byCall = new JSONObject[calls.length];
+    JSONObject changes  = null;
+
+    for (int i = 0; i < replies.length(); i++) {
+
+      JSONObject reply = replies.getJSONObject(i);
+
+      if (reply.optInt("id", -1) == syncId) {
+        changes = reply;
+      } else if (i < byCall.length) {
+        byCall[i] = reply;
+      }
+    }
+
+    if (changes != null) {
+      applyChanges(changes, true);
+    }
+
+    return byCall;
+  }
+
+
   /**
    * Function is used to load a single waypoint into the GUI
    */
@@ -156,6 +358,10 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
 
         point = point.getJSONObject("result").getJSONObject(name);
 
+        if (replica.containsKey(name)) {
+          replica.put(name, new double[] { point.getDouble("lat"), point.getDouble("lon"), point.getDouble("ele") });
+        }
+
         namIn.setText(name);
         latIn.setText(String.format("%.4f", point.getDouble("lat")));
         lonIn.setText(String.format("%.4f", point.getDouble("lon")));
@@ -179,8 +385,7 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
       String params  = "[\"" + name + "\"," + lat + "," + lon + "," + ele + "]";
       String jsonStr = this.packageCalcCall("addWaypoint", params);
 
-      server.call(jsonStr);
-      loadAllWaypoints();
+      callAndSync(jsonStr);
 
       frWps.setSelectedItem(name);
       toWps.setSelectedItem(name);
@@ -201,16 +406,10 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
   
       String params  = "[\"" + name + "\"," + lat + "," + lon + "," + ele + "]";
       String jsonStr = this.packageCalcCall("modifyWaypoint", params);
-      server.call(jsonStr);
-
-      params  = "null";
-      jsonStr = this.packageCalcCall("getActive", params);
-      
-      String temp       = server.call(jsonStr);
-      JSONObject result = new JSONObject(temp);
-      String active     = result.getString("result");
 
-      loadAllWaypoints();
+      //Modify, then ask which point is active, and catch up, all in one go
+      JSONObject[] replies = callAndSync(jsonStr, this.packageCalcCall("getActive", "null"));
+      String active        = replies[1].getString("result");
 
       frWps.setSelectedItem(active);
       toWps.setSelectedItem(active);
@@ -233,9 +432,8 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
 
       params  = "[\""+ active +"\"]";
       jsonStr = this.packageCalcCall("removeWaypoint", params);
-      
-      String empty      = server.call(jsonStr);
-      result            = new JSONObject(empty);
+
+      result            = callAndSync(jsonStr)[0];
       Boolean lastEntry = result.getBoolean("result");
 
       if (lastEntry) {
@@ -244,8 +442,6 @@ public class WaypointClient extends WaypointGUI implements ActionListener, ItemL
         eleIn.setText("");
         namIn.setText("");
       }
-
-      loadAllWaypoints();
     } catch(Exception ex) {
       System.out.println("RPC Exception: " + ex.getMessage());
     }
@@ -0,0 +1,399 @@
+package cst420.thread.server;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class reads the MessagePack of one binary port frame. It takes
+ *          the types a call can hold, nil, booleans, every int and float
+ *          width, strings, arrays and maps, and turns away binary, ext and
+ *          anything else with an IllegalArgumentException. Like JsonReader
+ *          it reads params straight into RpcParams, with nested arrays and
+ *          maps built as org.json values
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class BinaryReader {
+
+  private byte[] body;
+  private int pos;
+  private int end;
+
+
+  public BinaryReader reset(byte[] body, int offset, int length) {
+
+    this.body = body;
+    this.pos  = offset;
+    this.end  = offset + length;
+
+    return this;
+  }
+
+
+  public boolean atEnd() {
+    return pos >= end;
+  }
+
+
+  /**
+   * Type byte of the next value, without reading past it
+   */
+  public int peek() {
+    return byteAt(pos);
+  }
+
+
+  public boolean isNil() {
+    return peek() == 0xc0;
+  }
+
+
+  public boolean isString() {
+
+    int b = peek();
+
+    return (b >= 0xa0 && b <= 0xbf) || (b >= 0xd9 && b <= 0xdb);
+  }
+
+
+  public boolean isArray() {
+
+    int b = peek();
+
+    return (b >= 0x90 && b <= 0x9f) || b == 0xdc || b == 0xdd;
+  }
+
+
+  public boolean isMap() {
+
+    int b = peek();
+
+    return (b >= 0x80 && b <= 0x8f) || b == 0xde || b == 0xdf;
+  }
+
+
+  /**
+   * Element count of the array that starts here
+   */
+  public int readArrayHeader() {
+
+    int b = next();
+
+    if (b >= 0x90 && b <= 0x9f) {
+      return b & 0x0f;
+    }
+
+    if (b == 0xdc) {
+      return (int) unsigned(2);
+    }
+
+    if (b == 0xdd) {
+      return count(unsigned(4));
+    }
+
+    throw bad(b, "an array");
+  }
+
+
+  /**
+   * Member count of the map that starts here
+   */
+  public int readMapHeader() {
+
+    int b = next();
+
+    if (b >= 0x80 && b <= 0x8f) {
+      return b & 0x0f;
+    }
+
+    if (b == 0xde) {
+      return (int) unsigned(2);
+    }
+
+    if (b == 0xdf) {
+      return count(unsigned(4));
+    }
+
+    throw bad(b, "a map");
+  }
+
+
+  public void readNil() {
+
+    int b = next();
+
+    if (b != 0xc0) {
+      throw bad(b, "nil");
+    }
+  }
+
+
+  public String readString() {
+
+    int b    = next();
+    int size;
+
+    if (b >= 0xa0 && b <= 0xbf) {
+      size = b & 0x1f;
+    } else if (b == 0xd9) {
+      size = (int) unsigned(1);
+    } else if (b == 0xda) {
+      size = (int) unsigned(2);
+    } else if (b == 0xdb) {
+      size = count(unsigned(4));
+    } else {
+      throw bad(b, "a string");
+    }
+
+    need(size);
+
+    String value = new String(body, pos, size, StandardCharsets.UTF_8);
+    pos         += size;
+
+    return value;
+  }
+
+
+  /**
+   * Any int that fits in a long
+   */
+  public long readLong() {
+
+    int b = next();
+
+    if (b <= 0x7f) {
+      return b;
+    }
+
+    if (b >= 0xe0) {
+      return (byte) b;
+    }
+
+    switch (b) {
+      case 0xcc:
+        return unsigned(1);
+      case 0xcd:
+        return unsigned(2);
+      case 0xce:
+        return unsigned(4);
+      case 0xcf: {
+
+        long value = unsigned(8);
+
+        if (value < 0) {
+          throw new IllegalArgumentException("Int too big at byte " + pos);
+        }
+
+        return value;
+      }
+      case 0xd0:
+        return (byte) unsigned(1);
+      case 0xd1:
+        return (short) unsigned(2);
+      case 0xd2:
+        return (int) unsigned(4);
+      case 0xd3:
+        return unsigned(8);
+      default:
+        throw bad(b, "an int");
+    }
+  }
+
+
+  /**
+   * Any int or float as a double
+   */
+  public double readDouble() {
+
+    int b = peek();
+
+    if (b == 0xca) {
+      pos++;
+      return Float.intBitsToFloat((int) unsigned(4));
+    }
+
+    if (b == 0xcb) {
+      pos++;
+      return Double.longBitsToDouble(unsigned(8));
+    }
+
+    if (b == 0xcf) {
+      pos++;
+      return unsignedToDouble(unsigned(8));
+    }
+
+    return readLong();
+  }
+
+
+  /**
+   * The params array of a call, straight into params
+   */
+  public RpcParams readParams(RpcParams params) {
+
+    params.clear();
+
+    int size = readArrayHeader();
+
+    for (int i = 0; i < size; i++) {
+
+      if (isString()) {
+        params.add(readString());
+      } else if (isNil()) {
+        readNil();
+        params.addValue(null);
+      } else if (isArray() || isMap() || peek() == 0xc2 || peek() == 0xc3) {
+        params.addValue(readValue(0));
+      } else {
+        params.add(readDouble());
+      }
+    }
+
+    return params;
+  }
+
+
+  /**
+   * Next value as org.json would give it
+   */
+  public Object readValue() {
+    return readValue(0);
+  }
+
+
+  private Object readValue(int depth) {
+
+    if (depth > JsonReader.MAX_DEPTH) {
+      throw new IllegalArgumentException("Nested deeper than " + JsonReader.MAX_DEPTH);
+    }
+
+    int b = peek();
+
+    if (isString()) {
+      return readString();
+    }
+
+    if (isArray()) {
+
+      int size      = readArrayHeader();
+      JSONArray arr = new JSONArray();
+
+      for (int i = 0; i < size; i++) {
+        arr.put(readValue(depth + 1));
+      }
+
+      return arr;
+    }
+
+    if (isMap()) {
+
+      int size       = readMapHeader();
+      JSONObject obj = new JSONObject();
+
+      for (int i = 0; i < size; i++) {
+
+        String key = readString();
+
+        obj.put(key, readValue(depth + 1));
+      }
+
+      return obj;
+    }
+
+    switch (b) {
+      case 0xc0:
+        pos++;
+        return JSONObject.NULL;
+      case 0xc2:
+        pos++;
+        return Boolean.FALSE;
+      case 0xc3:
+        pos++;
+        return Boolean.TRUE;
+      case 0xca:
+      case 0xcb:
+        return readDouble();
+      default: {
+
+        long value = readLong();
+
+        if (value == (int) value) {
+          return (int) value;
+        }
+
+        return value;
+      }
+    }
+  }
+
+
+  /**
+   * Read past the next value whatever it is
+   */
+  public void skipValue() {
+    readValue(0);
+  }
+
+
+  private int next() {
+    return byteAt(pos++);
+  }
+
+
+  private int byteAt(int at) {
+
+    if (at >= end) {
+      throw new IllegalArgumentException("Message cut short");
+    }
+
+    return body[at] & 0xff;
+  }
+
+
+  private long unsigned(int bytes) {
+
+    need(bytes);
+
+    long value = 0;
+
+    for (int i = 0; i < bytes; i++) {
+      value = (value << 8) | (body[pos++] & 0xff);
+    }
+
+    return value;
+  }
+
+
+  private static double unsignedToDouble(long value) {
+    return (value >= 0) ? value : (value >>> 1) * 2.0 + (value & 1);
+  }
+
+
+  /**
+   * A 32 bit count can't be more than the bytes that are left
+   */
+  private int count(long size) {
+
+    if (size > end - pos) {
+      throw new IllegalArgumentException("Message cut short");
+    }
+
+    return (int) size;
+  }
+
+
+  private void need(int bytes) {
+
+    if (bytes > end - pos) {
+      throw new IllegalArgumentException("Message cut short");
+    }
+  }
+
+
+  private IllegalArgumentException bad(int b, String wanted) {
+    return new IllegalArgumentException("Expected " + wanted + " at byte " + (pos - 1) + ", got 0x" + Integer.toHexString(b));
+  }
+}
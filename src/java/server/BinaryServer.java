@@ -0,0 +1,550 @@
+package cst420.thread.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Purpose: Class serves the rpc methods of waypoint.json over a binary
+ *          protocol on a port of its own, -Dwaypoint.binary.port, for
+ *          clients that would rather not pay for http and json. Every
+ *          message is a 4 byte big endian length then MessagePack, shaped
+ *          the way MessagePack-RPC shapes them:
+ *
+ *            request      [0, msgid, method, params]
+ *            response     [1, msgid, error, result]
+ *            notification [2, method, params]
+ *            part         [3, msgid, elements]
+ *
+ *          error is nil or [code, message] with the json-rpc codes. A client
+ *          may send any number of requests without waiting, each is answered
+ *          in turn and tagged with its msgid, so one connection can carry the
+ *          calls of many threads. Answers to requests that were already
+ *          waiting are flushed together
+ *
+ *          A streamed result that is an array is sent as it is made, in parts
+ *          that each hold its next elements, then a response with a nil result
+ *          ends it. The client puts the elements of the parts back together.
+ *          A streamed result of any other shape is sent whole in its response
+ *
+ *          A frame that can't be read as a message ends the connection, there
+ *          is no msgid to answer it with
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class BinaryServer {
+
+  public final static int REQUEST      = 0;
+  public final static int RESPONSE     = 1;
+  public final static int NOTIFICATION = 2;
+  public final static int PART         = 3;
+
+  private final static int BACKLOG = 1024;
+  private final static int BUFFER  = 64 * 1024;
+
+  //MessagePack bytes a part of a streamed result holds before it is sent
+  private final static int PART_SIZE = 64 * 1024;
+
+  //How long a connection may sit without sending a frame
+  private final static int IDLE_TIMEOUT = Integer.getInteger("waypoint.binary.idle.timeout", 300000);
+
+  private final int port;
+  private final Executor handlers;
+
+
+  /**
+   * Constructor - Save the port and who runs each connection
+   */
+  public BinaryServer(int port, Executor handlers) {
+
+    this.port     = port;
+    this.handlers = handlers;
+  }
+
+
+  /**
+   * Listen, and accept connections on a thread of its own
+   */
+  public void start() throws IOException {
+
+    final ServerSocket server = new ServerSocket(port, BACKLOG);
+
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+
+        while (true) {
+
+          Socket socket = null;
+
+          try {
+
+            socket = server.accept();
+            handlers.execute(new Connection(socket));
+          } catch (RejectedExecutionException e) {
+
+            //No msgid to answer with, a busy server just hangs up
+            System.out.println("Binary handlers busy, connection closed");
+            closeQuietly(socket);
+          } catch (IOException e) {
+            System.out.println("Binary accept failed: " + e.getMessage());
+          }
+        }
+      }
+    }, "waypoint-binary-accept");
+
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    System.out.println("Binary protocol at port: " + port);
+  }
+
+
+  private static void closeQuietly(Socket socket) {
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      System.out.println("Error closing socket: " + e.getMessage());
+    }
+  }
+
+
+  /**
+   * Purpose: One client connection, read and answered frame by frame
+   */
+  private static class Connection implements Runnable {
+
+    private final Socket socket;
+    private final Server server       = new Server();
+    private final BinaryReader reader = new BinaryReader();
+    private final BinaryWriter writer = new BinaryWriter();
+    private final RpcParams params    = new RpcParams();
+
+    private byte[] frame = new byte[1024];
+
+
+    Connection(Socket socket) {
+      this.socket = socket;
+    }
+
+
+    public void run() {
+
+      ServerMetrics.opened();
+
+      try {
+
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(IDLE_TIMEOUT);
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+        OutputStream out   = new BufferedOutputStream(socket.getOutputStream(), BUFFER);
+
+        while (true) {
+
+          int size;
+
+          try {
+            size = in.readInt();
+          } catch (EOFException e) {
+            return;
+          }
+
+          if (size < 0 || size > Server.MAX_REQUEST) {
+            System.out.println("Binary frame of " + size + " bytes refused, closing");
+            return;
+          }
+
+          if (size > frame.length) {
+            frame = new byte[Math.max(size, frame.length * 2)];
+          }
+
+          in.readFully(frame, 0, size);
+
+          if (answer(size, out)) {
+            out.write(writer.getBytes(), 0, writer.getLength());
+          }
+
+          //Requests the client has already sent are answered before we flush
+          if (in.available() == 0) {
+            out.flush();
+          }
+        }
+      } catch (SocketTimeoutException e) {
+        //Idle too long, let it go
+      } catch (IOException e) {
+        //Client went away, nothing to answer
+      } finally {
+
+        ServerMetrics.closed();
+
+        try {
+          socket.close();
+        } catch (IOException e) {
+          System.out.println("Error closing socket: " + e.getMessage());
+        }
+      }
+    }
+
+
+    /**
+     * Run the call in the frame and leave its response in the writer,
+     * false for a notification, which is never answered. Parts of a
+     * streamed result are written to out as they are made
+     */
+    private boolean answer(int size, OutputStream out) throws IOException {
+
+      long msgid     = 0;
+      boolean notify = false;
+      long start     = System.nanoTime();
+      String method;
+
+      reader.reset(frame, 0, size);
+
+      try {
+
+        int fields = reader.readArrayHeader();
+        long type  = reader.readLong();
+
+        if (type == REQUEST && fields == 4) {
+          msgid = reader.readLong();
+        } else if (type == NOTIFICATION && fields == 3) {
+          notify = true;
+        } else {
+          throw new IOException("Not a request or notification");
+        }
+
+        method = reader.readString();
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Bad binary frame: " + e.getMessage(), e);
+      }
+
+      Object result = null;
+      int code      = 0;
+      String error  = null;
+
+      try {
+
+        //Nil is no params, like a json call without any
+        if (reader.isNil()) {
+          reader.readNil();
+          params.clear();
+        } else if (reader.isArray()) {
+          reader.readParams(params);
+        } else {
+          reader.skipValue();
+          code  = Server.INVALID_PARAMS;
+          error = "Params must be an array";
+        }
+
+        if (!reader.atEnd()) {
+          code  = Server.INVALID_REQUEST;
+          error = "Unexpected bytes after the message";
+        }
+      } catch (IllegalArgumentException e) {
+        code  = Server.INVALID_REQUEST;
+        error = e.getMessage();
+      }
+
+      long parsed              = System.nanoTime();
+      DispatchTable.Entry func = DispatchTable.getDefault().get(method);
+
+      ServerMetrics.phase(ServerMetrics.PARSE, parsed - start);
+
+      if (code == 0 && func == null) {
+        code  = Server.METHOD_NOT_FOUND;
+        error = "Method not found: " + method;
+      }
+
+      if (code == 0 && (error = func.checkParams(params)) != null) {
+        code = Server.INVALID_PARAMS;
+      }
+
+      if (code == 0) {
+
+        try {
+          result = func.invoke(server, params);
+        } catch (IllegalArgumentException e) {
+          code  = Server.INVALID_PARAMS;
+          error = e.getMessage();
+        } catch (Throwable e) {
+          System.out.println("Can't run " + method + "! " + e);
+          code  = Server.INTERNAL_ERROR;
+          error = "Internal error: " + e;
+        }
+      }
+
+      long ready = System.nanoTime();
+
+      ServerMetrics.phase(ServerMetrics.DISPATCH, ready - parsed);
+
+      if (!notify) {
+
+        try {
+          respond(msgid, code, error, result, out);
+        } catch (RuntimeException e) {
+          code = Server.INTERNAL_ERROR;
+          respond(msgid, code, "Internal error: " + e, null, out);
+        }
+      }
+
+      long end = System.nanoTime();
+
+      ServerMetrics.phase(ServerMetrics.SERIALIZE, end - ready);
+
+      if (func != null) {
+        ServerMetrics.call(method, end - parsed, code != 0);
+      }
+
+      return !notify;
+    }
+
+
+    private void respond(long msgid, int code, String error, Object result, OutputStream out) throws IOException {
+
+      byte[] whole = null;
+
+      if (result instanceof ResultStream) {
+        whole = writeParts(msgid, (ResultStream) result, out);
+      }
+
+      writer.beginFrame();
+      writer.beginArray().value(RESPONSE).value(msgid);
+
+      if (code != 0) {
+        writer.beginArray().value(code).value(error).endArray();
+      } else {
+        writer.nullValue();
+      }
+
+      if (whole != null) {
+        writer.transcode(whole, whole.length);
+      } else if (result instanceof ResultStream) {
+        writer.nullValue();
+      } else {
+        writer.value(result);
+      }
+
+      writer.endArray();
+      writer.frame();
+    }
+
+
+    /**
+     * Send a streamed array in parts as its json comes, each element read
+     * back as tokens once the whole of it is in. At least one part is sent,
+     * even for an empty array. Gives the json of a result that turns out
+     * not to be an array instead, for the response to carry
+     */
+    private byte[] writeParts(long msgid, ResultStream result, OutputStream out) throws IOException {
+
+      ArraySplitter split = new ArraySplitter();
+      byte[] piece;
+
+      beginPart(msgid);
+
+      while ((piece = result.next()) != null) {
+
+        split.add(piece);
+
+        while (split.next()) {
+
+          writer.transcode(split.getText(), split.getFrom(), split.getTo() - split.getFrom());
+
+          if (writer.getLength() >= PART_SIZE) {
+            endPart(out);
+            beginPart(msgid);
+          }
+        }
+      }
+
+      if (!split.isArray()) {
+        return split.whole();
+      }
+
+      endPart(out);
+
+      return null;
+    }
+
+
+    private void beginPart(long msgid) {
+
+      writer.beginFrame();
+      writer.beginArray().value(PART).value(msgid).beginArray();
+    }
+
+
+    private void endPart(OutputStream out) throws IOException {
+
+      writer.endArray().endArray();
+      writer.frame();
+
+      out.write(writer.getBytes(), 0, writer.getLength());
+    }
+  }
+
+
+  /**
+   * Purpose: Finds the elements of a json array as its text comes in pieces.
+   *          Only the text from the start of the element still coming in is
+   *          kept, so an array of any size costs about one piece. Text that
+   *          doesn't start with '[' is kept whole
+   */
+  private static class ArraySplitter {
+
+    private byte[] text = new byte[4096];
+    private int length;
+
+    //Next byte to look at, and where the element it is in started
+    private int scanned;
+    private int start;
+
+    private int depth;
+    private boolean quoted;
+    private boolean escaped;
+
+    //Nothing seen yet, seen an array, or seen anything else
+    private int shape;
+
+    private boolean done;
+
+    //Bounds of the element next() found
+    private int from;
+    private int to;
+
+
+    void add(byte[] piece) {
+
+      //What came before the element being read is not needed again
+      if (shape > 0 && start > 0) {
+
+        System.arraycopy(text, start, text, 0, length - start);
+
+        length  -= start;
+        scanned -= start;
+        start    = 0;
+      }
+
+      if (length + piece.length > text.length) {
+        text = Arrays.copyOf(text, Math.max(text.length * 2, length + piece.length));
+      }
+
+      System.arraycopy(piece, 0, text, length, piece.length);
+      length += piece.length;
+    }
+
+
+    /**
+     * Find the next whole element in the text so far, false when none is
+     * in yet
+     */
+    boolean next() {
+
+      while (scanned < length && !done && shape >= 0) {
+
+        int at = scanned++;
+        byte b = text[at];
+
+        if (quoted) {
+
+          if (escaped) {
+            escaped = false;
+          } else if (b == '\\') {
+            escaped = true;
+          } else if (b == '"') {
+            quoted = false;
+          }
+
+          continue;
+        }
+
+        if (shape == 0) {
+
+          if (isSpace(b)) {
+            continue;
+          }
+
+          shape = (b == '[') ? 1 : -1;
+          depth = 1;
+          start = at + 1;
+
+          continue;
+        }
+
+        if (b == '"') {
+          quoted = true;
+        } else if (b == '[' || b == '{') {
+          depth++;
+        } else if (b == ',' && depth == 1) {
+          return found(at, at + 1);
+        } else if ((b == ']' || b == '}') && --depth == 0) {
+          done = true;
+          return found(at, at + 1);
+        }
+      }
+
+      return false;
+    }
+
+
+    /**
+     * The element ending at end, false if there is only space there
+     */
+    private boolean found(int end, int next) {
+
+      from  = start;
+      to    = end;
+      start = next;
+
+      while (from < to && isSpace(text[from])) {
+        from++;
+      }
+
+      return from < to;
+    }
+
+
+    private static boolean isSpace(byte b) {
+      return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+
+    boolean isArray() {
+      return shape > 0;
+    }
+
+
+    byte[] getText() {
+      return text;
+    }
+
+
+    int getFrom() {
+      return from;
+    }
+
+
+    int getTo() {
+      return to;
+    }
+
+
+    /**
+     * All the text, when it wasn't an array
+     */
+    byte[] whole() {
+      return Arrays.copyOf(text, length);
+    }
+  }
+}
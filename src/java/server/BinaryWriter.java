@@ -0,0 +1,374 @@
+package cst420.thread.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class writes the tokens JsonWriter takes as MessagePack, so the
+ *          same JsonValue results go out on the binary port. Whole numbers
+ *          take the fewest bytes that hold them, doubles are always 8 bytes
+ *          wide and arrays and maps are always written with a 32 bit count,
+ *          which is filled in when they are closed since the tokens don't
+ *          say how many there are up front
+ *
+ *          Values JsonWriter would leave to org.json, and streamed results,
+ *          are written as their json text and read back in as tokens
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class BinaryWriter extends JsonWriter {
+
+  private final static int MAX_DEPTH = 64;
+
+  private byte[] buf = new byte[1024];
+  private int length;
+
+  //Where each open array or map's count goes, and the count so far
+  private final int[] starts = new int[MAX_DEPTH];
+  private final int[] counts = new int[MAX_DEPTH];
+  private int depth;
+
+  //A name was just written, its value is not counted again
+  private boolean named;
+
+  private final JsonReader text = new JsonReader();
+
+
+  /**
+   * Start over, keeping the buffer
+   */
+  public JsonWriter reset() {
+
+    length = 0;
+    depth  = 0;
+    named  = false;
+
+    return this;
+  }
+
+
+  public byte[] getBytes() {
+    return buf;
+  }
+
+
+  public int getLength() {
+    return length;
+  }
+
+
+  /**
+   * Leave room for a 4 byte length in front of the message, see frame()
+   */
+  public BinaryWriter beginFrame() {
+
+    reset();
+    length = 4;
+
+    return this;
+  }
+
+
+  /**
+   * Fill in the length of the message written since beginFrame()
+   */
+  public void frame() {
+
+    int size = length - 4;
+
+    buf[0] = (byte) (size >>> 24);
+    buf[1] = (byte) (size >>> 16);
+    buf[2] = (byte) (size >>> 8);
+    buf[3] = (byte) size;
+  }
+
+
+  public JsonWriter beginObject() {
+    return open(0xdf);
+  }
+
+
+  public JsonWriter endObject() {
+    return close();
+  }
+
+
+  public JsonWriter beginArray() {
+    return open(0xdd);
+  }
+
+
+  public JsonWriter endArray() {
+    return close();
+  }
+
+
+  public JsonWriter name(String name) {
+
+    count();
+    string(name);
+
+    named = true;
+
+    return this;
+  }
+
+
+  public JsonWriter value(String value) {
+
+    if (value == null) {
+      return nullValue();
+    }
+
+    count();
+    string(value);
+
+    return this;
+  }
+
+
+  public JsonWriter value(long value) {
+
+    count();
+
+    if (value >= -32 && value < 128) {
+      put(value);
+    } else if (value == (byte) value) {
+      put(0xd0).put(value);
+    } else if (value == (short) value) {
+      put(0xd1).putShort(value);
+    } else if (value == (int) value) {
+      put(0xd2).putInt(value);
+    } else {
+      put(0xd3).putInt(value >>> 32).putInt(value);
+    }
+
+    return this;
+  }
+
+
+  public JsonWriter value(double value) {
+
+    count();
+
+    long bits = Double.doubleToLongBits(value);
+
+    put(0xcb).putInt(bits >>> 32).putInt(bits);
+
+    return this;
+  }
+
+
+  public JsonWriter value(boolean value) {
+
+    count();
+    put(value ? 0xc3 : 0xc2);
+
+    return this;
+  }
+
+
+  public JsonWriter nullValue() {
+
+    count();
+    put(0xc0);
+
+    return this;
+  }
+
+
+  protected JsonWriter writeOther(Object value) {
+
+    byte[] json = JSONObject.valueToString(value).getBytes(StandardCharsets.UTF_8);
+
+    return transcode(json, json.length);
+  }
+
+
+  /**
+   * Write a value given as json text
+   */
+  public JsonWriter transcode(byte[] json, int size) {
+    return transcode(json, 0, size);
+  }
+
+
+  /**
+   * Same, from size bytes of json starting at offset
+   */
+  public JsonWriter transcode(byte[] json, int offset, int size) {
+
+    text.reset(json, offset, size);
+    transcode(0);
+    text.end();
+
+    return this;
+  }
+
+
+  private void transcode(int level) {
+
+    if (level > JsonReader.MAX_DEPTH) {
+      throw new IllegalStateException("Json nested deeper than " + JsonReader.MAX_DEPTH);
+    }
+
+    int first = text.peek();
+
+    if (first == '{') {
+
+      beginObject();
+
+      if (text.beginObject()) {
+        do {
+          name(text.nextName());
+          transcode(level + 1);
+        } while (text.more('}'));
+      }
+
+      endObject();
+    } else if (first == '[') {
+
+      beginArray();
+
+      if (text.beginArray()) {
+        do {
+          transcode(level + 1);
+        } while (text.more(']'));
+      }
+
+      endArray();
+    } else {
+      value(text.readValue());
+    }
+  }
+
+
+  private JsonWriter open(int marker) {
+
+    if (depth == MAX_DEPTH) {
+      throw new IllegalStateException("Nested deeper than " + MAX_DEPTH);
+    }
+
+    count();
+    put(marker);
+
+    starts[depth] = length;
+    counts[depth] = 0;
+    depth++;
+
+    return putInt(0);
+  }
+
+
+  private JsonWriter close() {
+
+    if (depth == 0) {
+      throw new IllegalStateException("Nothing open to close");
+    }
+
+    depth--;
+    named = false;
+
+    int at   = starts[depth];
+    int size = counts[depth];
+
+    buf[at]     = (byte) (size >>> 24);
+    buf[at + 1] = (byte) (size >>> 16);
+    buf[at + 2] = (byte) (size >>> 8);
+    buf[at + 3] = (byte) size;
+
+    return this;
+  }
+
+
+  /**
+   * One more element of the open array, or member of the open map
+   */
+  private void count() {
+
+    if (named) {
+      named = false;
+      return;
+    }
+
+    if (depth > 0) {
+      counts[depth - 1]++;
+    }
+  }
+
+
+  private void string(String value) {
+
+    int chars = value.length();
+    int ascii = 0;
+
+    while (ascii < chars && value.charAt(ascii) < 0x80) {
+      ascii++;
+    }
+
+    //Ascii, the common case, is a byte a char and needs no encoder
+    if (ascii == chars) {
+
+      stringHeader(chars);
+      room(chars);
+
+      for (int i = 0; i < chars; i++) {
+        buf[length++] = (byte) value.charAt(i);
+      }
+
+      return;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    stringHeader(bytes.length);
+    room(bytes.length);
+
+    System.arraycopy(bytes, 0, buf, length, bytes.length);
+    length += bytes.length;
+  }
+
+
+  private void stringHeader(int size) {
+
+    if (size < 32) {
+      put(0xa0 | size);
+    } else if (size < 256) {
+      put(0xd9).put(size);
+    } else if (size < 65536) {
+      put(0xda).putShort(size);
+    } else {
+      put(0xdb).putInt(size);
+    }
+  }
+
+
+  private void room(int bytes) {
+
+    if (length + bytes > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + bytes));
+    }
+  }
+
+
+  private BinaryWriter put(long b) {
+
+    room(1);
+    buf[length++] = (byte) b;
+
+    return this;
+  }
+
+
+  private BinaryWriter putShort(long value) {
+    return put(value >>> 8).put(value);
+  }
+
+
+  private BinaryWriter putInt(long value) {
+    return put(value >>> 24).put(value >>> 16).put(value >>> 8).put(value);
+  }
+}
@@ -0,0 +1,58 @@
+package cst420.thread.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Purpose: Class is a shared pool of same size heap buffers that responses
+ *          are encoded into, so a busy server reuses the same few buffers
+ *          instead of making new arrays for every answer. The pool holds at
+ *          most -Dwaypoint.buffer.pool buffers (default 1024) of
+ *          -Dwaypoint.buffer.size bytes (default 16K), when it is empty a
+ *          new one is made and when it is full a returned one is dropped
+ *
+ *          Heap rather than direct so the blocking transports can write the
+ *          arrays behind them straight to a socket stream
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class BufferPool {
+
+  public final static int BUFFER_SIZE = Integer.getInteger("waypoint.buffer.size", 16 * 1024);
+
+  private final static ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(Integer.getInteger("waypoint.buffer.pool", 1024));
+
+
+  private BufferPool() { }
+
+
+  /**
+   * A cleared buffer of BUFFER_SIZE bytes
+   */
+  public static ByteBuffer acquire() {
+
+    ByteBuffer buffer = free.poll();
+
+    if (buffer == null) {
+      return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    buffer.clear();
+
+    return buffer;
+  }
+
+
+  /**
+   * Give a buffer back once it has been written. Anything that didn't come
+   * from the pool, wrapped arrays and the like, is left alone. A buffer must
+   * only be given back once, nothing may touch it afterwards
+   */
+  public static void release(ByteBuffer buffer) {
+
+    if (buffer != null && buffer.capacity() == BUFFER_SIZE && buffer.hasArray() && !buffer.isReadOnly()) {
+      free.offer(buffer);
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package cst420.thread.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Purpose: Marks a Server rpc method whose result only depends on its params
+ *          and the library, so its json can be kept in the ResponseCache and
+ *          handed out again until the library next changes
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@interface Cached {
+
+  /**
+   * The call makes the waypoint named by its first param the active one,
+   * which still happens when the answer comes from the cache
+   */
+  boolean activates() default false;
+}
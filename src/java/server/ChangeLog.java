@@ -0,0 +1,297 @@
+package cst420.thread.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Purpose: Class remembers the latest changes to the library so a client
+ *          keeping its own copy can ask for just what changed since the
+ *          version it last saw, instead of loading every name again. Every
+ *          add, modify and remove moves the version on by one. The newest
+ *          -Dwaypoint.changes.keep changes are kept (default 10000), a client
+ *          further behind than that is told to load the library again
+ *
+ *          Versions start over when the server does, so they are handed out
+ *          with the epoch of the run that numbered them
+ *
+ *          A client with nothing new can watch for the next change instead
+ *          of asking again. A watch is just a future in a set, nothing waits
+ *          on a thread for it, and every watch is told of a burst of changes
+ *          by one wake up
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class ChangeLog implements WaypointStore.Listener {
+
+  private final static int KEEP = Integer.getInteger("waypoint.changes.keep", 10000);
+
+  private final long epoch = System.currentTimeMillis();
+
+  //Ring of the newest changes, the one numbered v at v % keep
+  private final int keep;
+  private final String[] names;
+  private final double[] lats;
+  private final double[] lons;
+  private final double[] eles;
+  private final boolean[] removed;
+
+  //Number of the newest change, guarded by this
+  private long version;
+
+  //What since() last found, watchers woken together mostly ask the same
+  private long lastFrom = -1;
+  private Changes lastChanges;
+
+  //Watches not done yet, and set while a wake up of them is on its way
+  private final Set<Watch> watchers = ConcurrentHashMap.<Watch>newKeySet();
+  private final AtomicBoolean waking = new AtomicBoolean();
+
+
+  public ChangeLog(WaypointStore store) {
+    this(store, KEEP);
+  }
+
+
+  public ChangeLog(WaypointStore store, int keep) {
+
+    this.keep    = Math.max(1, keep);
+    this.names   = new String[this.keep];
+    this.lats    = new double[this.keep];
+    this.lons    = new double[this.keep];
+    this.eles    = new double[this.keep];
+    this.removed = new boolean[this.keep];
+
+    store.addListener(this);
+  }
+
+
+  public long getEpoch() {
+    return epoch;
+  }
+
+
+  public synchronized long version() {
+    return version;
+  }
+
+
+  public void added(String name, int slot, double lat, double lon, double ele) {
+    append(name, false, lat, lon, ele);
+  }
+
+
+  public void replaced(String name, int slot, Waypoint before, double lat, double lon, double ele) {
+    append(name, false, lat, lon, ele);
+  }
+
+
+  public void removed(String name, int slot, Waypoint before) {
+    append(name, true, 0, 0, 0);
+  }
+
+
+  //Changes are kept by name, moving slots changes nothing
+  public void moved(int[] kept) { }
+
+
+  private void append(String name, boolean gone, double lat, double lon, double ele) {
+
+    synchronized (this) {
+
+      int at = (int) (++version % keep);
+
+      names[at]   = name;
+      lats[at]    = lat;
+      lons[at]    = lon;
+      eles[at]    = ele;
+      removed[at] = gone;
+    }
+
+    wake();
+  }
+
+
+  /**
+   * Future done once there is a change after version from, or once timeout
+   * ms pass without one. The jdk's one delay thread keeps the time for every
+   * watch. Cancel it to stop watching
+   */
+  public Watch watch(long from, long timeout) {
+
+    final Watch watch = new Watch(from);
+
+    watchers.add(watch);
+    ServerMetrics.watchStarted();
+
+    watch.whenComplete(new BiConsumer<Void, Throwable>() {
+      public void accept(Void done, Throwable failed) {
+        watchers.remove(watch);
+        ServerMetrics.watchDone();
+      }
+    });
+
+    watch.completeOnTimeout(null, timeout, TimeUnit.MILLISECONDS);
+
+    //A change may have come in before we were in the set
+    if (version() > from) {
+      watch.complete(null);
+    }
+
+    return watch;
+  }
+
+
+  /**
+   * Finish the watches behind the version, on the common pool so a change
+   * never pays for them while its name is locked. Every change made before
+   * the wake up runs is covered by it
+   */
+  private void wake() {
+
+    if (watchers.isEmpty() || !waking.compareAndSet(false, true)) {
+      return;
+    }
+
+    ForkJoinPool.commonPool().execute(new Runnable() {
+      public void run() {
+
+        waking.set(false);
+
+        long now = version();
+
+        for (Watch watch : watchers) {
+
+          if (watch.from < now) {
+            watch.complete(null);
+          }
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Changes after version from, only the latest for each name, in the order
+   * those happened. Null when from is negative, older than the oldest change
+   * kept, or newer than any made in this run
+   */
+  public synchronized Changes since(long from) {
+
+    if (from < 0 || from < version - keep || from > version) {
+      return null;
+    }
+
+    if (from == lastFrom && lastChanges.getVersion() == version) {
+      return lastChanges;
+    }
+
+    Map<String, Integer> latest = new LinkedHashMap<String, Integer>();
+
+    for (long v = from + 1; v <= version; v++) {
+
+      int at = (int) (v % keep);
+
+      //Moved to the end, where its latest change now is
+      latest.remove(names[at]);
+      latest.put(names[at], at);
+    }
+
+    Changes changes = new Changes(version, latest.size());
+
+    for (int at : latest.values()) {
+      changes.add(names[at], removed[at], lats[at], lons[at], eles[at]);
+    }
+
+    lastFrom    = from;
+    lastChanges = changes;
+
+    return changes;
+  }
+
+
+  /**
+   * Purpose: One client waiting for the library to move past the version
+   *          it has
+   */
+  static class Watch extends CompletableFuture<Void> {
+
+    private final long from;
+
+
+    Watch(long from) {
+      this.from = from;
+    }
+  }
+
+
+  /**
+   * Purpose: What since() found, copied out so it can be written as json
+   *          without holding the log. It is never changed once made, so
+   *          callers asking from the same version can share it
+   */
+  static class Changes implements JsonValue {
+
+    private final long version;
+    private final String[] names;
+    private final Waypoint[] points;
+    private int count;
+
+
+    Changes(long version, int size) {
+
+      this.version = version;
+      this.names   = new String[size];
+      this.points  = new Waypoint[size];
+    }
+
+
+    void add(String name, boolean gone, double lat, double lon, double ele) {
+
+      names[count]  = name;
+      points[count] = gone ? null : new Waypoint(lat, lon, ele);
+      count++;
+    }
+
+
+    public long getVersion() {
+      return version;
+    }
+
+
+    public int size() {
+      return count;
+    }
+
+
+    /**
+     * Each change as a point under its name, or removed
+     */
+    public void writeJSON(JsonWriter out) {
+
+      out.beginArray();
+
+      for (int i = 0; i < count; i++) {
+
+        out.beginObject().name("name").value(names[i]);
+
+        if (points[i] == null) {
+          out.name("removed").value(true);
+        } else {
+          points[i].writeFields(out);
+        }
+
+        out.endObject();
+      }
+
+      out.endArray();
+    }
+  }
+}
@@ -0,0 +1,434 @@
+package cst420.thread.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Purpose: Class holds what the server knows of http content codings. It
+ *          picks gzip or deflate from a client's Accept-Encoding, lends out
+ *          pooled Deflaters, and decodes request bodies a client compressed
+ *
+ *          Everything is deflated raw and framed here, a gzip or zlib header
+ *          in front and its checksum behind, so a result deflated once can be
+ *          kept (see Fragment) and sent again inside any envelope. Bodies
+ *          under -Dwaypoint.compress.min bytes (default 1024) are sent as
+ *          they are, a negative size turns compression off
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class ContentCoding {
+
+  public final static int IDENTITY = 0;
+  public final static int GZIP     = 1;
+  public final static int DEFLATE  = 2;
+
+  public final static int MIN_SIZE = Integer.getInteger("waypoint.compress.min", 1024);
+
+  private final static int LEVEL = Integer.getInteger("waypoint.compress.level", 6);
+
+  private final static byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+  private final static byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+
+  private final static ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(Integer.getInteger("waypoint.compress.pool", 64));
+
+
+  private ContentCoding() { }
+
+
+  /**
+   * Coding to answer with for an Accept-Encoding header, gzip if the client
+   * takes it, then deflate, then none. A q of 0 turns a coding down
+   */
+  public static int negotiate(String accept) {
+
+    if (accept == null || MIN_SIZE < 0) {
+      return IDENTITY;
+    }
+
+    boolean gzip    = false;
+    boolean deflate = false;
+
+    for (String part : accept.split(",")) {
+
+      int semi    = part.indexOf(';');
+      String name = ((semi < 0) ? part : part.substring(0, semi)).trim().toLowerCase();
+
+      if (semi >= 0 && isRefused(part.substring(semi + 1))) {
+        continue;
+      }
+
+      if (name.equals("gzip") || name.equals("x-gzip") || name.equals("*")) {
+        gzip = true;
+      } else if (name.equals("deflate")) {
+        deflate = true;
+      }
+    }
+
+    return gzip ? GZIP : (deflate ? DEFLATE : IDENTITY);
+  }
+
+
+  private static boolean isRefused(String params) {
+
+    for (String param : params.split(";")) {
+
+      String text = param.trim().toLowerCase();
+
+      if (text.startsWith("q=")) {
+
+        try {
+          return Double.parseDouble(text.substring(2).trim()) <= 0;
+        } catch (NumberFormatException e) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Value of the Content-Encoding header for a coding
+   */
+  public static String name(int coding) {
+    return (coding == GZIP) ? "gzip" : (coding == DEFLATE) ? "deflate" : "identity";
+  }
+
+
+  /**
+   * A raw Deflater, reset and ready. Give it back with release()
+   */
+  public static Deflater acquire() {
+
+    Deflater deflater = deflaters.poll();
+
+    if (deflater == null) {
+      return new Deflater(LEVEL, true);
+    }
+
+    return deflater;
+  }
+
+
+  public static void release(Deflater deflater) {
+
+    deflater.reset();
+
+    if (!deflaters.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+
+  /**
+   * Bytes that go in front of a deflated body
+   */
+  public static byte[] header(int coding) {
+    return (coding == GZIP) ? GZIP_HEADER : ZLIB_HEADER;
+  }
+
+
+  /**
+   * Checksum a body is ended with, crc32 for gzip and adler32 for zlib
+   */
+  public static Checksum checksum(int coding) {
+    return (coding == GZIP) ? new CRC32() : new Adler32();
+  }
+
+
+  /**
+   * Bytes that go after a deflated body of length bytes
+   */
+  public static byte[] trailer(int coding, long check, long length) {
+
+    if (coding == GZIP) {
+      return new byte[] { (byte) check, (byte) (check >>> 8), (byte) (check >>> 16), (byte) (check >>> 24),
+                          (byte) length, (byte) (length >>> 8), (byte) (length >>> 16), (byte) (length >>> 24) };
+    }
+
+    return new byte[] { (byte) (check >>> 24), (byte) (check >>> 16), (byte) (check >>> 8), (byte) check };
+  }
+
+
+  /**
+   * A stored (not compressed) deflate block holding bytes, the last
+   * block of the body when last is set
+   */
+  public static void putStored(ByteBuffer out, byte[] bytes, boolean last) {
+
+    int length = bytes.length;
+
+    out.put((byte) (last ? 1 : 0));
+    out.put((byte) length).put((byte) (length >>> 8));
+    out.put((byte) ~length).put((byte) (~length >>> 8));
+    out.put(bytes);
+  }
+
+
+  /**
+   * Checksum of bytes for a coding, as a trailer would hold it
+   */
+  public static long check(int coding, byte[] bytes) {
+
+    Checksum sum = checksum(coding);
+
+    sum.update(bytes, 0, bytes.length);
+
+    return sum.getValue();
+  }
+
+
+  /**
+   * Checksum of two runs one after the other, from the checksum of each
+   * and the length of the second, so a kept fragment is never read again
+   */
+  public static long combine(int coding, long first, long second, long length) {
+    return (coding == GZIP) ? combineCRC(first, second, length) : combineAdler(first, second, length);
+  }
+
+
+  /**
+   * As zlib's adler32_combine
+   */
+  private static long combineAdler(long first, long second, long length) {
+
+    final long base = 65521;
+
+    long rem  = length % base;
+    long sum1 = first & 0xffff;
+    long sum2 = (rem * sum1) % base;
+
+    sum1 += (second & 0xffff) + base - 1;
+    sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + base - rem;
+
+    if (sum1 >= base) sum1 -= base;
+    if (sum1 >= base) sum1 -= base;
+    if (sum2 >= (base << 1)) sum2 -= (base << 1);
+    if (sum2 >= base) sum2 -= base;
+
+    return sum1 | (sum2 << 16);
+  }
+
+
+  /**
+   * As zlib's crc32_combine, shifting the first crc through length zero
+   * bytes by squaring the one zero bit operator
+   */
+  private static long combineCRC(long first, long second, long length) {
+
+    if (length <= 0) {
+      return first;
+    }
+
+    long[] even = new long[32];
+    long[] odd  = new long[32];
+
+    odd[0]   = 0xedb88320L;
+    long row = 1;
+
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row  <<= 1;
+    }
+
+    //Operators for two then four zero bits
+    square(even, odd);
+    square(odd, even);
+
+    do {
+
+      square(even, odd);
+
+      if ((length & 1) != 0) {
+        first = times(even, first);
+      }
+
+      length >>>= 1;
+
+      if (length == 0) {
+        break;
+      }
+
+      square(odd, even);
+
+      if ((length & 1) != 0) {
+        first = times(odd, first);
+      }
+
+      length >>>= 1;
+    } while (length != 0);
+
+    return first ^ second;
+  }
+
+
+  private static long times(long[] matrix, long vector) {
+
+    long sum = 0;
+
+    for (int i = 0; vector != 0; i++, vector >>>= 1) {
+
+      if ((vector & 1) != 0) {
+        sum ^= matrix[i];
+      }
+    }
+
+    return sum;
+  }
+
+
+  private static void square(long[] square, long[] matrix) {
+
+    for (int n = 0; n < 32; n++) {
+      square[n] = times(matrix, matrix[n]);
+    }
+  }
+
+
+  /**
+   * Decode a request body sent with a Content-Encoding, no bigger than max
+   * bytes once decoded
+   */
+  public static byte[] decode(String coding, byte[] body, int length, int max) throws HttpRequestParser.ParseException {
+
+    String name = coding.trim().toLowerCase();
+
+    if (name.equals("identity") || name.length() == 0) {
+      return Arrays.copyOf(body, length);
+    }
+
+    try {
+
+      InputStream in;
+
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        in = new GZIPInputStream(new ByteArrayInputStream(body, 0, length));
+      } else if (name.equals("deflate")) {
+
+        //Deflate means zlib, but some clients send it raw
+        boolean zlib = length >= 2 && (body[0] & 0x0f) == 8 && ((body[0] & 0xff) * 256 + (body[1] & 0xff)) % 31 == 0;
+
+        in = new InflaterInputStream(new ByteArrayInputStream(body, 0, length), new Inflater(!zlib));
+      } else {
+        throw new HttpRequestParser.ParseException(415, "Unsupported Media Type");
+      }
+
+      byte[] decoded = new byte[Math.min(max, Math.max(1024, length * 4))];
+      int size       = 0;
+      int count;
+
+      while ((count = in.read(decoded, size, decoded.length - size)) >= 0) {
+
+        size += count;
+
+        if (size == decoded.length) {
+
+          if (size == max) {
+
+            if (in.read() < 0) {
+              break;
+            }
+
+            throw new HttpRequestParser.ParseException(413, "Payload Too Large");
+          }
+
+          decoded = Arrays.copyOf(decoded, (int) Math.min(max, size * 2L));
+        }
+      }
+
+      in.close();
+
+      return Arrays.copyOf(decoded, size);
+    } catch (HttpRequestParser.ParseException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new HttpRequestParser.ParseException(400, "Bad Request");
+    }
+  }
+
+
+  /**
+   * Purpose: A result deflated on its own, ending on a byte boundary without
+   *          a last block, so it can be framed between any envelope head and
+   *          tail. Its checksums and length let the body's checksum be worked
+   *          out without reading it again
+   */
+  static class Fragment {
+
+    private final byte[] deflated;
+    private final long length;
+    private final long crc;
+    private final long adler;
+
+
+    /**
+     * Constructor - Deflate a json result
+     */
+    Fragment(String json) {
+
+      byte[] text = json.getBytes(StandardCharsets.UTF_8);
+
+      this.length = text.length;
+      this.crc    = check(GZIP, text);
+      this.adler  = check(DEFLATE, text);
+
+      Deflater deflater = acquire();
+
+      try {
+
+        byte[] out = new byte[Math.max(64, text.length / 2)];
+        int size   = 0;
+
+        deflater.setInput(text);
+
+        while (true) {
+
+          size += deflater.deflate(out, size, out.length - size, Deflater.SYNC_FLUSH);
+
+          //Only a full buffer can mean there is more to come
+          if (size < out.length) {
+            break;
+          }
+
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+
+        this.deflated = Arrays.copyOf(out, size);
+      } finally {
+        release(deflater);
+      }
+    }
+
+
+    public byte[] getDeflated() {
+      return deflated;
+    }
+
+
+    /**
+     * Length of the result before it was deflated
+     */
+    public long getLength() {
+      return length;
+    }
+
+
+    public long getCheck(int coding) {
+      return (coding == GZIP) ? crc : adler;
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package cst420.thread.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Purpose: Class holds the rpc methods the server answers, built once from
+ *          the method descriptions in waypoint.json. Each method is bound to
+ *          a MethodHandle on Server with one shape, (Server, RpcParams)Object,
+ *          so a call is a hash lookup, an argument check and invokeExact
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class DispatchTable {
+
+  //Resource the method descriptions are read from unless told otherwise
+  public final static String DEFAULT_SPEC = "waypoint.json";
+
+  private final static MethodType RPC_TYPE  = MethodType.methodType(Object.class, Server.class, RpcParams.class);
+
+  private static volatile DispatchTable defaultTable;
+
+  private final Map<String, Entry> methods;
+
+
+  private DispatchTable(Map<String, Entry> methods) {
+    this.methods = Collections.unmodifiableMap(methods);
+  }
+
+
+  /**
+   * The table for the spec file named by -Dwaypoint.spec, or the spec on
+   * the classpath when none is named, loaded on first use. A waypoint.json
+   * in the working directory is only read when it is named
+   */
+  public static DispatchTable getDefault() {
+
+    DispatchTable table = defaultTable;
+
+    if (table == null) {
+
+      synchronized (DispatchTable.class) {
+
+        if (defaultTable == null) {
+
+          String spec = System.getProperty("waypoint.spec");
+
+          try {
+            defaultTable = (spec == null) ? loadResource(DEFAULT_SPEC) : load(spec);
+          } catch (IOException e) {
+            throw new IllegalStateException("Can't load rpc methods: " + e.getMessage(), e);
+          }
+        }
+
+        table = defaultTable;
+      }
+    }
+
+    return table;
+  }
+
+
+  /**
+   * Read the method descriptions from a file and bind each one to its
+   * Server method
+   */
+  public static DispatchTable load(String spec) throws IOException {
+
+    File file = new File(spec);
+
+    if (!file.isFile()) {
+      throw new IOException("No method spec at " + file.getAbsolutePath());
+    }
+
+    return read(new FileInputStream(file));
+  }
+
+
+  /**
+   * Same, from a resource on the classpath
+   */
+  public static DispatchTable loadResource(String name) throws IOException {
+
+    InputStream in = DispatchTable.class.getResourceAsStream("/" + name);
+
+    if (in == null) {
+      throw new IOException("No method spec " + name + " on the classpath, name a file with -Dwaypoint.spec");
+    }
+
+    return read(in);
+  }
+
+
+  private static DispatchTable read(InputStream in) throws IOException {
+
+    JSONArray described;
+
+    try {
+      described = new JSONArray(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    } finally {
+      in.close();
+    }
+
+    Map<String, Entry> methods = new HashMap<String, Entry>();
+
+    for (int i = 0; i < described.length(); i++) {
+
+      JSONObject desc = described.getJSONObject(i);
+      String name     = desc.getString("method");
+      JSONArray args  = desc.isNull("params") ? new JSONArray() : desc.getJSONArray("params");
+
+      boolean takesParams = args.length() > 0;
+
+      Method method = find(name, takesParams);
+
+      methods.put(name, new Entry(name, bind(name, takesParams), paramTypes(args), method.isAnnotationPresent(ReadOnly.class), method.getAnnotation(Cached.class)));
+    }
+
+    return new DispatchTable(methods);
+  }
+
+
+  /**
+   * Methods that take params are looked up as name(RpcParams), the rest as
+   * name(). Both are adapted to the one shape the table invokes
+   */
+  private static MethodHandle bind(String name, boolean takesParams) throws IOException {
+
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    try {
+
+      MethodHandle handle;
+
+      if (takesParams) {
+        handle = lookup.findVirtual(Server.class, name, MethodType.methodType(findReturn(name, RpcParams.class), RpcParams.class));
+      } else {
+        handle = lookup.findVirtual(Server.class, name, MethodType.methodType(findReturn(name)));
+        handle = MethodHandles.dropArguments(handle, 1, RpcParams.class);
+      }
+
+      return handle.asType(RPC_TYPE);
+    } catch (NoSuchMethodException e) {
+      throw new IOException("Server has no method for " + name, e);
+    } catch (IllegalAccessException e) {
+      throw new IOException("Server method " + name + " is not accessible", e);
+    }
+  }
+
+
+  private static Class<?> findReturn(String name, Class<?>... params) throws NoSuchMethodException {
+    return Server.class.getMethod(name, params).getReturnType();
+  }
+
+
+  private static Method find(String name, boolean takesParams) throws IOException {
+
+    try {
+
+      if (takesParams) {
+        return Server.class.getMethod(name, RpcParams.class);
+      }
+
+      return Server.class.getMethod(name);
+    } catch (NoSuchMethodException e) {
+      throw new IOException("Server has no method for " + name, e);
+    }
+  }
+
+
+  /**
+   * The spec gives an example value for each param, a string or a number,
+   * which is all we need to check the arguments a client sends
+   */
+  private static Class<?>[] paramTypes(JSONArray args) {
+
+    Class<?>[] types = new Class<?>[args.length()];
+
+    for (int i = 0; i < args.length(); i++) {
+      types[i] = (args.get(i) instanceof Number) ? Number.class : args.get(i).getClass();
+    }
+
+    return types;
+  }
+
+
+  /**
+   * Method registered under a name, or null when there is none
+   */
+  public Entry get(String method) {
+    return methods.get(method);
+  }
+
+
+  /**
+   * Purpose: One rpc method, its handle and the argument types it expects
+   */
+  static class Entry {
+
+    private final String name;
+    private final MethodHandle handle;
+    private final Class<?>[] params;
+    private final boolean readOnly;
+    private final Cached cached;
+
+
+    Entry(String name, MethodHandle handle, Class<?>[] params, boolean readOnly, Cached cached) {
+
+      this.name     = name;
+      this.handle   = handle;
+      this.params   = params;
+      this.readOnly = readOnly;
+      this.cached   = cached;
+    }
+
+
+    public String getName() {
+      return name;
+    }
+
+
+    /**
+     * True when the Server method is marked @ReadOnly
+     */
+    public boolean isReadOnly() {
+      return readOnly;
+    }
+
+
+    /**
+     * True when the Server method is marked @Cached
+     */
+    public boolean isCached() {
+      return cached != null;
+    }
+
+
+    /**
+     * True when a call makes its first param the active waypoint
+     */
+    public boolean activates() {
+      return cached != null && cached.activates();
+    }
+
+
+    /**
+     * Null when the arguments fit, otherwise why they don't
+     */
+    public String checkParams(RpcParams args) {
+
+      if (args.length() != params.length) {
+        return name + " expects " + params.length + " params, got " + args.length();
+      }
+
+      for (int i = 0; i < params.length; i++) {
+
+        if (!args.isInstance(i, params[i])) {
+          return name + " param " + i + " must be a " + params[i].getSimpleName().toLowerCase();
+        }
+      }
+
+      return null;
+    }
+
+
+    public Object invoke(Server server, RpcParams args) throws Throwable {
+      return (Object) handle.invokeExact(server, args);
+    }
+  }
+}
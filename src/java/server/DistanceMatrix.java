@@ -0,0 +1,214 @@
+package cst420.thread.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Purpose: Class streams a distance/bearing matrix as json, one row per
+ *          origin and one [distance, bearing] pair per destination. Rows are
+ *          made a block at a time on the common fork/join pool, and the next
+ *          block is worked on while the transport writes the last one, so
+ *          memory stays at about two blocks however big the matrix is. Each
+ *          row is one pass of the GeodesyKernel over the destinations
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class DistanceMatrix implements ResultStream {
+
+  //Pairs per block handed to the transport
+  private final static int BLOCK_CELLS = Integer.getInteger("waypoint.matrix.block", 128 * 1024);
+
+  //Pairs one fork/join task works out before it stops splitting
+  private final static int SPLIT_CELLS = 4096;
+
+  private final GeodesyKernel kernel = GeodesyKernel.getDefault();
+
+  //Trig of the origins and destinations, gathered so each row runs over arrays
+  private final GeodesyKernel.Points origins;
+  private final GeodesyKernel.Points destinations;
+
+  private final int rows;
+  private final int cols;
+  private final int scale;
+  private final int rowsPerBlock;
+
+  //First row of the block being worked on
+  private int row;
+
+  private ForkJoinTask<byte[]> ahead;
+  private boolean done;
+
+
+  /**
+   * Constructor - Points are copies, later changes to the library
+   * don't show up part way through the matrix
+   */
+  public DistanceMatrix(GeodesyKernel.Points origins, GeodesyKernel.Points destinations, int scale) {
+
+    this.origins      = origins;
+    this.destinations = destinations;
+    this.rows         = origins.capacity();
+    this.cols         = destinations.capacity();
+    this.scale        = scale;
+    this.rowsPerBlock = Math.max(1, BLOCK_CELLS / Math.max(1, cols));
+  }
+
+
+  public byte[] next() {
+
+    if (done) {
+      return null;
+    }
+
+    if (rows == 0) {
+      done = true;
+      return "[]".getBytes(StandardCharsets.US_ASCII);
+    }
+
+    if (ahead == null) {
+      ahead = ForkJoinPool.commonPool().submit(new Block(row));
+    }
+
+    byte[] text = ahead.join();
+
+    row += rowsPerBlock;
+
+    if (row < rows) {
+      ahead = ForkJoinPool.commonPool().submit(new Block(row));
+    } else {
+      ahead = null;
+      done  = true;
+    }
+
+    return text;
+  }
+
+
+  /**
+   * One row as [[distance,bearing],...]
+   */
+  private byte[] row(int i, double[] angles, double[] bearings) {
+
+    kernel.angles(origins, i, destinations, cols, angles);
+    kernel.bearings(origins, i, destinations, cols, bearings);
+
+    StringBuilder text = new StringBuilder(cols * 40 + 2);
+
+    text.append('[');
+
+    for (int j = 0; j < cols; j++) {
+
+      if (j > 0) {
+        text.append(',');
+      }
+
+      text.append('[')
+          .append(GreatCircle.fromKilometers(Server.radiusE * angles[j], scale))
+          .append(',')
+          .append(bearings[j])
+          .append(']');
+    }
+
+    return text.append(']').toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+
+  /**
+   * Purpose: The json for rows [from, from + rowsPerBlock), with the
+   *          comma or bracket that joins it to the blocks either side
+   */
+  private class Block extends RecursiveTask<byte[]> {
+
+    private final static long serialVersionUID = 1L;
+
+    private final int from;
+
+
+    Block(int from) {
+      this.from = from;
+    }
+
+
+    protected byte[] compute() {
+
+      int to       = Math.min(rows, from + rowsPerBlock);
+      byte[][] out = new byte[to - from][];
+
+      new Rows(from, from, to, out).invoke();
+
+      int size = out.length + 1;
+
+      for (byte[] text : out) {
+        size += text.length;
+      }
+
+      byte[] block = new byte[size];
+      int pos      = 0;
+
+      for (int i = 0; i < out.length; i++) {
+
+        //Opening bracket before the first row, commas between the rest
+        block[pos++] = (byte) ((from + i == 0) ? '[' : ',');
+
+        System.arraycopy(out[i], 0, block, pos, out[i].length);
+        pos += out[i].length;
+      }
+
+      if (to == rows) {
+        block[pos++] = ']';
+      }
+
+      return (pos == size) ? block : Arrays.copyOf(block, pos);
+    }
+  }
+
+
+  /**
+   * Purpose: Splits a run of rows in half until each piece is small enough
+   */
+  private class Rows extends RecursiveAction {
+
+    private final static long serialVersionUID = 1L;
+
+    //First row of the block, out[0] holds its text
+    private final int base;
+
+    private final int from;
+    private final int to;
+    private final byte[][] out;
+
+
+    Rows(int base, int from, int to, byte[][] out) {
+
+      this.base = base;
+      this.from = from;
+      this.to   = to;
+      this.out  = out;
+    }
+
+
+    protected void compute() {
+
+      if (to - from == 1 || (long) (to - from) * cols <= SPLIT_CELLS) {
+
+        double[] angles   = new double[cols];
+        double[] bearings = new double[cols];
+
+        for (int i = from; i < to; i++) {
+          out[i - base] = row(i, angles, bearings);
+        }
+
+        return;
+      }
+
+      int mid = (from + to) >>> 1;
+
+      invokeAll(new Rows(base, from, mid, out), new Rows(base, mid, to, out));
+    }
+  }
+}
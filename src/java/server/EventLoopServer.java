@@ -0,0 +1,610 @@
+package cst420.thread.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Purpose: Class is a second transport for the waypoint server. Instead of
+ *          a thread per connection, a single acceptor hands sockets to a small
+ *          fixed set of selector loops which read complete http requests
+ *          without blocking and pass them to the Server dispatch logic
+ *
+ *          A call that waits for the library to change is parked, its
+ *          connection just sits on the loop until the call is ready, so
+ *          thousands of clients can wait without a thread each. A request
+ *          that writes is parked the same way while a writer thread runs it,
+ *          so the loop never waits for the log to sync
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class EventLoopServer {
+
+  //Pending connections the os will queue for us while we are busy
+  private final static int BACKLOG = 1024;
+
+  //Bytes read per selector wakeup, shared by every connection on a loop
+  private final static int READ_SIZE = 64 * 1024;
+
+  //How long a client may take to finish sending a request it started
+  private final static int READ_TIMEOUT = Integer.getInteger("waypoint.read.timeout", 30000);
+
+  //How often each loop looks for connections that have gone quiet
+  private final static int SWEEP_INTERVAL = 1000;
+
+  private final int port;
+  private final IoLoop[] loops;
+
+  //Shared by the loops, runs the requests that write
+  private final Executor writers = HandlerExecutors.writers();
+
+
+  /**
+   * Constructor - Save the port and setup the io loops
+   */
+  public EventLoopServer(int port, int ioThreads) {
+
+    this.port  = port;
+    this.loops = new IoLoop[Math.max(1, ioThreads)];
+  }
+
+
+  /**
+   * Start the io loops and accept connections forever, spreading
+   * them round robin across the loops
+   */
+  public void serve() throws IOException {
+
+    for (int i = 0; i < loops.length; i++) {
+
+      loops[i] = new IoLoop(writers);
+
+      Thread thread = new Thread(loops[i], "waypoint-io-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port), BACKLOG);
+
+    System.out.println("Connected at port: " + port + " (nio, " + loops.length + " io threads)");
+
+    int next = 0;
+
+    while (true) {
+
+      SocketChannel channel = server.accept();
+
+      loops[next].register(channel);
+      next = (next + 1) % loops.length;
+    }
+  }
+
+
+  /**
+   * Purpose: One selector thread. Owns every connection registered to it,
+   *          so connection state is never shared between threads
+   */
+  private static class IoLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+    private final Queue<Runnable> tasks        = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer readBuffer        = ByteBuffer.allocateDirect(READ_SIZE);
+
+    //Only the dispatch logic is used, the loop owns the sockets
+    private final Server handler = new Server();
+
+
+    IoLoop(Executor writers) throws IOException {
+      this.selector = Selector.open();
+      handler.parkCalls(writers);
+    }
+
+
+    /**
+     * Called from the acceptor thread, the channel is registered
+     * by the loop itself on its next wakeup
+     */
+    void register(SocketChannel channel) {
+
+      pending.add(channel);
+      selector.wakeup();
+    }
+
+
+    /**
+     * Run a task on the loop thread on its next wakeup, the only safe
+     * way for another thread to touch a connection
+     */
+    void post(Runnable task) {
+
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+
+    public void run() {
+
+      long lastSweep = System.currentTimeMillis();
+
+      try {
+
+        while (true) {
+
+          selector.select(SWEEP_INTERVAL);
+
+          registerPending();
+          runTasks();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+          while (keys.hasNext()) {
+
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            try {
+
+              if (!key.isValid()) {
+                continue;
+              }
+
+              if (key.isReadable()) {
+                read(key);
+              } else if (key.isWritable()) {
+                write(key);
+              }
+            } catch (IOException ex) {
+              close(key);
+            } catch (RuntimeException ex) {
+              System.out.println("Can't handle request! " + ex.getMessage());
+              close(key);
+            }
+          }
+
+          long now = System.currentTimeMillis();
+
+          if (now - lastSweep >= SWEEP_INTERVAL) {
+            closeIdle(now);
+            lastSweep = now;
+          }
+        }
+      } catch (IOException ex) {
+        System.out.println("Selector failed! " + ex.getMessage());
+      } catch (ClosedSelectorException ex) {
+        System.out.println("Selector closed! " + ex.getMessage());
+      }
+    }
+
+
+    private void registerPending() {
+
+      SocketChannel channel;
+
+      while ((channel = pending.poll()) != null) {
+
+        try {
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          channel.register(selector, SelectionKey.OP_READ, new Connection());
+          ServerMetrics.opened();
+        } catch (IOException ex) {
+          System.out.println("Can't register connection! " + ex.getMessage());
+          closeQuietly(channel);
+        }
+      }
+    }
+
+
+    private void runTasks() {
+
+      Runnable task;
+
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+
+
+    /**
+     * Drop connections that have sat too long, either idle between
+     * requests or part way through sending one
+     */
+    private void closeIdle(long now) {
+
+      for (SelectionKey key : selector.keys()) {
+
+        Connection conn = (Connection) key.attachment();
+
+        if (conn == null || !conn.output.isEmpty() || conn.stream != null || conn.parked != null) {
+          continue;
+        }
+
+        long limit = conn.parser.isEmpty() ? Server.KEEPALIVE_TIMEOUT : READ_TIMEOUT;
+
+        if (now - conn.lastActive >= limit) {
+          close(key);
+        }
+      }
+    }
+
+
+    /**
+     * Read what is available into the loop's shared buffer and feed it to
+     * the connection's parser, which keeps any partial request itself
+     */
+    private void read(SelectionKey key) throws IOException {
+
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn       = (Connection) key.attachment();
+
+      readBuffer.clear();
+
+      int count = channel.read(readBuffer);
+
+      if (count < 0) {
+        close(key);
+        return;
+      }
+
+      if (count == 0) {
+        return;
+      }
+
+      conn.lastActive = System.currentTimeMillis();
+
+      readBuffer.flip();
+
+      //Still reading while parked, to notice the client leave, but what
+      //comes waits behind the parked call
+      if (conn.parked != null) {
+
+        setAside(conn, readBuffer);
+
+        if (conn.leftover.remaining() > Server.MAX_REQUEST) {
+          close(key);
+        }
+
+        return;
+      }
+
+      process(key, conn, readBuffer);
+    }
+
+
+    /**
+     * Answer every complete request in the buffer in order, then
+     * start writing the responses
+     */
+    private void process(SelectionKey key, Connection conn, ByteBuffer src) throws IOException {
+
+      HttpRequestParser request = conn.parser;
+
+      try {
+
+        while (!conn.closing) {
+
+          //Timed from the first byte of the request in
+          if (request.isEmpty()) {
+            conn.readStart = System.nanoTime();
+          }
+
+          if (!request.feed(src)) {
+            break;
+          }
+
+          ServerMetrics.phase(ServerMetrics.READ, System.nanoTime() - conn.readStart);
+
+          conn.served++;
+
+          boolean keepAlive     = request.isKeepAlive() && conn.served < Server.KEEPALIVE_MAX;
+          HttpResponse response = handler.handleRequest(request, keepAlive);
+
+          conn.closing = !keepAlive;
+
+          request.reset();
+
+          //Answered once ready, later pipelined requests wait for it
+          if (response == null) {
+            park(key, conn, handler.takeParked());
+            setAside(conn, src);
+            break;
+          }
+
+          queue(conn, response);
+
+          //Later pipelined requests wait until the whole body is out
+          if (response.isStreamed()) {
+            conn.stream = response.getBody();
+            setAside(conn, src);
+            break;
+          }
+        }
+      } catch (HttpRequestParser.ParseException ex) {
+
+        queue(conn, handler.errorResponse(ex.getStatus(), ex.getMessage()));
+        conn.closing = true;
+      }
+
+      if (!conn.output.isEmpty()) {
+        write(key);
+      }
+    }
+
+
+    /**
+     * Keep bytes of requests behind one still being answered, the read
+     * buffer is shared
+     */
+    private void setAside(Connection conn, ByteBuffer src) {
+
+      if (!src.hasRemaining()) {
+        return;
+      }
+
+      int kept       = (conn.leftover == null) ? 0 : conn.leftover.remaining();
+      ByteBuffer all = ByteBuffer.allocate(kept + src.remaining());
+
+      if (conn.leftover != null) {
+        all.put(conn.leftover);
+      }
+
+      all.put(src).flip();
+      conn.leftover = all;
+    }
+
+
+    /**
+     * Hold the connection until the parked call is ready, when the loop
+     * is asked to answer it. Nothing runs for it until then
+     */
+    private void park(final SelectionKey key, final Connection conn, final Server.Parked call) {
+
+      conn.parked = call;
+
+      call.getReady().thenRun(new Runnable() {
+        public void run() {
+
+          post(new Runnable() {
+            public void run() {
+              unpark(key, conn, call);
+            }
+          });
+        }
+      });
+    }
+
+
+    private void unpark(SelectionKey key, Connection conn, Server.Parked call) {
+
+      if (!key.isValid() || conn.parked != call) {
+        return;
+      }
+
+      conn.parked = null;
+
+      queue(conn, handler.resume(call));
+
+      try {
+        write(key);
+      } catch (IOException ex) {
+        close(key);
+      }
+    }
+
+
+    private void queue(Connection conn, HttpResponse response) {
+
+      ByteBuffer[] buffers = response.getBuffers();
+
+      if (conn.output.isEmpty()) {
+        conn.writeStart = System.nanoTime();
+      }
+
+      for (int i = 0; i < response.getCount(); i++) {
+        conn.output.add(buffers[i]);
+      }
+    }
+
+
+    /**
+     * Gather write the queued responses, handing each buffer back to the
+     * pool once it is out. While any are left we stop reading so a
+     * pipelining client can't queue up unbounded work
+     */
+    private void write(SelectionKey key) throws IOException {
+
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn       = (Connection) key.attachment();
+
+      int count   = conn.output.size();
+      conn.gather = conn.output.toArray(conn.gather);
+
+      channel.write(conn.gather, 0, count);
+
+      while (!conn.output.isEmpty() && !conn.output.peek().hasRemaining()) {
+        BufferPool.release(conn.output.poll());
+      }
+
+      conn.lastActive = System.currentTimeMillis();
+
+      //Everything queued is out, however many writes that took
+      if (conn.output.isEmpty() && conn.stream == null && conn.writeStart != 0) {
+        ServerMetrics.phase(ServerMetrics.WRITE, System.nanoTime() - conn.writeStart);
+        conn.writeStart = 0;
+      }
+
+      if (!conn.output.isEmpty()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else if (conn.stream != null) {
+        key.interestOps(0);
+        produce(key, conn);
+      } else if (conn.parked != null) {
+        key.interestOps(SelectionKey.OP_READ);
+      } else if (conn.closing) {
+        close(key);
+      } else if (conn.leftover != null) {
+
+        ByteBuffer rest = conn.leftover;
+        conn.leftover   = null;
+
+        key.interestOps(SelectionKey.OP_READ);
+        process(key, conn, rest);
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+
+    /**
+     * Make the next piece of a streamed body on the fork/join pool, it can
+     * take a while and the loop has other connections to serve. The piece
+     * comes back to the loop thread to be queued
+     */
+    private void produce(final SelectionKey key, final Connection conn) {
+
+      if (conn.producing) {
+        return;
+      }
+
+      conn.producing = true;
+
+      final ResultStream stream = conn.stream;
+
+      ForkJoinPool.commonPool().execute(new Runnable() {
+        public void run() {
+
+          byte[] made    = null;
+          boolean failed = false;
+
+          try {
+            made = stream.next();
+          } catch (RuntimeException ex) {
+            System.out.println("Result stream failed! " + ex);
+            failed = true;
+          }
+
+          final byte[] piece   = made;
+          final boolean broken = failed;
+
+          post(new Runnable() {
+            public void run() {
+              produced(key, conn, piece, broken);
+            }
+          });
+        }
+      });
+    }
+
+
+    private void produced(SelectionKey key, Connection conn, byte[] piece, boolean failed) {
+
+      conn.producing = false;
+
+      if (!key.isValid()) {
+        return;
+      }
+
+      //Too late for an error response, the client sees the body cut short
+      if (failed) {
+        close(key);
+        return;
+      }
+
+      if (piece == null) {
+        conn.output.add(ByteBuffer.wrap(HttpResponse.LAST_CHUNK));
+        conn.stream = null;
+      } else if (piece.length > 0) {
+        //Read only so the pool never mistakes a piece for one of its own
+        conn.output.add(ByteBuffer.wrap(HttpResponse.chunkHeader(piece.length)));
+        conn.output.add(ByteBuffer.wrap(piece).asReadOnlyBuffer());
+        conn.output.add(ByteBuffer.wrap(HttpResponse.CRLF));
+      }
+
+      try {
+        write(key);
+      } catch (IOException ex) {
+        close(key);
+      }
+    }
+
+
+    private void close(SelectionKey key) {
+
+      Connection conn = (Connection) key.attachment();
+
+      if (key.channel().isOpen()) {
+        ServerMetrics.closed();
+      }
+
+      if (conn != null && conn.parked != null) {
+        conn.parked.cancel();
+        conn.parked = null;
+      }
+
+      key.cancel();
+      closeQuietly((SocketChannel) key.channel());
+
+      while (conn != null && !conn.output.isEmpty()) {
+        BufferPool.release(conn.output.poll());
+      }
+    }
+
+
+    private static void closeQuietly(SocketChannel channel) {
+
+      try {
+        channel.close();
+      } catch (IOException e) {
+        System.out.println("Error closing socket: " + e.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Purpose: Per connection state, the parser holding the partial request,
+   *          the responses still waiting to be written, any streamed body
+   *          and keep-alive bookkeeping
+   */
+  private static class Connection {
+
+    final HttpRequestParser parser = new HttpRequestParser(Server.MAX_REQUEST);
+
+    final Queue<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+
+    //Reused to hand output to gathering writes
+    ByteBuffer[] gather = new ByteBuffer[16];
+
+    //Body still being made for the response at the end of output
+    ResultStream stream;
+    boolean producing;
+
+    //Call waiting to be answered, see IoLoop.park
+    Server.Parked parked;
+
+    //Pipelined requests that arrived behind a streamed or parked response
+    ByteBuffer leftover;
+
+    int served;
+    boolean closing;
+    long lastActive = System.currentTimeMillis();
+
+    //When the request being read started, and the queued output
+    long readStart;
+    long writeStart;
+  }
+}
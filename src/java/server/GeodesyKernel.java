@@ -0,0 +1,233 @@
+package cst420.thread.server;
+
+/**
+ * Purpose: Class works out great circle angles and bearings from one point
+ *          to many at once. Points are passed as columns of the sin/cos of
+ *          their lat and lon, which the store keeps for every waypoint, so
+ *          a pair costs two atan2 and a few multiplies instead of the
+ *          half dozen trig calls GreatCircle makes from degrees
+ *
+ *          The haversine term comes from the chord between the two points on
+ *          the unit sphere, a = (chord / 2)^2, rather than from sin(dlat / 2)
+ *          and sin(dlon / 2), and the angle is 2 * atan2(sqrt(a), sqrt(1 - a))
+ *          as before. atan2 rather than asin because asin is several times
+ *          slower on the jvm
+ *
+ *          GreatCircle works single pairs out with the same angle() and
+ *          bearing() from the same sin/cos, and the vector kernel does the
+ *          same operations in the same order with atan2 taken lane by lane,
+ *          so a pair gives the same bits whichever path it goes down
+ *
+ *          This is the scalar version. With -Dvector.kernel at build time a
+ *          jdk.incubator.vector version is compiled too, and used when the
+ *          jvm was started with --add-modules jdk.incubator.vector. Pick one
+ *          with -Dwaypoint.kernel=scalar|vector, the default is the best
+ *          one available
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class GeodesyKernel {
+
+  private final static String VECTOR_KERNEL = "cst420.thread.server.VectorGeodesyKernel";
+
+  private static volatile GeodesyKernel defaultKernel;
+
+
+  /**
+   * The kernel named by -Dwaypoint.kernel, picked on first use
+   */
+  public static GeodesyKernel getDefault() {
+
+    GeodesyKernel kernel = defaultKernel;
+
+    if (kernel == null) {
+
+      synchronized (GeodesyKernel.class) {
+
+        if (defaultKernel == null) {
+          defaultKernel = choose(System.getProperty("waypoint.kernel", "auto"));
+        }
+
+        kernel = defaultKernel;
+      }
+    }
+
+    return kernel;
+  }
+
+
+  /**
+   * The vector kernel may not have been compiled, or the jvm may not have
+   * the incubator module, so it is only ever looked up by name
+   */
+  private static GeodesyKernel choose(String name) {
+
+    if (name.equals("scalar")) {
+      return new GeodesyKernel();
+    }
+
+    try {
+      return (GeodesyKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+    } catch (Throwable e) {
+
+      if (name.equals("vector")) {
+        System.out.println("Vector kernel not available, using scalar: " + e);
+      }
+    }
+
+    return new GeodesyKernel();
+  }
+
+
+  public String getName() {
+    return "scalar";
+  }
+
+
+  /**
+   * Central angle in radians from point i of from to each of the
+   * first count points of to
+   */
+  public void angles(Points from, int i, Points to, int count, double[] out) {
+    scalarAngles(from, i, to, 0, count, out);
+  }
+
+
+  /**
+   * Initial bearing in degrees, 0 to 360, from point i of from to
+   * each of the first count points of to
+   */
+  public void bearings(Points from, int i, Points to, int count, double[] out) {
+    scalarBearings(from, i, to, 0, count, out);
+  }
+
+
+  /**
+   * Angles to points [start, end) of to, one at a time
+   */
+  protected static void scalarAngles(Points from, int i, Points to, int start, int end, double[] out) {
+
+    double sinLat = from.sinLat[i];
+    double cosLat = from.cosLat[i];
+    double sinLon = from.sinLon[i];
+    double cosLon = from.cosLon[i];
+
+    for (int j = start; j < end; j++) {
+      out[j] = angle(sinLat, cosLat, sinLon, cosLon, to.sinLat[j], to.cosLat[j], to.sinLon[j], to.cosLon[j]);
+    }
+  }
+
+
+  /**
+   * Bearings to points [start, end) of to, one at a time
+   */
+  protected static void scalarBearings(Points from, int i, Points to, int start, int end, double[] out) {
+
+    double sinLat = from.sinLat[i];
+    double cosLat = from.cosLat[i];
+    double sinLon = from.sinLon[i];
+    double cosLon = from.cosLon[i];
+
+    for (int j = start; j < end; j++) {
+      out[j] = bearing(sinLat, cosLat, sinLon, cosLon, to.sinLat[j], to.cosLat[j], to.sinLon[j], to.cosLon[j]);
+    }
+  }
+
+
+  /**
+   * Central angle in radians between two points given as the sin/cos of
+   * their lat and lon
+   */
+  static double angle(double sinLat, double cosLat, double sinLon, double cosLon,
+                      double sinLatTo, double cosLatTo, double sinLonTo, double cosLonTo) {
+
+    double dx = cosLatTo * cosLonTo - cosLat * cosLon;
+    double dy = cosLatTo * sinLonTo - cosLat * sinLon;
+    double dz = sinLatTo - sinLat;
+
+    double a = Math.min(1.0, (dx * dx + dy * dy + dz * dz) * 0.25);
+
+    return 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+  }
+
+
+  /**
+   * Initial bearing in degrees, 0 to 360, between two points given the
+   * same way
+   */
+  static double bearing(double sinLat, double cosLat, double sinLon, double cosLon,
+                        double sinLatTo, double cosLatTo, double sinLonTo, double cosLonTo) {
+
+    //sin and cos of the longitude difference, from the angle sum identities
+    double sinDlon = sinLonTo * cosLon - cosLonTo * sinLon;
+    double cosDlon = cosLonTo * cosLon + sinLonTo * sinLon;
+
+    double y = sinDlon * cosLatTo;
+    double x = cosLat * sinLatTo - sinLat * cosLatTo * cosDlon;
+
+    return degrees(Math.atan2(y, x));
+  }
+
+
+  /**
+   * An atan2 result as a bearing, 0 to 360
+   */
+  static double degrees(double radians) {
+
+    double deg = Math.toDegrees(radians);
+
+    return (deg < 0) ? deg + 360.0 : deg;
+  }
+
+
+  /**
+   * Purpose: Points as columns of the sin/cos of their lat and lon, the
+   *          layout the kernels loop over
+   */
+  static class Points {
+
+    final double[] sinLat;
+    final double[] cosLat;
+    final double[] sinLon;
+    final double[] cosLon;
+
+
+    Points(int capacity) {
+
+      sinLat = new double[capacity];
+      cosLat = new double[capacity];
+      sinLon = new double[capacity];
+      cosLon = new double[capacity];
+    }
+
+
+    /**
+     * A single point given in degrees
+     */
+    static Points of(double lat, double lon) {
+
+      Points point = new Points(1);
+      point.set(0, lat, lon);
+
+      return point;
+    }
+
+
+    int capacity() {
+      return sinLat.length;
+    }
+
+
+    void set(int i, double lat, double lon) {
+
+      double latRad = Math.toRadians(lat);
+      double lonRad = Math.toRadians(lon);
+
+      sinLat[i] = Math.sin(latRad);
+      cosLat[i] = Math.cos(latRad);
+      sinLon[i] = Math.sin(lonRad);
+      cosLon[i] = Math.cos(lonRad);
+    }
+  }
+}
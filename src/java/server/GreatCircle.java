@@ -0,0 +1,100 @@
+package cst420.thread.server;
+
+/**
+ * Purpose: Class holds the great circle math shared by the rpc methods 
+ *          and the spatial index. Angles in and out are degrees. A pair is
+ *          worked out by the GeodesyKernel formulas from the same sin/cos
+ *          the store keeps, so it agrees to the bit with calcDistBearMatrix
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+final class GreatCircle {
+
+  private GreatCircle() { }
+
+
+  /**
+   * Haversine central angle between two points, in radians
+   */
+  public static double centralAngle(double latFrom, double lonFrom, double latTo, double lonTo) {
+
+    double latOrgRad = Math.toRadians(latFrom);
+    double lonOrgRad = Math.toRadians(lonFrom);
+    double latDstRad = Math.toRadians(latTo);
+    double lonDstRad = Math.toRadians(lonTo);
+
+    return GeodesyKernel.angle(Math.sin(latOrgRad), Math.cos(latOrgRad), Math.sin(lonOrgRad), Math.cos(lonOrgRad),
+                               Math.sin(latDstRad), Math.cos(latDstRad), Math.sin(lonDstRad), Math.cos(lonDstRad));
+  }
+
+
+  /**
+   * Distance between two points in the given scale
+   */
+  public static double distance(double latFrom, double lonFrom, double latTo, double lonTo, int scale) {
+    return fromKilometers(Server.radiusE * centralAngle(latFrom, lonFrom, latTo, lonTo), scale);
+  }
+
+
+  /**
+   * Initial bearing from one point to another, 0 to 360
+   */
+  public static double bearing(double latFrom, double lonFrom, double latTo, double lonTo) {
+
+    double latOrgRad = Math.toRadians(latFrom);
+    double lonOrgRad = Math.toRadians(lonFrom);
+    double latDstRad = Math.toRadians(latTo);
+    double lonDstRad = Math.toRadians(lonTo);
+
+    return GeodesyKernel.bearing(Math.sin(latOrgRad), Math.cos(latOrgRad), Math.sin(lonOrgRad), Math.cos(lonOrgRad),
+                                 Math.sin(latDstRad), Math.cos(latDstRad), Math.sin(lonDstRad), Math.cos(lonDstRad));
+  }
+
+
+  /**
+   * Kilometers to Statute or Nautical miles, or left alone
+   */
+  public static double fromKilometers(double km, int scale) {
+
+    switch(scale) {
+      case Server.STATUTE:
+        return km * 0.62137119;
+    
+      case Server.NAUTICAL:
+        return km * 0.5399568;
+    }
+
+    return km;
+  }
+
+
+  /**
+   * Statute or Nautical miles (or kilometers) back to kilometers
+   */
+  public static double toKilometers(double value, int scale) {
+
+    switch(scale) {
+      case Server.STATUTE:
+        return value / 0.62137119;
+    
+      case Server.NAUTICAL:
+        return value / 0.5399568;
+    }
+
+    return value;
+  }
+
+
+  /**
+   * Throws if a client sent a scale we don't know
+   */
+  public static int checkScale(int scale) {
+
+    if (scale != Server.STATUTE && scale != Server.NAUTICAL && scale != Server.KMETER) {
+      throw new IllegalArgumentException("Unit must be 0 (statute), 1 (nautical) or 2 (km)");
+    }
+
+    return scale;
+  }
+}
@@ -0,0 +1,132 @@
+package cst420.thread.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Purpose: Class builds the executor the accept loop hands each connection to.
+ *          The mode comes from the command line, the pool sizes from system
+ *          properties so they can be tuned per machine
+ *
+ *          thread   - a new platform thread per connection (the original behaviour)
+ *          pool     - a bounded pool, connections beyond it are turned away
+ *          virtual  - one virtual thread per connection when the jvm has them
+ *
+ *          A handler blocks on its socket for the life of the connection,
+ *          so there is no fork/join mode, a work stealing pool sized to the
+ *          cores is used up by a few idle keep-alive clients
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class HandlerExecutors {
+
+  private final static int CORES = Runtime.getRuntime().availableProcessors();
+
+
+  private HandlerExecutors() { }
+
+
+  /**
+   * Build the executor for a mode name
+   */
+  public static Executor create(String mode) {
+
+    if (mode.equals("thread")) {
+      return threadPerConnection();
+    } else if (mode.equals("pool")) {
+      return boundedPool();
+    } else if (mode.equals("virtual")) {
+      return virtualThreads();
+    }
+
+    throw new IllegalArgumentException("Unknown server mode: " + mode + ", use thread, pool, virtual or nio");
+  }
+
+
+  private static Executor threadPerConnection() {
+
+    return new Executor() {
+      public void execute(Runnable task) {
+        new Thread(task).start();
+      }
+    };
+  }
+
+
+  /**
+   * Handlers block on socket reads, so the pool is sized well past the
+   * core count. When every thread is busy and the queue is full execute()
+   * throws, and the accept loop turns the connection away rather than run
+   * it on its own thread, which would stop it accepting until that client
+   * left
+   */
+  private static Executor boundedPool() {
+
+    int threads = Integer.getInteger("waypoint.pool.threads", CORES * 8);
+    int queue   = Integer.getInteger("waypoint.pool.queue", 1024);
+
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                  new ArrayBlockingQueue<Runnable>(queue),
+                                  namedThreads("waypoint-handler-"),
+                                  new ThreadPoolExecutor.AbortPolicy());
+  }
+
+
+  /**
+   * Virtual threads only exist on newer jvms, so look the factory up
+   * rather than linking against it and fall back to the bounded pool
+   */
+  private static Executor virtualThreads() {
+
+    try {
+
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception e) {
+      System.out.println("Virtual threads not available, using a bounded pool: " + e);
+    }
+
+    return boundedPool();
+  }
+
+
+  /**
+   * Threads the event loops hand calls that write to, a write waits for
+   * the log to sync and a loop thread must never wait. The queue needn't
+   * be bounded, a connection sends nothing more until its write is answered
+   */
+  public static Executor writers() {
+
+    int threads = Integer.getInteger("waypoint.writer.threads", CORES * 2);
+
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                  new LinkedBlockingQueue<Runnable>(),
+                                  namedThreads("waypoint-writer-"));
+  }
+
+
+  private static ThreadFactory namedThreads(final String prefix) {
+
+    final AtomicInteger count = new AtomicInteger();
+
+    return new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+
+        Thread thread = new Thread(task, prefix + count.getAndIncrement());
+        thread.setDaemon(true);
+
+        return thread;
+      }
+    };
+  }
+}
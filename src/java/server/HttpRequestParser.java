@@ -0,0 +1,439 @@
+package cst420.thread.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Purpose: Class parses http requests incrementally. Bytes are fed in as they
+ *          arrive from either transport, the parser remembers where it stopped
+ *          and says when a whole request (line, headers and a Content-Length
+ *          or chunked body) is ready. One parser lives per connection and its
+ *          buffers are reused for every request on it
+ *
+ *          A body sent with a Content-Encoding is decoded once it is all
+ *          here, and may be no bigger than the largest body decoded either
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class HttpRequestParser {
+
+  //Longest request line or header line we accept
+  private final static int MAX_LINE = 8192;
+
+  //Most header (or trailer) lines we accept per request
+  private final static int MAX_HEADERS = 100;
+
+  //Body buffers bigger than this are given back after the request
+  private final static int RETAIN_BODY = 64 * 1024;
+
+  private final static int REQUEST_LINE = 0;
+  private final static int HEADER       = 1;
+  private final static int BODY         = 2;
+  private final static int CHUNK_SIZE   = 3;
+  private final static int CHUNK_DATA   = 4;
+  private final static int CHUNK_END    = 5;
+  private final static int TRAILER      = 6;
+  private final static int DONE         = 7;
+
+  private final int maxBody;
+
+  private int state = REQUEST_LINE;
+
+  private byte[] line = new byte[256];
+  private int lineLength;
+
+  private byte[] body = new byte[1024];
+  private int bodyLength;
+
+  //Bytes still expected for the body or the current chunk
+  private long remaining;
+
+  private int headerCount;
+
+  //Content-Encoding of a body still to be decoded
+  private String coding;
+
+  private String method;
+  private String target;
+  private String version;
+
+  private final Map<String, String> headers = new HashMap<String, String>();
+
+
+  /**
+   * Constructor - Largest body we will buffer for one request
+   */
+  public HttpRequestParser(int maxBody) {
+    this.maxBody = maxBody;
+  }
+
+
+  /**
+   * Consume bytes from the buffer until a request is complete or the buffer
+   * runs out. Bytes past the end of the request are left in the buffer for
+   * the next one. Returns true once a whole request has been parsed
+   */
+  public boolean feed(ByteBuffer src) throws ParseException {
+
+    while (state != DONE && src.hasRemaining()) {
+
+      if (state == BODY || state == CHUNK_DATA) {
+        readBody(src);
+      } else if (readLine(src)) {
+        onLine();
+      }
+    }
+
+    if (state == DONE && coding != null) {
+      decodeBody();
+    }
+
+    return state == DONE;
+  }
+
+
+  /**
+   * Get ready for the next request on the connection
+   */
+  public void reset() {
+
+    state       = REQUEST_LINE;
+    lineLength  = 0;
+    bodyLength  = 0;
+    remaining   = 0;
+    headerCount = 0;
+    coding      = null;
+    method      = null;
+    target      = null;
+    version     = null;
+
+    headers.clear();
+
+    if (body.length > RETAIN_BODY) {
+      body = new byte[1024];
+    }
+  }
+
+
+  /**
+   * True when nothing of the next request has arrived yet
+   */
+  public boolean isEmpty() {
+    return state == REQUEST_LINE && lineLength == 0;
+  }
+
+
+  public String getMethod() {
+    return method;
+  }
+
+
+  public String getTarget() {
+    return target;
+  }
+
+
+  public String getVersion() {
+    return version;
+  }
+
+
+  /**
+   * Header value by case insensitive name, or null if it was not sent
+   */
+  public String getHeader(String name) {
+    return headers.get(name.toLowerCase());
+  }
+
+
+  /**
+   * The body buffer, only the first getBodyLength() bytes are the body.
+   * Valid until reset()
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+
+  public int getBodyLength() {
+    return bodyLength;
+  }
+
+
+  /**
+   * HTTP/1.1 connections persist unless the client says close,
+   * HTTP/1.0 ones only when the client asks for keep-alive
+   */
+  public boolean isKeepAlive() {
+
+    String connection = getHeader("Connection");
+
+    if ("HTTP/1.1".equals(version)) {
+      return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    return connection != null && connection.equalsIgnoreCase("keep-alive");
+  }
+
+
+  /**
+   * Collect bytes up to the next LF. Returns true when the line is
+   * complete, with any trailing CR already dropped
+   */
+  private boolean readLine(ByteBuffer src) throws ParseException {
+
+    while (src.hasRemaining()) {
+
+      byte b = src.get();
+
+      if (b == '\n') {
+
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+          lineLength--;
+        }
+
+        return true;
+      }
+
+      if (lineLength == line.length) {
+
+        if (lineLength >= MAX_LINE) {
+          throw new ParseException(431, "Request Header Fields Too Large");
+        }
+
+        byte[] grown = new byte[Math.min(line.length * 2, MAX_LINE)];
+        System.arraycopy(line, 0, grown, 0, lineLength);
+        line = grown;
+      }
+
+      line[lineLength++] = b;
+    }
+
+    return false;
+  }
+
+
+  private void onLine() throws ParseException {
+
+    String text = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+    lineLength  = 0;
+
+    switch (state) {
+
+      case REQUEST_LINE:
+        onRequestLine(text);
+        break;
+
+      case HEADER:
+        onHeader(text);
+        break;
+
+      case CHUNK_SIZE:
+        onChunkSize(text);
+        break;
+
+      case CHUNK_END:
+        if (text.length() > 0) {
+          throw new ParseException(400, "Bad Request");
+        }
+        state = CHUNK_SIZE;
+        break;
+
+      case TRAILER:
+        if (text.length() == 0) {
+          state = DONE;
+        } else if (++headerCount > MAX_HEADERS) {
+          throw new ParseException(431, "Request Header Fields Too Large");
+        }
+        break;
+    }
+  }
+
+
+  private void onRequestLine(String text) throws ParseException {
+
+    //Stray blank lines between requests are allowed
+    if (text.length() == 0) {
+      return;
+    }
+
+    String[] parts = text.split(" ");
+
+    if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+      throw new ParseException(400, "Bad Request");
+    }
+
+    method  = parts[0];
+    target  = parts[1];
+    version = parts[2];
+    state   = HEADER;
+  }
+
+
+  private void onHeader(String text) throws ParseException {
+
+    if (text.length() == 0) {
+      startBody();
+      return;
+    }
+
+    if (++headerCount > MAX_HEADERS) {
+      throw new ParseException(431, "Request Header Fields Too Large");
+    }
+
+    int colon = text.indexOf(':');
+
+    if (colon <= 0) {
+      throw new ParseException(400, "Bad Request");
+    }
+
+    String name  = text.substring(0, colon).trim().toLowerCase();
+    String value = text.substring(colon + 1).trim();
+    String prev  = headers.get(name);
+
+    headers.put(name, (prev == null) ? value : prev + ", " + value);
+  }
+
+
+  /**
+   * Headers are done, work out how the body is framed
+   */
+  private void startBody() throws ParseException {
+
+    String encoding = getHeader("Transfer-Encoding");
+    String length   = getHeader("Content-Length");
+
+    coding = getHeader("Content-Encoding");
+
+    if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+      headerCount = 0;
+      state       = CHUNK_SIZE;
+      return;
+    }
+
+    if (length == null) {
+      state = DONE;
+      return;
+    }
+
+    try {
+      remaining = Long.parseLong(length);
+    } catch (NumberFormatException e) {
+      throw new ParseException(400, "Bad Request");
+    }
+
+    if (remaining < 0) {
+      throw new ParseException(400, "Bad Request");
+    }
+
+    checkBodySize(remaining);
+
+    state = (remaining == 0) ? DONE : BODY;
+  }
+
+
+  private void onChunkSize(String text) throws ParseException {
+
+    int ext    = text.indexOf(';');
+    String hex = ((ext < 0) ? text : text.substring(0, ext)).trim();
+
+    try {
+      remaining = Long.parseLong(hex, 16);
+    } catch (NumberFormatException e) {
+      throw new ParseException(400, "Bad Request");
+    }
+
+    if (remaining < 0) {
+      throw new ParseException(400, "Bad Request");
+    }
+
+    if (remaining == 0) {
+      state = TRAILER;
+      return;
+    }
+
+    checkBodySize(remaining);
+
+    state = CHUNK_DATA;
+  }
+
+
+  /**
+   * Make room for more bytes of body after what we have. Compared against
+   * the room left, a chunk size near Long.MAX_VALUE can't wrap the sum
+   */
+  private void checkBodySize(long more) throws ParseException {
+
+    if (more > maxBody - bodyLength) {
+      throw new ParseException(413, "Payload Too Large");
+    }
+
+    long size = bodyLength + more;
+
+    if (size > body.length) {
+
+      byte[] grown = new byte[(int) Math.min(maxBody, Math.max(size, body.length * 2L))];
+      System.arraycopy(body, 0, grown, 0, bodyLength);
+      body = grown;
+    }
+  }
+
+
+  /**
+   * Swap the body for what it decodes to
+   */
+  private void decodeBody() throws ParseException {
+
+    String sent = coding;
+    coding      = null;
+
+    if (bodyLength == 0) {
+      return;
+    }
+
+    body       = ContentCoding.decode(sent, body, bodyLength, maxBody);
+    bodyLength = body.length;
+  }
+
+
+  private void readBody(ByteBuffer src) {
+
+    int count = (int) Math.min(remaining, src.remaining());
+
+    src.get(body, bodyLength, count);
+
+    bodyLength += count;
+    remaining  -= count;
+
+    if (remaining == 0) {
+      state = (state == BODY) ? DONE : CHUNK_END;
+    }
+  }
+
+
+  /**
+   * Purpose: Request can't be parsed, carries the http status to answer with
+   */
+  static class ParseException extends IOException {
+
+    private final static long serialVersionUID = 1L;
+
+    private final int status;
+
+
+    ParseException(int status, String reason) {
+
+      super(reason);
+      this.status = status;
+    }
+
+
+    public int getStatus() {
+      return status;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package cst420.thread.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Purpose: Class is one http response ready for a transport to write, as a
+ *          run of buffers from the BufferPool holding the headers and then
+ *          the body. A streamed response is just the headers, with the body
+ *          pulled from a ResultStream and framed as chunks. Whoever writes
+ *          the buffers gives them back to the pool once they are out
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class HttpResponse {
+
+  //Ends a chunked body
+  public final static byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  //Ends each chunk
+  public final static byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final ByteBuffer[] buffers;
+  private final int count;
+  private final ResultStream body;
+
+
+  /**
+   * Constructor - The first count buffers, flipped ready to write, and
+   * the chunked body if there is one
+   */
+  public HttpResponse(ByteBuffer[] buffers, int count, ResultStream body) {
+
+    this.buffers = buffers;
+    this.count   = count;
+    this.body    = body;
+  }
+
+
+  /**
+   * Everything to write before the body chunks, or the whole response
+   * when it is not streamed. Only the first getCount() are in use
+   */
+  public ByteBuffer[] getBuffers() {
+    return buffers;
+  }
+
+
+  public int getCount() {
+    return count;
+  }
+
+
+  /**
+   * Body to send in chunks, null when the buffers are the whole response
+   */
+  public ResultStream getBody() {
+    return body;
+  }
+
+
+  public boolean isStreamed() {
+    return body != null;
+  }
+
+
+  /**
+   * Write the buffers to a blocking stream and give them back to the pool
+   */
+  public void writeTo(OutputStream out) throws IOException {
+
+    try {
+
+      for (int i = 0; i < count; i++) {
+        out.write(buffers[i].array(), buffers[i].arrayOffset() + buffers[i].position(), buffers[i].remaining());
+      }
+    } finally {
+      release();
+    }
+  }
+
+
+  /**
+   * Give the buffers back to the pool, after which they can't be used
+   */
+  public void release() {
+
+    for (int i = 0; i < count; i++) {
+      BufferPool.release(buffers[i]);
+      buffers[i] = null;
+    }
+  }
+
+
+  /**
+   * Size line that goes before a chunk of length bytes
+   */
+  public static byte[] chunkHeader(int length) {
+    return (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+}
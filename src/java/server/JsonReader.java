@@ -0,0 +1,570 @@
+package cst420.thread.server;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class is a pull tokenizer for json in a request body, read
+ *          straight from its UTF-8 bytes. Callers walk the shape they expect
+ *          and take numbers as doubles and strings as Strings without a tree
+ *          being built on the way, readValue() builds org.json values for
+ *          the odd part that is wanted whole
+ *
+ *          It only reads strict json. Anything else is a SyntaxException,
+ *          and the caller may hand the body to org.json, which takes more
+ *
+ *          Objects are walked as
+ *
+ *            if (in.beginObject()) {
+ *              do {
+ *                String key = in.nextName();
+ *                ...
+ *              } while (in.more('}'));
+ *            }
+ *
+ *          and arrays the same way with beginArray() and more(']')
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class JsonReader {
+
+  //Deepest nesting skipValue() and readValue() will follow
+  public final static int MAX_DEPTH = 64;
+
+  //Exact powers of ten, any integer below 2^53 times or over one of
+  //these is a single correctly rounded operation
+  private final static double[] POWERS = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private byte[] body;
+  private int pos;
+  private int end;
+
+  //Whether the last number read had no fraction or exponent, and its
+  //value as a long when it also fit in one
+  private boolean integral;
+  private long longValue;
+
+  //Builds strings that hold escapes, reused
+  private final StringBuilder text = new StringBuilder();
+
+
+  /**
+   * Start reading body[offset, offset + length)
+   */
+  public JsonReader reset(byte[] body, int offset, int length) {
+
+    this.body = body;
+    this.pos  = offset;
+    this.end  = offset + length;
+
+    return this;
+  }
+
+
+  /**
+   * The first byte of the next value (or ',' ':' '}' ']'), -1 at the end
+   */
+  public int peek() {
+
+    while (pos < end) {
+
+      byte b = body[pos];
+
+      if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+        return b;
+      }
+
+      pos++;
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Check nothing but whitespace is left and let go of the body
+   */
+  public void end() {
+
+    if (peek() != -1) {
+      throw syntax("Unexpected text after the json");
+    }
+
+    body = null;
+  }
+
+
+  /**
+   * Step into an object, true unless it is empty
+   */
+  public boolean beginObject() {
+
+    expect('{');
+
+    if (peek() == '}') {
+      pos++;
+      return false;
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Step into an array, true unless it is empty
+   */
+  public boolean beginArray() {
+
+    expect('[');
+
+    if (peek() == ']') {
+      pos++;
+      return false;
+    }
+
+    return true;
+  }
+
+
+  /**
+   * After a member or element, true when another follows and false once
+   * close has been read
+   */
+  public boolean more(char close) {
+
+    int b = peek();
+
+    if (b == ',') {
+      pos++;
+      return true;
+    }
+
+    if (b == close) {
+      pos++;
+      return false;
+    }
+
+    throw syntax("Expected ',' or '" + close + "'");
+  }
+
+
+  /**
+   * Name of the next member of an object, its value is read next
+   */
+  public String nextName() {
+
+    String name = nextString();
+
+    expect(':');
+
+    return name;
+  }
+
+
+  public String nextString() {
+
+    expect('"');
+
+    int start = pos;
+
+    //Most strings are plain ascii, which decode to a String in one go
+    while (pos < end) {
+
+      byte b = body[pos];
+
+      if (b == '"') {
+        return new String(body, start, pos++ - start, StandardCharsets.ISO_8859_1);
+      }
+
+      if (b == '\\' || b < ' ') {
+        break;
+      }
+
+      pos++;
+    }
+
+    return slowString(start);
+  }
+
+
+  /**
+   * Rest of a string that has escapes or bytes past ascii in it
+   */
+  private String slowString(int start) {
+
+    text.setLength(0);
+
+    int run = start;
+
+    while (true) {
+
+      if (pos >= end) {
+        throw syntax("Unterminated string");
+      }
+
+      byte b = body[pos];
+
+      if (b == '"' || b == '\\') {
+
+        text.append(new String(body, run, pos - run, StandardCharsets.UTF_8));
+        pos++;
+
+        if (b == '"') {
+          return text.toString();
+        }
+
+        text.append(escape());
+        run = pos;
+      } else if (b >= 0 && b < ' ') {
+        throw syntax("Control character in string");
+      } else {
+        pos++;
+      }
+    }
+  }
+
+
+  private char escape() {
+
+    if (pos >= end) {
+      throw syntax("Unterminated string");
+    }
+
+    byte b = body[pos++];
+
+    switch (b) {
+      case '"':
+      case '\\':
+      case '/':
+        return (char) b;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+
+        if (end - pos < 4) {
+          throw syntax("Bad unicode escape");
+        }
+
+        int c = 0;
+
+        for (int i = 0; i < 4; i++) {
+
+          int digit = Character.digit(body[pos++], 16);
+
+          if (digit < 0) {
+            throw syntax("Bad unicode escape");
+          }
+
+          c = (c << 4) | digit;
+        }
+
+        return (char) c;
+      default:
+        throw syntax("Bad escape");
+    }
+  }
+
+
+  /**
+   * Next value as a number. Short ones are worked out in place, the rest
+   * go through Double.parseDouble
+   */
+  public double nextDouble() {
+
+    peek();
+
+    int start     = pos;
+    boolean minus = accept('-');
+    long mantissa = 0;
+    int digits    = 0;
+    int scale     = 0;
+
+    integral = true;
+
+    //A lone 0 is an integer part of its own, json has no leading zeros
+    if (!accept('0')) {
+
+      if (!digit() || body[pos] == '0') {
+        throw syntax("Expected a value");
+      }
+
+      while (digit()) {
+
+        if (digits < 18) {
+          mantissa = mantissa * 10 + (body[pos] - '0');
+          digits++;
+        } else {
+          scale++;
+        }
+
+        pos++;
+      }
+    }
+
+    if (accept('.')) {
+
+      integral = false;
+
+      if (!digit()) {
+        throw syntax("Expected a digit after '.'");
+      }
+
+      while (digit()) {
+
+        //Leading zeros only move the point, they are not significant
+        if (digits < 18) {
+          mantissa = mantissa * 10 + (body[pos] - '0');
+          digits  += (mantissa != 0) ? 1 : 0;
+          scale--;
+        }
+
+        pos++;
+      }
+    }
+
+    if (pos < end && (body[pos] == 'e' || body[pos] == 'E')) {
+
+      integral = false;
+      pos++;
+
+      if (!accept('-')) {
+        accept('+');
+      }
+
+      if (!digit()) {
+        throw syntax("Expected a digit in the exponent");
+      }
+
+      while (digit()) {
+        pos++;
+      }
+
+      return slowDouble(start);
+    }
+
+    //More digits than a long holds
+    if (digits >= 18 && scale > 0) {
+      integral = false;
+      return slowDouble(start);
+    }
+
+    longValue = minus ? -mantissa : mantissa;
+
+    if (mantissa < (1L << 53)) {
+
+      if (scale == 0) {
+        return longValue;
+      }
+
+      if (scale >= -22) {
+        return longValue / POWERS[-scale];
+      }
+    }
+
+    return slowDouble(start);
+  }
+
+
+  private double slowDouble(int start) {
+    return Double.parseDouble(new String(body, start, pos - start, StandardCharsets.ISO_8859_1));
+  }
+
+
+  public boolean nextBoolean() {
+
+    if (literal("true")) {
+      return true;
+    }
+
+    if (literal("false")) {
+      return false;
+    }
+
+    throw syntax("Expected true or false");
+  }
+
+
+  public void nextNull() {
+
+    if (!literal("null")) {
+      throw syntax("Expected null");
+    }
+  }
+
+
+  /**
+   * Read past the next value whatever it is
+   */
+  public void skipValue() {
+    readValue(0, false);
+  }
+
+
+  /**
+   * Next value as org.json would give it, a JSONObject, JSONArray, String,
+   * Integer, Long, Double, Boolean or JSONObject.NULL
+   */
+  public Object readValue() {
+    return readValue(0, true);
+  }
+
+
+  private Object readValue(int depth, boolean keep) {
+
+    if (depth > MAX_DEPTH) {
+      throw new SyntaxException("Json nested deeper than " + MAX_DEPTH, false);
+    }
+
+    int b = peek();
+
+    switch (b) {
+      case '{': {
+
+        JSONObject obj = keep ? new JSONObject() : null;
+
+        if (beginObject()) {
+          do {
+
+            String key   = nextName();
+            Object value = readValue(depth + 1, keep);
+
+            if (keep) {
+              obj.put(key, value);
+            }
+          } while (more('}'));
+        }
+
+        return obj;
+      }
+      case '[': {
+
+        JSONArray arr = keep ? new JSONArray() : null;
+
+        if (beginArray()) {
+          do {
+
+            Object value = readValue(depth + 1, keep);
+
+            if (keep) {
+              arr.put(value);
+            }
+          } while (more(']'));
+        }
+
+        return arr;
+      }
+      case '"':
+        return nextString();
+      case 't':
+      case 'f':
+        return nextBoolean();
+      case 'n':
+        nextNull();
+        return JSONObject.NULL;
+      default: {
+
+        double value = nextDouble();
+
+        if (!integral) {
+          return value;
+        }
+
+        if (longValue == (int) longValue) {
+          return (int) longValue;
+        }
+
+        return longValue;
+      }
+    }
+  }
+
+
+  private void expect(char c) {
+
+    if (peek() != c) {
+      throw syntax("Expected '" + c + "'");
+    }
+
+    pos++;
+  }
+
+
+  private boolean accept(char c) {
+
+    if (pos < end && body[pos] == c) {
+      pos++;
+      return true;
+    }
+
+    return false;
+  }
+
+
+  private boolean digit() {
+    return pos < end && body[pos] >= '0' && body[pos] <= '9';
+  }
+
+
+  private boolean literal(String word) {
+
+    peek();
+
+    if (end - pos < word.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < word.length(); i++) {
+
+      if (body[pos + i] != word.charAt(i)) {
+        return false;
+      }
+    }
+
+    pos += word.length();
+
+    return true;
+  }
+
+
+  private SyntaxException syntax(String message) {
+    return new SyntaxException(message + " at byte " + pos, true);
+  }
+
+
+  /**
+   * Purpose: The body is not strict json. Lenient says whether it is worth
+   *          trying org.json on it, it isn't when it was only too deep
+   */
+  static class SyntaxException extends RuntimeException {
+
+    private final static long serialVersionUID = 1L;
+
+    private final boolean lenient;
+
+
+    SyntaxException(String message, boolean lenient) {
+
+      super(message);
+      this.lenient = lenient;
+    }
+
+
+    public boolean isLenient() {
+      return lenient;
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package cst420.thread.server;
+
+/**
+ * Purpose: Interface for an rpc result that writes its own json. A Server
+ *          method returns one instead of building a JSONArray or JSONObject
+ *          only to have it serialized, and it is written straight into the
+ *          response envelope
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+interface JsonValue {
+
+  /**
+   * Write this value, exactly one, to out
+   */
+  void writeJSON(JsonWriter out);
+}
@@ -0,0 +1,344 @@
+package cst420.thread.server;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class appends json to a StringBuilder a token at a time, keeping
+ *          track of the commas itself. Strings are escaped the way
+ *          JSONObject.quote() does it and numbers written the way org.json
+ *          writes them, so clients see the same text as before, whole
+ *          numbers without a trailing .0
+ *
+ *          Anything it has no token for, a JSONObject say, is written by
+ *          org.json through value(Object). A subclass may encode the same
+ *          tokens some other way, so a JsonValue can be written as binary
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class JsonWriter {
+
+  //Deepest nesting, one bit of written per level
+  private final static int MAX_DEPTH = 63;
+
+  private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final StringBuilder out;
+
+  //Bit n is set once the array or object n deep has had a value, the next takes a comma
+  private long written;
+  private int depth;
+
+  //A name was just written, its value takes no comma
+  private boolean named;
+
+
+  public JsonWriter(StringBuilder out) {
+    this.out = out;
+  }
+
+
+  /**
+   * For a subclass that overrides every token and keeps its own output
+   */
+  protected JsonWriter() {
+    this.out = null;
+  }
+
+
+  public StringBuilder getBuffer() {
+    return out;
+  }
+
+
+  /**
+   * Forget any open objects and arrays, for when the buffer is reused
+   */
+  public JsonWriter reset() {
+
+    written = 0;
+    depth   = 0;
+    named   = false;
+
+    return this;
+  }
+
+
+  public JsonWriter beginObject() {
+
+    separate();
+    out.append('{');
+
+    return open();
+  }
+
+
+  public JsonWriter endObject() {
+
+    close();
+    out.append('}');
+
+    return this;
+  }
+
+
+  public JsonWriter beginArray() {
+
+    separate();
+    out.append('[');
+
+    return open();
+  }
+
+
+  public JsonWriter endArray() {
+
+    close();
+    out.append(']');
+
+    return this;
+  }
+
+
+  /**
+   * Name of the next member of an object, write its value next
+   */
+  public JsonWriter name(String name) {
+
+    separate();
+    quote(name);
+    out.append(':');
+
+    named = true;
+
+    return this;
+  }
+
+
+  public JsonWriter value(String value) {
+
+    if (value == null) {
+      return nullValue();
+    }
+
+    separate();
+    quote(value);
+
+    return this;
+  }
+
+
+  public JsonWriter value(long value) {
+
+    separate();
+    out.append(value);
+
+    return this;
+  }
+
+
+  /**
+   * Whole numbers go out without a fraction, like org.json writes them.
+   * Json has no NaN or infinity, asking for one is a bug in the caller
+   */
+  public JsonWriter value(double value) {
+
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalStateException("Json does not allow non-finite numbers");
+    }
+
+    separate();
+
+    if (value == (long) value && Math.abs(value) < 1e15) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+
+    return this;
+  }
+
+
+  public JsonWriter value(boolean value) {
+
+    separate();
+    out.append(value);
+
+    return this;
+  }
+
+
+  public JsonWriter nullValue() {
+
+    separate();
+    out.append("null");
+
+    return this;
+  }
+
+
+  /**
+   * Any value an rpc method may return or a client may send as an id
+   */
+  public JsonWriter value(Object value) {
+
+    if (value == null || value == JSONObject.NULL) {
+      return nullValue();
+    }
+
+    if (value instanceof JsonValue) {
+      ((JsonValue) value).writeJSON(this);
+      return this;
+    }
+
+    if (value instanceof String) {
+      return value((String) value);
+    }
+
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      return value(((Number) value).longValue());
+    }
+
+    if (value instanceof Double || value instanceof Float) {
+      return value(((Number) value).doubleValue());
+    }
+
+    if (value instanceof Boolean) {
+      return value(((Boolean) value).booleanValue());
+    }
+
+    return writeOther(value);
+  }
+
+
+  /**
+   * JSONObject, JSONArray and the rest are left to org.json
+   */
+  protected JsonWriter writeOther(Object value) {
+
+    separate();
+    out.append(JSONObject.valueToString(value));
+
+    return this;
+  }
+
+
+  private JsonWriter open() {
+
+    if (depth == MAX_DEPTH) {
+      throw new IllegalStateException("Json nested deeper than " + MAX_DEPTH);
+    }
+
+    depth++;
+    written &= ~(1L << depth);
+
+    return this;
+  }
+
+
+  private void close() {
+
+    if (depth == 0) {
+      throw new IllegalStateException("Nothing open to close");
+    }
+
+    depth--;
+    named = false;
+  }
+
+
+  /**
+   * Comma before every value of an object or array but the first
+   */
+  private void separate() {
+
+    if (named) {
+      named = false;
+      return;
+    }
+
+    if (depth == 0) {
+      return;
+    }
+
+    long bit = 1L << depth;
+
+    if ((written & bit) != 0) {
+      out.append(',');
+    } else {
+      written |= bit;
+    }
+  }
+
+
+  /**
+   * Same escaping as JSONObject.quote(), appended in runs
+   */
+  private void quote(String value) {
+
+    out.append('"');
+
+    int run   = 0;
+    char last = 0;
+
+    for (int i = 0; i < value.length(); i++) {
+
+      char c = value.charAt(i);
+
+      if (c >= ' ' && c != '"' && c != '\\' && c != '/' && c < '\u0080') {
+        last = c;
+        continue;
+      }
+
+      String escaped = null;
+
+      switch (c) {
+        case '"':
+          escaped = "\\\"";
+          break;
+        case '\\':
+          escaped = "\\\\";
+          break;
+        case '/':
+          escaped = (last == '<') ? "\\/" : null;
+          break;
+        case '\b':
+          escaped = "\\b";
+          break;
+        case '\t':
+          escaped = "\\t";
+          break;
+        case '\n':
+          escaped = "\\n";
+          break;
+        case '\f':
+          escaped = "\\f";
+          break;
+        case '\r':
+          escaped = "\\r";
+          break;
+        default:
+          break;
+      }
+
+      boolean unicode = escaped == null && (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100'));
+
+      last = c;
+
+      if (escaped == null && !unicode) {
+        continue;
+      }
+
+      out.append(value, run, i);
+      run = i + 1;
+
+      if (unicode) {
+        out.append("\\u").append(HEX[c >>> 12]).append(HEX[(c >>> 8) & 15]).append(HEX[(c >>> 4) & 15]).append(HEX[c & 15]);
+      } else {
+        out.append(escaped);
+      }
+    }
+
+    out.append(value, run, value.length()).append('"');
+  }
+}
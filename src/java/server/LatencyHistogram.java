@@ -0,0 +1,164 @@
+package cst420.thread.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class counts latencies in nanoseconds into log linear buckets, the
+ *          way HdrHistogram does. Every power of two is split into 32 buckets
+ *          so a percentile read back is within about 3% of the real value,
+ *          from a nanosecond up to hours, in a fixed 10KB of counts. Recording
+ *          is one atomic add on a bucket and never takes a lock, so handler
+ *          threads can all record into the same histogram
+ *
+ *          Reads are not a snapshot, a percentile taken while others record
+ *          may count a few of them and not others
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class LatencyHistogram {
+
+  //Bits of each value kept below its leading one
+  private final static int PRECISION   = 5;
+  private final static int SUB_BUCKETS = 1 << PRECISION;
+
+  //Longest latency told apart from longer ones, about 4.9 hours
+  private final static long HIGHEST = (1L << 44) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(index(HIGHEST) + 1);
+  private final LongAdder total        = new LongAdder();
+  private final LongAdder sum          = new LongAdder();
+  private final AtomicLong max         = new AtomicLong();
+
+
+  public void record(long nanos) {
+
+    long value = Math.min(Math.max(nanos, 0), HIGHEST);
+
+    counts.incrementAndGet(index(value));
+    total.increment();
+    sum.add(value);
+
+    long seen = max.get();
+
+    while (value > seen && !max.compareAndSet(seen, value)) {
+      seen = max.get();
+    }
+  }
+
+
+  public long getCount() {
+    return total.sum();
+  }
+
+
+  /**
+   * Sum of every latency recorded, in nanoseconds
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+
+  public long getMax() {
+    return max.get();
+  }
+
+
+  public double getMean() {
+
+    long count = total.sum();
+
+    return (count == 0) ? 0 : (double) sum.sum() / count;
+  }
+
+
+  /**
+   * Latency at or under which the given fraction (0 to 1) of those recorded
+   * fall, as the top of its bucket, never more than the longest recorded
+   */
+  public long getPercentile(double fraction) {
+
+    long count = 0;
+
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+
+    for (int i = 0; i < counts.length(); i++) {
+
+      seen += counts.get(i);
+
+      if (seen >= rank) {
+        return Math.min(highestInBucket(i), max.get());
+      }
+    }
+
+    return max.get();
+  }
+
+
+  /**
+   * Count, mean, percentiles and max in microseconds
+   */
+  public JSONObject toJSON() {
+
+    JSONObject json = new JSONObject();
+
+    json.put("count", getCount());
+    json.put("meanUs", micros(getMean()));
+    json.put("p50Us", micros(getPercentile(0.5)));
+    json.put("p90Us", micros(getPercentile(0.9)));
+    json.put("p99Us", micros(getPercentile(0.99)));
+    json.put("p999Us", micros(getPercentile(0.999)));
+    json.put("maxUs", micros(getMax()));
+
+    return json;
+  }
+
+
+  private static double micros(double nanos) {
+    return Math.round(nanos / 100.0) / 10.0;
+  }
+
+
+  /**
+   * Values under 32 get a bucket each, past that a value's bucket is its
+   * power of two and the 5 bits below its leading one
+   */
+  private static int index(long value) {
+
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift    = exponent - PRECISION;
+
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+
+  private static long highestInBucket(int index) {
+
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int shift     = index / SUB_BUCKETS - 1;
+    long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+
+    return ((mantissa + 1) << shift) - 1;
+  }
+}
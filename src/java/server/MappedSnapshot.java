@@ -0,0 +1,312 @@
+package cst420.thread.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Purpose: Class is a version 2 snapshot file mapped into memory, read in
+ *          place with nothing loaded up front. The store uses it as the
+ *          bottom layer of the library, so startup costs the same however
+ *          many points it holds. Layout, all little endian:
+ *
+ *          header  - magic, version, seq, record count, live count, table
+ *                    size, the offset of each section, file length, header
+ *                    crc, body crc
+ *          points  - count records of lat, lon, ele and the sin/cos of lat
+ *                    and lon, in insertion order, the record number is the slot.
+ *                    A NaN lat marks a record left dead by a name that was
+ *                    removed and added again while the snapshot was taken
+ *          offsets - count + 1 longs, where each name starts in the strings
+ *          strings - the names, UTF-8, back to back
+ *          table   - open addressing hash of name to record number + 1
+ *
+ *          Files over 1GB are mapped as several regions. Every section starts
+ *          on an 8 byte boundary so numbers never straddle two regions
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class MappedSnapshot {
+
+  public final static int MAGIC   = 0x5750534e;
+  public final static int VERSION = 2;
+
+  public final static int HEADER = 80;
+
+  //Fields per point record, lat, lon, ele, sinLat, cosLat, sinLon, cosLon
+  public final static int FIELDS = 7;
+  public final static int RECORD = FIELDS * 8;
+
+  private final static int REGION_BITS = 30;
+  private final static long REGION_MASK = (1L << REGION_BITS) - 1;
+
+  private final File file;
+  private final ByteBuffer[] regions;
+
+  private final long seq;
+  private final int count;
+  private final int live;
+  private final int tableSize;
+  private final long points;
+  private final long offsets;
+  private final long strings;
+  private final long table;
+  private final long length;
+  private final int bodyCrc;
+
+
+  /**
+   * Map a file and check its header. The body is only checked by verifyBody()
+   */
+  public MappedSnapshot(File file) throws IOException {
+
+    this.file = file;
+
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+    try {
+
+      long size = channel.size();
+
+      if (size < HEADER) {
+        throw new IOException("Snapshot too short: " + file);
+      }
+
+      regions = new ByteBuffer[(int) ((size + REGION_MASK) >>> REGION_BITS)];
+
+      for (int i = 0; i < regions.length; i++) {
+
+        long start = (long) i << REGION_BITS;
+        long span  = Math.min(size - start, 1L << REGION_BITS);
+
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, span);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+
+        regions[i] = region;
+      }
+    } finally {
+      //The mapping outlives the channel
+      channel.close();
+    }
+
+    ByteBuffer head = regions[0];
+
+    if (head.getInt(0) != MAGIC || head.getInt(4) != VERSION) {
+      throw new IOException("Not a version " + VERSION + " snapshot: " + file);
+    }
+
+    if (head.getInt(72) != headerCrc(head)) {
+      throw new IOException("Snapshot header damaged: " + file);
+    }
+
+    seq       = head.getLong(8);
+    count     = head.getInt(16);
+    live      = head.getInt(20);
+    tableSize = head.getInt(24);
+    points    = head.getLong(32);
+    offsets   = head.getLong(40);
+    strings   = head.getLong(48);
+    table     = head.getLong(56);
+    length    = head.getLong(64);
+    bodyCrc   = head.getInt(76);
+
+    if (length != file.length()) {
+      throw new IOException("Snapshot is " + file.length() + " bytes, header says " + length + ": " + file);
+    }
+  }
+
+
+  /**
+   * Crc of the first 72 bytes, everything in the header but the crcs
+   */
+  static int headerCrc(ByteBuffer head) {
+
+    CRC32 crc = new CRC32();
+
+    for (int i = 0; i < 72; i++) {
+      crc.update(head.get(i));
+    }
+
+    return (int) crc.getValue();
+  }
+
+
+  /**
+   * Read the whole body and check it against its crc. Takes as long as
+   * the file is big, so it is run in the background after startup
+   */
+  public boolean verifyBody() {
+
+    CRC32 crc     = new CRC32();
+    byte[] buffer = new byte[256 * 1024];
+    long pos      = HEADER;
+
+    while (pos < length) {
+
+      int span = (int) Math.min(buffer.length, length - pos);
+
+      read(pos, buffer, span);
+      crc.update(buffer, 0, span);
+
+      pos += span;
+    }
+
+    return (int) crc.getValue() == bodyCrc;
+  }
+
+
+  public File getFile() {
+    return file;
+  }
+
+
+  public long getSeq() {
+    return seq;
+  }
+
+
+  /**
+   * Records in the file, dead ones included
+   */
+  public int getCount() {
+    return count;
+  }
+
+
+  public int getLive() {
+    return live;
+  }
+
+
+  public boolean isDead(int record) {
+    return Double.isNaN(value(record, 0));
+  }
+
+
+  /**
+   * One field of a point record, see FIELDS
+   */
+  public double value(int record, int field) {
+    return getDouble(points + (long) record * RECORD + field * 8);
+  }
+
+
+  public String name(int record) {
+
+    long start = getLong(offsets + (long) record * 8);
+    int size   = (int) (getLong(offsets + (long) record * 8 + 8) - start);
+    byte[] raw = new byte[size];
+
+    read(strings + start, raw, size);
+
+    return new String(raw, StandardCharsets.UTF_8);
+  }
+
+
+  /**
+   * Record number of a name, or -1 when it is not in the file
+   */
+  public int find(String name) {
+
+    byte[] raw = name.getBytes(StandardCharsets.UTF_8);
+    int mask   = tableSize - 1;
+
+    for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+
+      int entry = getInt(table + (long) i * 4);
+
+      if (entry == 0) {
+        return -1;
+      }
+
+      if (nameEquals(entry - 1, raw)) {
+        return entry - 1;
+      }
+    }
+  }
+
+
+  /**
+   * Spread the String hash so names that differ only at the end
+   * don't all land in one run of the table
+   */
+  static int hash(String name) {
+
+    int h = name.hashCode() * 0x9e3779b9;
+
+    return h ^ (h >>> 16);
+  }
+
+
+  private boolean nameEquals(int record, byte[] raw) {
+
+    long start = getLong(offsets + (long) record * 8);
+    long end   = getLong(offsets + (long) record * 8 + 8);
+
+    if (end - start != raw.length) {
+      return false;
+    }
+
+    for (int i = 0; i < raw.length; i++) {
+
+      if (getByte(strings + start + i) != raw[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  private ByteBuffer region(long pos) {
+    return regions[(int) (pos >>> REGION_BITS)];
+  }
+
+
+  private double getDouble(long pos) {
+    return region(pos).getDouble((int) (pos & REGION_MASK));
+  }
+
+
+  private long getLong(long pos) {
+    return region(pos).getLong((int) (pos & REGION_MASK));
+  }
+
+
+  private int getInt(long pos) {
+    return region(pos).getInt((int) (pos & REGION_MASK));
+  }
+
+
+  private byte getByte(long pos) {
+    return region(pos).get((int) (pos & REGION_MASK));
+  }
+
+
+  /**
+   * Copy bytes out, they may run across two regions
+   */
+  private void read(long pos, byte[] dst, int size) {
+
+    int done = 0;
+
+    while (done < size) {
+
+      ByteBuffer region = region(pos + done).duplicate();
+      int at            = (int) ((pos + done) & REGION_MASK);
+      int span          = Math.min(size - done, region.capacity() - at);
+
+      region.position(at);
+      region.get(dst, done, span);
+
+      done += span;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package cst420.thread.server;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class streams the names in the library as a json array, walking
+ *          the store's slots a piece at a time as the transport asks for
+ *          them, so listing a library of any size holds one piece of it in
+ *          memory. Like WaypointStore.names() it sees every name that is
+ *          there for the whole walk and never throws, even if the store is
+ *          compacted part way through
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class NameStream implements ResultStream {
+
+  //Characters of json per piece, about one chunk on the wire
+  private final static int PIECE_CHARS = 32 * 1024;
+
+  private final WaypointStore.Walk walk;
+
+  private boolean started;
+  private boolean first = true;
+  private boolean done;
+
+
+  public NameStream(WaypointStore store) {
+    this.walk = store.walk();
+  }
+
+
+  public byte[] next() {
+
+    if (done) {
+      return null;
+    }
+
+    StringBuilder text = new StringBuilder(PIECE_CHARS + 256);
+
+    if (!started) {
+      text.append('[');
+      started = true;
+    }
+
+    String name = null;
+
+    while (text.length() < PIECE_CHARS && (name = walk.next()) != null) {
+
+      if (!first) {
+        text.append(',');
+      }
+
+      text.append(JSONObject.quote(name));
+      first = false;
+    }
+
+    if (name == null) {
+      text.append(']');
+      done = true;
+    }
+
+    return text.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,18 @@
+package cst420.thread.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Purpose: Marks a Server rpc method that only reads the library and 
+ *          has no side effects, so it is safe to run alongside others
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@interface ReadOnly {
+}
@@ -0,0 +1,249 @@
+package cst420.thread.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class keeps the json of @Cached rpc results, keyed by method and
+ *          params, so clients polling the same call are answered without
+ *          working it out or serializing it again. The library has a version
+ *          that every add, modify and remove moves on, and an entry is only
+ *          handed out at the version it was made at, so nothing is served
+ *          that a finished change has made stale
+ *
+ *          Entries are split over segments by key, each its own LRU with an
+ *          equal share of -Dwaypoint.cache.bytes (default 32MB, 0 turns the
+ *          cache off). A result bigger than a segment is never kept
+ *
+ *          An entry also keeps its result deflated, made the first time a
+ *          client that takes compression asks for it. That copy is a fraction
+ *          of the text and isn't counted against the cache's bytes
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class ResponseCache implements WaypointStore.Listener {
+
+  private final static int SEGMENTS = 8;
+
+  //Rough bytes an entry costs on top of its text
+  private final static int ENTRY_OVERHEAD = 96;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final long segmentBytes;
+
+  private final AtomicLong version = new AtomicLong();
+
+  private final LongAdder hits      = new LongAdder();
+  private final LongAdder misses    = new LongAdder();
+  private final LongAdder stale     = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+
+  public ResponseCache(WaypointStore store, long bytes) {
+
+    this.segmentBytes = bytes / SEGMENTS;
+
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+
+    store.addListener(this);
+  }
+
+
+  public boolean isEnabled() {
+    return segmentBytes > 0;
+  }
+
+
+  /**
+   * Version of the library, read before working out a result to put()
+   */
+  public long version() {
+    return version.get();
+  }
+
+
+  public void added(String name, int slot, double lat, double lon, double ele) {
+    version.incrementAndGet();
+  }
+
+
+  public void replaced(String name, int slot, Waypoint before, double lat, double lon, double ele) {
+    version.incrementAndGet();
+  }
+
+
+  public void removed(String name, int slot, Waypoint before) {
+    version.incrementAndGet();
+  }
+
+
+  //Same points in the same order, what was kept still holds
+  public void moved(int[] kept) { }
+
+
+  /**
+   * The result kept for key at the current version, or null
+   */
+  public Entry get(String key) {
+
+    long now      = version.get();
+    Segment shard = segmentFor(key);
+    Entry entry;
+
+    synchronized (shard) {
+
+      entry = shard.map.get(key);
+
+      if (entry != null && entry.version != now) {
+        shard.map.remove(key);
+        shard.bytes -= entry.size;
+        stale.increment();
+        entry = null;
+      }
+    }
+
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+
+    hits.increment();
+
+    return entry;
+  }
+
+
+  /**
+   * Keep a result worked out at version, dropping the least recently
+   * used entries of its segment to make room
+   */
+  public void put(String key, long at, String json) {
+
+    long size = ENTRY_OVERHEAD + 2L * (key.length() + json.length());
+
+    //Made from a library that has moved on since, or too big to keep
+    if (at != version.get() || size > segmentBytes) {
+      return;
+    }
+
+    Segment shard = segmentFor(key);
+
+    synchronized (shard) {
+
+      Entry old = shard.map.put(key, new Entry(at, json, size));
+
+      shard.bytes += size - ((old == null) ? 0 : old.size);
+
+      Iterator<Entry> oldest = shard.map.values().iterator();
+
+      while (shard.bytes > segmentBytes && oldest.hasNext()) {
+
+        Entry entry = oldest.next();
+
+        oldest.remove();
+        shard.bytes -= entry.size;
+        evictions.increment();
+      }
+    }
+  }
+
+
+  /**
+   * Counters since startup, for the cacheStats rpc
+   */
+  public JSONObject getStats() {
+
+    long hit  = hits.sum();
+    long miss = misses.sum();
+    int count = 0;
+    long used = 0;
+
+    for (Segment shard : segments) {
+
+      synchronized (shard) {
+        count += shard.map.size();
+        used  += shard.bytes;
+      }
+    }
+
+    JSONObject stats = new JSONObject();
+
+    stats.put("enabled", isEnabled());
+    stats.put("hits", hit);
+    stats.put("misses", miss);
+    stats.put("hitRate", (hit + miss == 0) ? 0.0 : (double) hit / (hit + miss));
+    stats.put("stale", stale.sum());
+    stats.put("evictions", evictions.sum());
+    stats.put("entries", count);
+    stats.put("bytes", used);
+    stats.put("capacity", segmentBytes * SEGMENTS);
+    stats.put("version", version.get());
+
+    return stats;
+  }
+
+
+  private Segment segmentFor(String key) {
+
+    int h = key.hashCode();
+
+    return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+  }
+
+
+  /**
+   * Purpose: One LRU share of the cache, guarded by its own monitor
+   */
+  private static class Segment {
+
+    final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    long bytes;
+  }
+
+
+  /**
+   * Purpose: A result's json and the library version it holds for
+   */
+  static class Entry {
+
+    final long version;
+    final String json;
+    final long size;
+
+    //Made on first use, two threads may both make it and that's fine
+    private volatile ContentCoding.Fragment compressed;
+
+
+    Entry(long version, String json, long size) {
+
+      this.version = version;
+      this.json    = json;
+      this.size    = size;
+    }
+
+
+    public String getJSON() {
+      return json;
+    }
+
+
+    public ContentCoding.Fragment getCompressed() {
+
+      ContentCoding.Fragment made = compressed;
+
+      if (made == null) {
+        made       = new ContentCoding.Fragment(json);
+        compressed = made;
+      }
+
+      return made;
+    }
+  }
+}
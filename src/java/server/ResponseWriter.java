@@ -0,0 +1,488 @@
+package cst420.thread.server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Purpose: Class encodes http responses straight into pooled buffers. The
+ *          body is run through one reused UTF-8 encoder, the headers are
+ *          copied from bytes encoded once up front with the Content-Length
+ *          digits written in place, so the only thing made per response is
+ *          the small HttpResponse pointing at the buffers. The transport
+ *          writes those with a gathering write and gives them back
+ *
+ *          A body is gzipped or deflated when the client takes it and it is
+ *          big enough to be worth it, see ContentCoding
+ *
+ *          One writer per handler, it is not safe to share between threads
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class ResponseWriter {
+
+  private final static byte[] STATUS_OK      = ascii("HTTP/1.1 200 OK\r\n");
+  private final static byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+  private final static byte[] CONTENT_TYPE   = ascii("Content-Type: application/json\r\n");
+  private final static byte[] TEXT_TYPE      = ascii("Content-Type: text/plain; version=0.0.4\r\n");
+  private final static byte[] CHUNKED        = ascii("Transfer-Encoding: chunked\r\n");
+  private final static byte[] CLOSE          = ascii("Connection: close\r\n");
+  private final static byte[] VARY           = ascii("Vary: Accept-Encoding\r\n");
+  private final static byte[] GZIPPED        = ascii("Content-Encoding: gzip\r\n");
+  private final static byte[] DEFLATED       = ascii("Content-Encoding: deflate\r\n");
+  private final static byte[] CRLF           = ascii("\r\n");
+
+  private final static byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n"
+                                               + "Keep-Alive: timeout=" + (Server.KEEPALIVE_TIMEOUT / 1000) + ", max=" + Server.KEEPALIVE_MAX + "\r\n");
+
+  //Same replacement for bad surrogates as String.getBytes, so
+  //encoding never fails part way
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                                                               .onMalformedInput(CodingErrorAction.REPLACE)
+                                                               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  //Body buffers of the response being built, the first is kept for the
+  //headers, and the one being filled
+  private ByteBuffer[] buffers;
+  private int count;
+  private ByteBuffer out;
+
+
+  /**
+   * A complete response with a json body
+   */
+  public HttpResponse json(CharSequence json, boolean keepAlive) {
+    return json(json, ContentCoding.IDENTITY, keepAlive);
+  }
+
+
+  /**
+   * Same, compressed with coding if it is big enough
+   */
+  public HttpResponse json(CharSequence json, int coding, boolean keepAlive) {
+    return body(json, CONTENT_TYPE, coding, keepAlive);
+  }
+
+
+  /**
+   * A complete response with a plain text body, the metrics page
+   */
+  public HttpResponse text(CharSequence text, int coding, boolean keepAlive) {
+    return body(text, TEXT_TYPE, coding, keepAlive);
+  }
+
+
+  private HttpResponse body(CharSequence text, byte[] type, int coding, boolean keepAlive) {
+
+    begin();
+
+    CharBuffer in = CharBuffer.wrap(text);
+
+    encoder.reset();
+
+    for (boolean flushing = false; ; ) {
+
+      CoderResult result = flushing ? encoder.flush(out) : encoder.encode(in, out, true);
+
+      if (result.isOverflow()) {
+        next();
+      } else if (!flushing) {
+        flushing = true;
+      } else {
+        break;
+      }
+    }
+
+    if (coding == ContentCoding.IDENTITY || bodyLength() < ContentCoding.MIN_SIZE) {
+      return finish(type, ContentCoding.IDENTITY, keepAlive);
+    }
+
+    compress(coding);
+
+    return finish(type, coding, keepAlive);
+  }
+
+
+  /**
+   * A compressed json body made of a result deflated earlier, with the
+   * envelope around it sent as stored blocks
+   */
+  public HttpResponse json(byte[] head, ContentCoding.Fragment result, byte[] tail, int coding, boolean keepAlive) {
+
+    begin();
+
+    put(ContentCoding.header(coding));
+
+    room(head.length + 5);
+    ContentCoding.putStored(out, head, false);
+
+    put(result.getDeflated());
+
+    room(tail.length + 5);
+    ContentCoding.putStored(out, tail, true);
+
+    long check = ContentCoding.combine(coding, ContentCoding.check(coding, head), result.getCheck(coding), result.getLength());
+    check      = ContentCoding.combine(coding, check, ContentCoding.check(coding, tail), tail.length);
+
+    put(ContentCoding.trailer(coding, check, head.length + result.getLength() + tail.length));
+
+    return finish(CONTENT_TYPE, coding, keepAlive);
+  }
+
+
+  /**
+   * Headers for a body that follows in chunks as it is made
+   */
+  public HttpResponse chunked(ResultStream body, boolean keepAlive) {
+    return chunked(body, ContentCoding.IDENTITY, keepAlive);
+  }
+
+
+  /**
+   * Same, the chunks compressed with coding as they are pulled
+   */
+  public HttpResponse chunked(ResultStream body, int coding, boolean keepAlive) {
+
+    ByteBuffer head = BufferPool.acquire();
+
+    head.put(STATUS_OK);
+    head.put(CHUNKED);
+    head.put(CONTENT_TYPE);
+    head.put(VARY);
+
+    if (coding != ContentCoding.IDENTITY) {
+      head.put((coding == ContentCoding.GZIP) ? GZIPPED : DEFLATED);
+      body = new CompressedStream(body, coding);
+    }
+
+    head.put(keepAlive ? KEEP_ALIVE : CLOSE);
+    head.put(CRLF);
+
+    return new HttpResponse(new ByteBuffer[] { head.flip() }, 1, body);
+  }
+
+
+  /**
+   * A bodiless error, the connection is always closed after it
+   */
+  public HttpResponse error(int status, String reason) {
+
+    ByteBuffer head = BufferPool.acquire();
+
+    head.put(ascii("HTTP/1.1 " + status + " " + reason + "\r\n"));
+    head.put(CONTENT_LENGTH);
+    putDecimal(head, 0);
+    head.put(CRLF);
+    head.put(CLOSE);
+    head.put(CRLF);
+
+    return new HttpResponse(new ByteBuffer[] { head.flip() }, 1, null);
+  }
+
+
+  /**
+   * Start a body, leaving the first buffer for the headers
+   */
+  private void begin() {
+
+    buffers = new ByteBuffer[4];
+    count   = 1;
+    out     = BufferPool.acquire();
+  }
+
+
+  /**
+   * The buffer being filled is full, start another
+   */
+  private void next() {
+
+    add();
+    out = BufferPool.acquire();
+  }
+
+
+  /**
+   * The buffer being filled is done
+   */
+  private void add() {
+
+    if (count == buffers.length) {
+      buffers = Arrays.copyOf(buffers, count * 2);
+    }
+
+    buffers[count++] = out.flip();
+  }
+
+
+  /**
+   * Make sure the next bytes written fit in one buffer
+   */
+  private void room(int bytes) {
+
+    if (out.remaining() < bytes) {
+      next();
+    }
+  }
+
+
+  private void put(byte[] bytes) {
+
+    int at = 0;
+
+    while (at < bytes.length) {
+
+      if (!out.hasRemaining()) {
+        next();
+      }
+
+      int size = Math.min(out.remaining(), bytes.length - at);
+
+      out.put(bytes, at, size);
+      at += size;
+    }
+  }
+
+
+  /**
+   * Bytes in the finished body buffers
+   */
+  private long bodyLength() {
+
+    long length = out.position();
+
+    for (int i = 1; i < count; i++) {
+      length += buffers[i].remaining();
+    }
+
+    return length;
+  }
+
+
+  /**
+   * Deflate the body written so far in place of it
+   */
+  private void compress(int coding) {
+
+    add();
+
+    ByteBuffer[] plain = buffers;
+    int plainCount     = count;
+
+    Deflater deflater = ContentCoding.acquire();
+    Checksum check    = ContentCoding.checksum(coding);
+    long length       = 0;
+
+    begin();
+
+    try {
+
+      put(ContentCoding.header(coding));
+
+      for (int i = 1; i < plainCount; i++) {
+
+        length += plain[i].remaining();
+        check.update(plain[i].duplicate());
+        deflater.setInput(plain[i]);
+
+        while (!deflater.needsInput()) {
+          deflate(deflater);
+        }
+      }
+
+      deflater.finish();
+
+      while (!deflater.finished()) {
+        deflate(deflater);
+      }
+    } finally {
+
+      ContentCoding.release(deflater);
+
+      for (int i = 1; i < plainCount; i++) {
+        BufferPool.release(plain[i]);
+      }
+    }
+
+    put(ContentCoding.trailer(coding, check.getValue(), length));
+  }
+
+
+  private void deflate(Deflater deflater) {
+
+    if (!out.hasRemaining()) {
+      next();
+    }
+
+    deflater.deflate(out);
+  }
+
+
+  /**
+   * Put the headers in front of the body and hand it all over
+   */
+  private HttpResponse finish(byte[] type, int coding, boolean keepAlive) {
+
+    add();
+
+    long length = 0;
+
+    for (int i = 1; i < count; i++) {
+      length += buffers[i].remaining();
+    }
+
+    ByteBuffer head = BufferPool.acquire();
+
+    head.put(STATUS_OK);
+    head.put(CONTENT_LENGTH);
+    putDecimal(head, length);
+    head.put(CRLF);
+    head.put(type);
+    head.put(VARY);
+
+    if (coding != ContentCoding.IDENTITY) {
+      head.put((coding == ContentCoding.GZIP) ? GZIPPED : DEFLATED);
+    }
+
+    head.put(keepAlive ? KEEP_ALIVE : CLOSE);
+    head.put(CRLF);
+
+    buffers[0] = head.flip();
+
+    HttpResponse response = new HttpResponse(buffers, count, null);
+
+    buffers = null;
+    out     = null;
+
+    return response;
+  }
+
+
+  private static void putDecimal(ByteBuffer out, long value) {
+
+    if (value >= 10) {
+      putDecimal(out, value / 10);
+    }
+
+    out.put((byte) ('0' + value % 10));
+  }
+
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+
+  /**
+   * Purpose: A streamed result compressed as the transport pulls it. Pieces
+   *          are pulled until the deflater has something to give, so no empty
+   *          chunks go out, and the header and trailer ride on the first and
+   *          last of them
+   */
+  private static class CompressedStream implements ResultStream {
+
+    private final ResultStream source;
+    private final int coding;
+    private final Checksum check;
+
+    private Deflater deflater = ContentCoding.acquire();
+    private byte[] scratch    = new byte[8192];
+    private long length;
+    private boolean started;
+
+
+    CompressedStream(ResultStream source, int coding) {
+
+      this.source = source;
+      this.coding = coding;
+      this.check  = ContentCoding.checksum(coding);
+    }
+
+
+    public byte[] next() {
+
+      if (deflater == null) {
+        return null;
+      }
+
+      try {
+
+        int size = 0;
+
+        if (!started) {
+
+          byte[] header = ContentCoding.header(coding);
+
+          System.arraycopy(header, 0, scratch, 0, header.length);
+          size    = header.length;
+          started = true;
+        }
+
+        int start = size;
+
+        while (size == start || !deflater.needsInput()) {
+
+          if (deflater.needsInput()) {
+
+            byte[] piece = source.next();
+
+            if (piece == null) {
+              return last(size);
+            }
+
+            length += piece.length;
+            check.update(piece, 0, piece.length);
+            deflater.setInput(piece);
+          }
+
+          size = drain(size);
+        }
+
+        return Arrays.copyOf(scratch, size);
+      } catch (RuntimeException e) {
+        deflater.end();
+        deflater = null;
+        throw e;
+      }
+    }
+
+
+    /**
+     * The source is done, finish the body off and give the deflater back
+     */
+    private byte[] last(int size) {
+
+      deflater.finish();
+
+      while (!deflater.finished()) {
+        size = drain(size);
+      }
+
+      byte[] trailer = ContentCoding.trailer(coding, check.getValue(), length);
+      byte[] piece   = Arrays.copyOf(scratch, size + trailer.length);
+
+      System.arraycopy(trailer, 0, piece, size, trailer.length);
+
+      ContentCoding.release(deflater);
+      deflater = null;
+
+      return piece;
+    }
+
+
+    private int drain(int size) {
+
+      if (size == scratch.length) {
+        scratch = Arrays.copyOf(scratch, scratch.length * 2);
+      }
+
+      return size + deflater.deflate(scratch, size, scratch.length - size);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package cst420.thread.server;
+
+/**
+ * Purpose: Interface for an rpc result too big to build in memory. A Server
+ *          method returns one instead of a JSONArray and the transport pulls
+ *          it a piece at a time as the socket drains, sending each piece as
+ *          one chunk of a chunked http response
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+interface ResultStream {
+
+  /**
+   * The next run of the result's json text, UTF-8 encoded, or null once
+   * the whole result has been handed out
+   */
+  byte[] next();
+}
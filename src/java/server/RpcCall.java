@@ -0,0 +1,214 @@
+package cst420.thread.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class is one json-rpc call as read from a request, its method,
+ *          id and params, or the error it is to be answered with when it
+ *          isn't a call at all. It is read off a JsonReader member by member,
+ *          in whatever order the client sent them, or made from what org.json
+ *          parsed when the body needed the lenient parser
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class RpcCall {
+
+  private String method;
+  private Object id = JSONObject.NULL;
+  private boolean notification;
+  private final RpcParams params = new RpcParams();
+
+  //Set when the call is answered with an error rather than run
+  private int errorCode;
+  private String errorMessage;
+
+
+  /**
+   * Read every call of a batch, the reader is at its '['
+   */
+  public static RpcCall[] readBatch(JsonReader in) {
+
+    List<RpcCall> calls = new ArrayList<RpcCall>();
+
+    if (in.beginArray()) {
+      do {
+        calls.add(new RpcCall().read(in));
+      } while (in.more(']'));
+    }
+
+    return calls.toArray(new RpcCall[calls.size()]);
+  }
+
+
+  /**
+   * Read one call, anything but an object is an invalid request
+   */
+  public RpcCall read(JsonReader in) {
+
+    clear();
+
+    if (in.peek() != '{') {
+      in.skipValue();
+      return fail(Server.INVALID_REQUEST, "Invalid Request");
+    }
+
+    boolean hasMethod = false;
+    boolean badParams = false;
+
+    notification = true;
+
+    if (in.beginObject()) {
+      do {
+
+        String key = in.nextName();
+
+        if (key.equals("method")) {
+
+          hasMethod = in.peek() == '"';
+
+          if (hasMethod) {
+            method = in.nextString();
+          } else {
+            in.skipValue();
+          }
+        } else if (key.equals("id")) {
+          id           = in.readValue();
+          notification = false;
+        } else if (key.equals("params")) {
+
+          //No matter if null or not, the method gets params for consistency
+          int first = in.peek();
+
+          if (first == '[') {
+            params.read(in);
+            badParams = false;
+          } else if (first == 'n') {
+            in.nextNull();
+            params.clear();
+            badParams = false;
+          } else {
+            in.skipValue();
+            badParams = true;
+          }
+        } else {
+          in.skipValue();
+        }
+      } while (in.more('}'));
+    }
+
+    return check(hasMethod, badParams);
+  }
+
+
+  /**
+   * A call as org.json parsed it
+   */
+  public static RpcCall fromJSON(Object call) {
+
+    RpcCall read = new RpcCall();
+
+    if (!(call instanceof JSONObject)) {
+      return read.fail(Server.INVALID_REQUEST, "Invalid Request");
+    }
+
+    JSONObject obj = (JSONObject) call;
+    Object raw     = obj.opt("params");
+
+    read.notification = !obj.has("id");
+    read.id           = obj.has("id") ? obj.get("id") : JSONObject.NULL;
+
+    if (obj.opt("method") instanceof String) {
+      read.method = obj.getString("method");
+    }
+
+    if (raw instanceof JSONArray) {
+      read.params.addAll((JSONArray) raw);
+    }
+
+    return read.check(read.method != null, raw != null && raw != JSONObject.NULL && !(raw instanceof JSONArray));
+  }
+
+
+  private RpcCall check(boolean hasMethod, boolean badParams) {
+
+    if (!hasMethod) {
+      return fail(Server.INVALID_REQUEST, "Invalid Request");
+    }
+
+    if (badParams) {
+      return fail(Server.INVALID_PARAMS, "Params must be an array");
+    }
+
+    return this;
+  }
+
+
+  private RpcCall fail(int code, String message) {
+
+    errorCode    = code;
+    errorMessage = message;
+
+    return this;
+  }
+
+
+  private void clear() {
+
+    method       = null;
+    id           = JSONObject.NULL;
+    notification = false;
+    errorCode    = 0;
+    errorMessage = null;
+
+    params.clear();
+  }
+
+
+  public String getMethod() {
+    return method;
+  }
+
+
+  /**
+   * Id to answer with, JSONObject.NULL when the call has none
+   */
+  public Object getId() {
+    return id;
+  }
+
+
+  /**
+   * A call without an id is run but never answered
+   */
+  public boolean isNotification() {
+    return notification;
+  }
+
+
+  public RpcParams getParams() {
+    return params;
+  }
+
+
+  /**
+   * True when the call is to be answered with getErrorCode() and not run
+   */
+  public boolean isError() {
+    return errorCode != 0;
+  }
+
+
+  public int getErrorCode() {
+    return errorCode;
+  }
+
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+}
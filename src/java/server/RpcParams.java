@@ -0,0 +1,246 @@
+package cst420.thread.server;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class holds the params of one rpc call, decoded as they are read.
+ *          Numbers are kept as doubles and strings as Strings, so a method
+ *          reads its args with the same getString/getDouble/getInt calls it
+ *          used on a JSONArray but nothing is boxed or built up in between.
+ *          Arrays and objects, which only calcDistBearMatrix takes, are kept
+ *          as the org.json values JsonReader.readValue() gives
+ *
+ *          A getter asked for the wrong type throws IllegalArgumentException,
+ *          which the client is sent as invalid params
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class RpcParams implements JsonValue {
+
+  private final static byte NULL   = 0;
+  private final static byte NUMBER = 1;
+  private final static byte STRING = 2;
+  private final static byte OTHER  = 3;
+
+  private byte[] kinds     = new byte[4];
+  private double[] numbers = new double[4];
+  private Object[] values  = new Object[4];
+  private int count;
+
+
+  /**
+   * Empty the params for the next call to fill
+   */
+  public RpcParams clear() {
+
+    Arrays.fill(values, 0, count, null);
+    count = 0;
+
+    return this;
+  }
+
+
+  /**
+   * Read the elements of the json array in at its start
+   */
+  public RpcParams read(JsonReader in) {
+
+    clear();
+
+    if (!in.beginArray()) {
+      return this;
+    }
+
+    do {
+
+      switch (in.peek()) {
+        case '"':
+          add(in.nextString());
+          break;
+        case 'n':
+          in.nextNull();
+          add(NULL, 0, null);
+          break;
+        case '{':
+        case '[':
+        case 't':
+        case 'f':
+          addValue(in.readValue());
+          break;
+        default:
+          add(in.nextDouble());
+          break;
+      }
+    } while (in.more(']'));
+
+    return this;
+  }
+
+
+  public RpcParams add(String value) {
+    return add(STRING, 0, value);
+  }
+
+
+  public RpcParams add(double value) {
+    return add(NUMBER, value, null);
+  }
+
+
+  /**
+   * Add the elements of an array as the org.json parser left it
+   */
+  public RpcParams addAll(JSONArray arr) {
+
+    for (int i = 0; i < arr.length(); i++) {
+      addValue(arr.get(i));
+    }
+
+    return this;
+  }
+
+
+  /**
+   * Add any org.json value, numbers and strings still go in unboxed
+   */
+  public RpcParams addValue(Object value) {
+
+    if (value instanceof Number) {
+      return add(((Number) value).doubleValue());
+    }
+
+    if (value instanceof String) {
+      return add((String) value);
+    }
+
+    if (value == null || value == JSONObject.NULL) {
+      return add(NULL, 0, null);
+    }
+
+    return add(OTHER, 0, value);
+  }
+
+
+  private RpcParams add(byte kind, double number, Object value) {
+
+    if (count == kinds.length) {
+      kinds   = Arrays.copyOf(kinds, count * 2);
+      numbers = Arrays.copyOf(numbers, count * 2);
+      values  = Arrays.copyOf(values, count * 2);
+    }
+
+    kinds[count]   = kind;
+    numbers[count] = number;
+    values[count]  = value;
+    count++;
+
+    return this;
+  }
+
+
+  public int length() {
+    return count;
+  }
+
+
+  public boolean isNull(int i) {
+    return kinds[check(i)] == NULL;
+  }
+
+
+  /**
+   * True when param i would pass for the example value type the spec gives
+   */
+  public boolean isInstance(int i, Class<?> type) {
+
+    switch (kinds[check(i)]) {
+      case NUMBER:
+        return type == Number.class;
+      case STRING:
+        return type == String.class;
+      case OTHER:
+        return type.isInstance(values[i]);
+      default:
+        return false;
+    }
+  }
+
+
+  public String getString(int i) {
+
+    if (kinds[check(i)] != STRING) {
+      throw new IllegalArgumentException("Param " + i + " is not a string");
+    }
+
+    return (String) values[i];
+  }
+
+
+  public double getDouble(int i) {
+
+    if (kinds[check(i)] != NUMBER) {
+      throw new IllegalArgumentException("Param " + i + " is not a number");
+    }
+
+    return numbers[i];
+  }
+
+
+  public int getInt(int i) {
+    return (int) getDouble(i);
+  }
+
+
+  public JSONArray getJSONArray(int i) {
+
+    if (!(values[check(i)] instanceof JSONArray)) {
+      throw new IllegalArgumentException("Param " + i + " is not an array");
+    }
+
+    return (JSONArray) values[i];
+  }
+
+
+  private int check(int i) {
+
+    if (i < 0 || i >= count) {
+      throw new IllegalArgumentException("No param " + i);
+    }
+
+    return i;
+  }
+
+
+  public void writeJSON(JsonWriter out) {
+
+    out.beginArray();
+
+    for (int i = 0; i < count; i++) {
+
+      if (kinds[i] == NUMBER) {
+        out.value(numbers[i]);
+      } else {
+        out.value(values[i]);
+      }
+    }
+
+    out.endArray();
+  }
+
+
+  /**
+   * The params as json, what the response cache keys calls on
+   */
+  public String toString() {
+
+    StringBuilder text = new StringBuilder(16 * count + 2);
+
+    writeJSON(new JsonWriter(text));
+
+    return text.toString();
+  }
+}
@@ -0,0 +1,1731 @@
+package cst420.thread.server;
+
+import java.util.*;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Purpose: Class acts a waypoint managemeet server. 
+ *          It takes in http json requests, parses them and 
+ *          returns http json responses
+ * 
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class Server implements Runnable {
+
+  private Socket socket;
+
+  //How long a connection may sit without sending its request
+  private final static int READ_TIMEOUT = Integer.getInteger("waypoint.read.timeout", 30000);
+
+  //Largest request body we will buffer
+  public final static int MAX_REQUEST = Integer.getInteger("waypoint.max.request", 1024 * 1024);
+
+  //How long a persistent connection may sit idle between requests
+  public final static int KEEPALIVE_TIMEOUT = Integer.getInteger("waypoint.keepalive.timeout", 5000);
+
+  //Requests answered on one connection before we ask the client to reconnect
+  public final static int KEEPALIVE_MAX = Integer.getInteger("waypoint.keepalive.max", 100);
+
+  //Closes the envelope around a result
+  private final static byte[] RESULT_TAIL = { '}' };
+
+  //Counter for json responses to calls that did not send an id
+  private final static AtomicInteger jsonid = new AtomicInteger();
+
+  //Id of the call being answered, echoed back in its result
+  private Object replyId;
+
+  //True while answering a lone call over a connection that can take a chunked body
+  private boolean streamable;
+
+  //True while answering a batch, its writes are synced once at the end
+  private boolean batching;
+
+  //True while answering a lone call, which may wait for the library to change
+  private boolean waitable;
+
+  //Set for a transport that can put a waiting call aside, see parkCalls
+  private boolean parking;
+
+  //Where such a transport has requests that write run, see parkWrite
+  private Executor writers;
+
+  //Call of the request just handled that was put aside, for the transport
+  private Parked parked;
+
+  //Streamed result of the call just answered, for the transport to send
+  private ResultStream stream;
+
+  //Content coding the client of the current request takes
+  private int accepts = ContentCoding.IDENTITY;
+
+  //Kept compressed result of the call just answered, sent in place of its json
+  private ContentCoding.Fragment compressed;
+
+  //Time the request being answered has spent in each phase so far
+  private long parseNanos;
+  private long dispatchNanos;
+  private long serializeNanos;
+
+  //When the call being answered had its result, 0 until it does
+  private long resultReady;
+
+  //True once the call being answered is given an error
+  private boolean failed;
+
+  //Encodes this handler's http responses, made on first use
+  private ResponseWriter writer;
+
+  //Json envelope of the result being built, reused call after call
+  private final StringBuilder reply    = new StringBuilder(256);
+  private final JsonWriter replyWriter = new JsonWriter(reply);
+
+  //Where the result starts in reply, after the envelope's head
+  private int resultAt;
+
+  //Reads request bodies, and the lone call of one that isn't a batch
+  private final JsonReader reader = new JsonReader();
+  private final RpcCall call      = new RpcCall();
+
+  //Most calls accepted in one batch
+  public final static int BATCH_MAX = Integer.getInteger("waypoint.batch.max", 1000);
+
+  //Run consecutive read only calls of a batch in parallel
+  public final static boolean BATCH_PARALLEL = Boolean.getBoolean("waypoint.batch.parallel");
+
+  public final static WaypointStore waypointList = new WaypointStore();
+
+  //Log the library is kept in across restarts, null when it only lives in memory
+  public static volatile WriteAheadLog journal;
+
+  //Grid over the library for the nearest, radius and box queries
+  public final static SpatialIndex spatialIndex = new SpatialIndex(waypointList);
+
+  //Latest changes to the library, for clients that keep a copy of it
+  public final static ChangeLog changeLog = new ChangeLog(waypointList);
+
+  //Json of @Cached results, good until the library next changes
+  public final static ResponseCache responseCache = new ResponseCache(waypointList, Long.getLong("waypoint.cache.bytes", 32L * 1024 * 1024));
+
+  //Most points a nearestWaypoints call may ask for
+  public final static int NEAREST_MAX = Integer.getInteger("waypoint.nearest.max", 10000);
+
+  //Most origin/destination pairs one calcDistBearMatrix call may ask for
+  public final static long MATRIX_MAX = Long.getLong("waypoint.matrix.max", 25000000L);
+
+  //Most names one getNamesPage call may ask for
+  public final static int PAGE_MAX = Integer.getInteger("waypoint.page.max", 10000);
+
+  //Longest a waitForChanges call may wait, in ms
+  public final static long WATCH_MAX = Long.getLong("waypoint.watch.max", 30000L);
+
+  //Slots are only stable while the server runs, cursors carry this so
+  //one from before a restart is turned away instead of skipping names.
+  //Compaction renumbers them too, cursors carry the numbering as well
+  private final static long CURSOR_EPOCH = System.currentTimeMillis();
+
+  //Holds the key name of the waypoint data currently being viewed
+  public static volatile String lastLookup = "";
+
+  public final static boolean debugOn = false;
+  
+  public final static int STATUTE    = 0;
+  public final static int NAUTICAL   = 1;
+  public final static int KMETER     = 2;
+  public final static double radiusE = 6371;
+
+  //JSON-RPC 2.0 error codes
+  public final static int PARSE_ERROR      = -32700;
+  public final static int INVALID_REQUEST  = -32600;
+  public final static int METHOD_NOT_FOUND = -32601;
+  public final static int INVALID_PARAMS   = -32602;
+  public final static int INTERNAL_ERROR   = -32603;
+
+
+  /**
+   * Constructor - Save client connection
+   */
+  public Server(Socket socket) {
+    this.socket = socket;
+  }
+
+
+  /**
+   * Constructor - No connection, used by the event loop which owns
+   * the sockets and only needs the dispatch logic
+   */
+  public Server() {
+    this(null);
+  }
+
+
+  /**
+   * Put calls that wait aside rather than block in them, for a transport
+   * that can answer later without a thread held for it. handleRequest then
+   * gives null for such a call, see takeParked and resume. Requests that
+   * write are put aside too and run on writers, they wait for the log
+   */
+  public void parkCalls(Executor writers) {
+
+    this.parking = true;
+    this.writers = writers;
+  }
+
+
+  /****************
+   * BEGIN HANDLER - (Move to another file eventually)
+   ***************/
+
+
+  /**
+   * Thread method that is automatically called, handle our client
+   */
+  public void run() {
+
+    ServerMetrics.opened();
+
+    //Parse input/output
+    try {
+      postResponse();
+    } catch (IOException ex) {
+      System.out.println("Can't parse input or send a response!" + ex.getMessage());
+    } finally {
+      closeSocket();
+      ServerMetrics.closed();
+    }
+  }
+
+
+  /**
+   * Handle the POSTs on this connection. Requests are answered in the order
+   * they arrive, so pipelined requests just wait in the buffer for their turn
+   */
+  public void postResponse() throws IOException {
+    
+    OutputStream out = null;
+    InputStream in   = null;
+
+    int bufferSize = 0;
+
+    //Getters
+    bufferSize = socket.getReceiveBufferSize();
+    out        = new BufferedOutputStream(socket.getOutputStream());
+    in         = socket.getInputStream();
+
+    //Container for what has been read but not parsed yet
+    byte[] bytes       = new byte[bufferSize];
+    ByteBuffer pending = ByteBuffer.wrap(bytes);
+
+    pending.limit(0);
+
+    HttpRequestParser request = new HttpRequestParser(MAX_REQUEST);
+
+    int served        = 0;
+    boolean keepAlive = true;
+
+    try {
+
+      while (keepAlive) {
+
+        //A request is being read from its first byte in until it is all here
+        long readStart = System.nanoTime();
+
+        //Build the request, reading until the headers and body are all here
+        while (!request.feed(pending)) {
+
+          //Answers to earlier pipelined requests go out before we block
+          out.flush();
+
+          //Block on the socket rather than polling it, but never forever
+          boolean idle = (served > 0 && request.isEmpty());
+          socket.setSoTimeout(idle ? KEEPALIVE_TIMEOUT : READ_TIMEOUT);
+
+          int count;
+
+          try {
+            count = in.read(bytes);
+          } catch (SocketTimeoutException e) {
+
+            //A quiet persistent connection is not an error
+            if (idle) {
+              return;
+            }
+
+            throw e;
+          }
+
+          //Client hung up, either between requests or part way through one
+          if (count < 0) {
+            return;
+          }
+
+          pending.clear();
+          pending.limit(count);
+
+          if (request.isEmpty()) {
+            readStart = System.nanoTime();
+          }
+        }
+
+        ServerMetrics.phase(ServerMetrics.READ, System.nanoTime() - readStart);
+
+        served++;
+        keepAlive = request.isKeepAlive() && served < KEEPALIVE_MAX;
+
+        HttpResponse response = handleRequest(request, keepAlive);
+        long writeStart       = System.nanoTime();
+
+        //Send back a message (this is the http response from server)
+        writeResponse(out, response);
+
+        ServerMetrics.phase(ServerMetrics.WRITE, System.nanoTime() - writeStart);
+
+        request.reset();
+      }
+    } catch (HttpRequestParser.ParseException ex) {
+      writeResponse(out, errorResponse(ex.getStatus(), ex.getMessage()));
+    } finally {
+      out.flush();
+    }
+  }
+
+
+  /**
+   * Call the server method from the body of a complete http request and
+   * build the http response for it. A lone call with a streamed result is
+   * answered with a chunked body when the client speaks HTTP/1.1, and the
+   * body is compressed when the client takes gzip or deflate. GET /metrics
+   * is answered with the server's metrics as text. Null when the call was
+   * parked, see parkCalls
+   */
+  public HttpResponse handleRequest(HttpRequestParser request, boolean keepAlive) {
+
+    int coding = ContentCoding.negotiate(request.getHeader("Accept-Encoding"));
+
+    if ("GET".equals(request.getMethod()) && isMetricsPage(request.getTarget())) {
+      return responseWriter().text(ServerMetrics.toText(), coding, keepAlive);
+    }
+
+    ServerMetrics.requestStarted();
+
+    parseNanos     = 0;
+    dispatchNanos  = 0;
+    serializeNanos = 0;
+
+    streamable = "HTTP/1.1".equals(request.getVersion());
+    waitable   = true;
+    accepts    = coding;
+
+    try {
+
+      String json;
+
+      try {
+        json = parseJSON(request.getBody(), request.getBodyLength());
+      } finally {
+        streamable = false;
+        waitable   = false;
+        accepts    = ContentCoding.IDENTITY;
+      }
+
+      if (parked != null) {
+        parked.coding    = coding;
+        parked.keepAlive = keepAlive;
+        return null;
+      }
+
+      long start = System.nanoTime();
+
+      HttpResponse response = encodeResponse(json, coding, keepAlive);
+
+      ServerMetrics.phase(ServerMetrics.PARSE, parseNanos);
+      ServerMetrics.phase(ServerMetrics.DISPATCH, dispatchNanos);
+      ServerMetrics.phase(ServerMetrics.SERIALIZE, serializeNanos + System.nanoTime() - start);
+
+      return response;
+    } finally {
+      ServerMetrics.requestDone();
+    }
+  }
+
+
+  private HttpResponse encodeResponse(String json, int coding, boolean keepAlive) {
+
+    ResultStream body = stream;
+    stream            = null;
+
+    if (body != null) {
+      return responseWriter().chunked(body, coding, keepAlive);
+    }
+
+    ContentCoding.Fragment result = compressed;
+    compressed                    = null;
+
+    //A cache hit already compressed, only the envelope around it is new
+    if (result != null && json.length() > 0) {
+      return responseWriter().json(reply.substring(0, resultAt).getBytes(StandardCharsets.UTF_8), result, RESULT_TAIL, coding, keepAlive);
+    }
+
+    return responseWriter().json(json, coding, keepAlive);
+  }
+
+
+  /**
+   * The call handleRequest last parked, handed over once
+   */
+  public Parked takeParked() {
+
+    Parked call = parked;
+    parked      = null;
+
+    return call;
+  }
+
+
+  /**
+   * Answer a parked call now it is ready, on the thread that uses this
+   * handler. The time it waited isn't in its latency
+   */
+  public HttpResponse resume(Parked call) {
+
+    if (call.answer != null) {
+      return responseWriter().json(call.answer, call.coding, call.keepAlive);
+    }
+
+    replyId = call.id;
+
+    return responseWriter().json(setupJSONResult(call.result), call.coding, call.keepAlive);
+  }
+
+
+  /**
+   * GET /metrics, with or without a query
+   */
+  private static boolean isMetricsPage(String target) {
+    return target.equals("/metrics") || target.startsWith("/metrics?");
+  }
+
+
+  /**
+   * Response for a request we could not read, the connection is always
+   * closed after it
+   */
+  public HttpResponse errorResponse(int status, String reason) {
+    return responseWriter().error(status, reason);
+  }
+
+
+  private ResponseWriter responseWriter() {
+
+    if (writer == null) {
+      writer = new ResponseWriter();
+    }
+
+    return writer;
+  }
+
+
+  /**
+   * Write a response to the blocking socket, pulling a streamed body
+   * through chunk by chunk
+   */
+  public void writeResponse(OutputStream out, HttpResponse response) throws IOException {
+
+    response.writeTo(out);
+
+    if (!response.isStreamed()) {
+      return;
+    }
+
+    byte[] piece;
+
+    try {
+
+      while ((piece = response.getBody().next()) != null) {
+
+        //A zero length chunk would end the body early
+        if (piece.length == 0) {
+          continue;
+        }
+
+        out.write(HttpResponse.chunkHeader(piece.length));
+        out.write(piece);
+        out.write(HttpResponse.CRLF);
+      }
+    } catch (RuntimeException e) {
+
+      //Too late for an error response, the client sees the body cut short
+      throw new IOException("Result stream failed: " + e, e);
+    }
+
+    out.write(HttpResponse.LAST_CHUNK);
+  }
+
+
+  /**
+   * Turn the connection away unread with a 503, there is no handler free
+   * to take it. The response is small enough to go straight into the
+   * socket's empty send buffer, so the accept loop doesn't wait on it
+   */
+  public void reject() {
+
+    try {
+      errorResponse(503, "Service Unavailable").writeTo(socket.getOutputStream());
+    } catch (IOException e) {
+      System.out.println("Can't turn connection away: " + e.getMessage());
+    } finally {
+      closeSocket();
+    }
+  }
+
+
+  /**
+   * Close the connection with the client
+   */
+  public void closeSocket() {
+
+    try {
+      if (socket != null) socket.close();
+    } catch (IOException e) {
+      System.out.println("Error closing socket: " + e.getMessage());
+    }
+  }
+
+
+  /**
+   * Parse the json body of a client request and handle it. The body is
+   * either one call or a batch (array) of them
+   */
+  public String parseJSON(String json) {
+
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+
+    return parseJSON(body, body.length);
+  }
+
+
+  /**
+   * Same, straight from the UTF-8 bytes of the body. It is read with the
+   * streaming reader, and only when that finds something that is not strict
+   * json is it given to org.json, which reads some things it doesn't
+   */
+  public String parseJSON(byte[] body, int length) {
+
+    RpcCall[] batch = null;
+    long start      = System.nanoTime();
+
+    try {
+
+      reader.reset(body, 0, length);
+
+      //Nothing to call without a body
+      if (reader.peek() == -1) {
+        return "";
+      }
+
+      if (reader.peek() == '[') {
+        batch = RpcCall.readBatch(reader);
+      } else {
+        call.read(reader);
+      }
+
+      reader.end();
+    } catch (JsonReader.SyntaxException e) {
+
+      parseNanos += System.nanoTime() - start;
+
+      if (!e.isLenient()) {
+        return setupJSONError(PARSE_ERROR, "Parse error", JSONObject.NULL);
+      }
+
+      return parseLenient(new String(body, 0, length, StandardCharsets.UTF_8));
+    }
+
+    parseNanos += System.nanoTime() - start;
+
+    if (parking && journal != null && (batch != null ? writes(batch) : writes(call))) {
+      return parkWrite(Arrays.copyOf(body, length));
+    }
+
+    if (batch != null) {
+      return parseBatch(batch);
+    }
+
+    String response = handleCall(call);
+
+    return (response == null) ? "" : response;
+  }
+
+
+  /**
+   * Parse a body the way it always was, with org.json
+   */
+  private String parseLenient(String json) {
+
+    String body = json.trim();
+    Object parsed;
+
+    if (body.length() == 0) {
+      return "";
+    }
+
+    try {
+      parsed = (body.charAt(0) == '[') ? new JSONArray(body) : new JSONObject(body);
+    } catch (JSONException e) {
+      return setupJSONError(PARSE_ERROR, "Parse error", JSONObject.NULL);
+    }
+
+    if (parsed instanceof JSONArray) {
+
+      JSONArray arr   = (JSONArray) parsed;
+      RpcCall[] calls = new RpcCall[arr.length()];
+
+      for (int i = 0; i < calls.length; i++) {
+        calls[i] = RpcCall.fromJSON(arr.get(i));
+      }
+
+      if (parking && journal != null && writes(calls)) {
+        return parkWrite(json.getBytes(StandardCharsets.UTF_8));
+      }
+
+      return parseBatch(calls);
+    }
+
+    String response = handleCall(RpcCall.fromJSON(parsed));
+
+    return (response == null) ? "" : response;
+  }
+
+
+  /**
+   * Answer each call of a batch in order, leaving notifications out. With
+   * -Dwaypoint.batch.parallel runs of read only calls are spread over the
+   * common fork/join pool, anything that writes still runs on its own.
+   * Writes go to the log as they happen but are synced once, at the end
+   */
+  protected String parseBatch(RpcCall[] calls) {
+
+    //Results in a batch are always built whole, and nothing in one waits
+    streamable = false;
+    waitable   = false;
+
+    if (calls.length == 0 || calls.length > BATCH_MAX) {
+      return setupJSONError(INVALID_REQUEST, "Batch must hold 1 to " + BATCH_MAX + " calls", JSONObject.NULL);
+    }
+
+    String[] responses = new String[calls.length];
+
+    batching = true;
+
+    try {
+      runBatch(calls, responses);
+    } finally {
+      batching = false;
+    }
+
+    //Nothing is answered until every write in the batch is safe
+    try {
+      commit();
+    } catch (UncheckedIOException e) {
+      return setupJSONError(INTERNAL_ERROR, "Changes may not survive a restart: " + e.getCause().getMessage(), JSONObject.NULL);
+    }
+
+    StringBuilder batch = new StringBuilder("[");
+
+    for (String response : responses) {
+
+      if (response != null) {
+        batch.append((batch.length() > 1) ? "," : "").append(response);
+      }
+    }
+
+    //A batch of only notifications gets no body at all
+    return (batch.length() > 1) ? batch.append(']').toString() : "";
+  }
+
+
+  /**
+   * Answer calls in order into responses
+   */
+  private void runBatch(RpcCall[] calls, String[] responses) {
+
+    int i = 0;
+
+    while (i < calls.length) {
+
+      int end = i;
+
+      if (BATCH_PARALLEL) {
+        while (end < calls.length && isReadOnly(calls[end])) {
+          end++;
+        }
+      }
+
+      if (end - i > 1) {
+        callParallel(calls, i, end, responses);
+        i = end;
+      } else {
+        responses[i] = handleCall(calls[i]);
+        i++;
+      }
+    }
+  }
+
+
+  /**
+   * True when any call of a batch is to a method that changes the library
+   */
+  private static boolean writes(RpcCall[] calls) {
+
+    for (RpcCall call : calls) {
+
+      if (writes(call)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  private static boolean writes(RpcCall call) {
+
+    if (call.isError()) {
+      return false;
+    }
+
+    DispatchTable.Entry func = DispatchTable.getDefault().get(call.getMethod());
+
+    return func != null && !func.isReadOnly();
+  }
+
+
+  /**
+   * Put a request that writes aside and answer it on a writer thread, with
+   * its own Server since this one goes on to other requests. The writer
+   * reads the body again and syncs the log as any other thread would, the
+   * whole answer is sent by resume once it is done
+   */
+  private String parkWrite(final byte[] body) {
+
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    final Parked call                  = new Parked(done, null);
+
+    writers.execute(new Runnable() {
+      public void run() {
+
+        try {
+          call.answer = new Server().parseJSON(body, body.length);
+        } catch (RuntimeException e) {
+          call.answer = setupError(INTERNAL_ERROR, "Internal error: " + e, JSONObject.NULL);
+        } finally {
+          done.complete(null);
+        }
+      }
+    });
+
+    parked = call;
+
+    return "";
+  }
+
+
+  private static boolean isReadOnly(RpcCall call) {
+
+    if (call.isError()) {
+      return false;
+    }
+
+    DispatchTable.Entry func = DispatchTable.getDefault().get(call.getMethod());
+
+    return func != null && func.isReadOnly();
+  }
+
+
+  /**
+   * Run calls[from, to) in parallel, each on its own Server since the reply id is per call
+   */
+  private static void callParallel(RpcCall[] calls, int from, int to, String[] responses) {
+
+    List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+
+    for (int i = from; i < to; i++) {
+
+      final RpcCall call = calls[i];
+
+      tasks.add(new Callable<String>() {
+        public String call() {
+          return new Server().handleCall(call);
+        }
+      });
+    }
+
+    List<Future<String>> results = ForkJoinPool.commonPool().invokeAll(tasks);
+
+    for (int i = from; i < to; i++) {
+
+      try {
+        responses[i] = results.get(i - from).get();
+      } catch (Exception e) {
+        responses[i] = setupError(INTERNAL_ERROR, "Internal error: " + e, calls[i].getId());
+      }
+    }
+  }
+
+
+  /**
+   * Handle one call. Returns null for a notification (a call without
+   * an id), which is run but never answered, not even with an error
+   */
+  protected String handleCall(RpcCall call) {
+
+    String response;
+
+    if (call.isError()) {
+      response = setupJSONError(call.getErrorCode(), call.getErrorMessage(), call.getId());
+    } else {
+      response = callFunction(call.getMethod(), call.getParams(), call.getId());
+    }
+
+    if (call.isNotification()) {
+
+      stream = null;
+
+      if (parked != null) {
+        parked.cancel();
+        parked = null;
+      }
+
+      return null;
+    }
+
+    return response;
+  }
+
+
+  /**
+   * Dispatch table intermediary to handle client request
+   * to call a server function and setup a json result
+   */
+  protected String callFunction(String method, RpcParams params, Object id) {
+
+    DispatchTable.Entry func = DispatchTable.getDefault().get(method);
+
+    if (func == null) {
+      return setupJSONError(METHOD_NOT_FOUND, "Method not found: " + method, id);
+    }
+
+    long start  = System.nanoTime();
+    resultReady = 0;
+    failed      = false;
+
+    String response = runFunction(func, params, id);
+
+    long end   = System.nanoTime();
+    long ready = (resultReady == 0) ? end : resultReady;
+
+    dispatchNanos  += ready - start;
+    serializeNanos += end - ready;
+
+    ServerMetrics.call(method, end - start, failed);
+
+    return response;
+  }
+
+
+  /**
+   * Check the params, call the function and setup its result, or the error
+   * it was answered with
+   */
+  private String runFunction(DispatchTable.Entry func, RpcParams params, Object id) {
+
+    String invalid = func.checkParams(params);
+
+    if (invalid != null) {
+      return setupJSONError(INVALID_PARAMS, invalid, id);
+    }
+
+    try {
+
+      if (func.isCached() && responseCache.isEnabled()) {
+        return cachedCall(func, params, id);
+      }
+
+      Object value = func.invoke(this, params);
+
+      resultReady = System.nanoTime();
+
+      //Answered by resume once it is ready
+      if (parked != null) {
+        parked.id = id;
+        return "";
+      }
+
+      replyId = id;
+
+      return setupJSONResult(value);
+    } catch (IllegalArgumentException e) {
+      return setupJSONError(INVALID_PARAMS, e.getMessage(), id);
+    } catch (Throwable e) {
+      e.printStackTrace();
+      return setupJSONError(INTERNAL_ERROR, "Internal error: " + e, id);
+    }
+  }
+
+
+  /**
+   * Call a @Cached method through the response cache. A hit skips the call
+   * but keeps its side effect, a miss is answered from the same json it
+   * leaves behind, so both read the same
+   */
+  private String cachedCall(DispatchTable.Entry func, RpcParams params, Object id) throws Throwable {
+
+    String key              = func.getName() + params.toString();
+    ResponseCache.Entry hit = responseCache.get(key);
+
+    if (hit != null) {
+
+      if (func.activates()) {
+        setActive(params.getString(0));
+      }
+
+      resultReady = System.nanoTime();
+
+      //A lone call's big result goes out as the compressed copy kept with it
+      if (accepts != ContentCoding.IDENTITY && !batching && hit.getJSON().length() >= ContentCoding.MIN_SIZE) {
+        compressed = hit.getCompressed();
+      }
+
+      replyId = id;
+
+      return setupEncodedResult(hit.getJSON());
+    }
+
+    long version = responseCache.version();
+    Object value = func.invoke(this, params);
+
+    resultReady = System.nanoTime();
+    replyId     = id;
+
+    String response = setupJSONResult(value);
+
+    //The result's json is what's between the envelope's head and its '}'
+    if (!(value instanceof ResultStream)) {
+      responseCache.put(key, version, reply.substring(resultAt, reply.length() - 1));
+    }
+
+    return response;
+  }
+
+
+  /**
+   * Function gives the response cache's hit and miss counts
+   */
+  @ReadOnly
+  public JSONObject cacheStats() {
+    return responseCache.getStats();
+  }
+
+
+  /**
+   * Function gives latency percentiles per method and per phase, with
+   * connection and thread counts
+   */
+  @ReadOnly
+  public JSONObject serverStats() {
+    return ServerMetrics.toJSON();
+  }
+
+
+  /**************
+   * END HANDLER
+   **************/
+
+
+  /**
+   * Waypoint data view setter
+   */
+  public void setActive(String name) {
+    lastLookup = name;
+  }
+
+
+  /**
+   * Waypoint data view setter, as called by a client
+   */
+  public boolean setActive(RpcParams params) {
+
+    setActive(params.getString(0));
+
+    return true;
+  }
+
+
+  /**
+   * Waypoint data view getter
+   */
+  @ReadOnly
+  public String getActive() {
+    return lastLookup;
+  }
+
+
+  /**
+   * Waypoint data view getter
+   */
+  @ReadOnly
+  @Cached
+  public int getLibrarySize() {
+    return waypointList.size();
+  }
+
+
+  /**
+   * Basic message to send back server name to client
+   */
+  @ReadOnly
+  public String serviceInfo() {
+    return "WebServer";
+  }
+
+
+  /**
+   * Function takes in the name of the waypoint and returns its data
+   * Returns {name: {"lat", "lon", "ele"}}, {} when there is no such point
+   */
+  @Cached(activates = true)
+  public JsonValue getJSONPointFromLibrary(RpcParams arr) {
+
+    final String name    = arr.getString(0);
+    final Waypoint point = waypointList.get(name);
+
+    setActive(name);
+
+    return new JsonValue() {
+      public void writeJSON(JsonWriter out) {
+
+        out.beginObject();
+
+        if (point != null) {
+          out.name(name);
+          point.writeJSON(out);
+        }
+
+        out.endObject();
+      }
+    };
+  }
+
+
+  /**
+   * Function builds the names for the dropdown list of all waypoints
+   */
+  @ReadOnly
+  @Cached
+  public JsonValue getNamesFromLibrary() {
+
+    final Iterable<String> names = waypointList.names();
+
+    return new JsonValue() {
+      public void writeJSON(JsonWriter out) {
+
+        out.beginArray();
+
+        for (String wayName : names) {
+          out.value(wayName);
+        }
+
+        out.endArray();
+      }
+    };
+  }
+
+
+  /**
+   * Function gives one page of the names in the library, in insertion order.
+   * Params are the cursor from the last page, "" for the first, and how
+   * many names to give. The result holds the names and the cursor of the
+   * next page, null after the last one
+   */
+  @ReadOnly
+  public JsonValue getNamesPage(RpcParams params) {
+
+    String cursor = params.getString(0);
+    int size      = params.getInt(1);
+
+    if (size < 1 || size > PAGE_MAX) {
+      throw new IllegalArgumentException("Page size must be 1 to " + PAGE_MAX);
+    }
+
+    WaypointStore.Walk walk  = cursor.isEmpty() ? waypointList.walk() : decodeCursor(cursor);
+    final List<String> names = new ArrayList<String>(Math.min(size, 1024));
+    String name;
+
+    while (names.size() < size && (name = walk.next()) != null) {
+      names.add(name);
+    }
+
+    final String next = walk.isDone() ? null : encodeCursor(walk.position());
+
+    return new JsonValue() {
+      public void writeJSON(JsonWriter out) {
+
+        out.beginObject().name("names").beginArray();
+
+        for (String name : names) {
+          out.value(name);
+        }
+
+        out.endArray().name("next").value(next).endObject();
+      }
+    };
+  }
+
+
+  /**
+   * Function gives every name in the library like getNamesFromLibrary, but
+   * streamed to the socket as it is read rather than built up in memory
+   */
+  @ReadOnly
+  public ResultStream streamNamesFromLibrary() {
+    return new NameStream(waypointList);
+  }
+
+
+  /**
+   * Function gives what changed in the library after a version, for clients
+   * keeping their own copy. The result holds this run's epoch, the version
+   * to ask from next time and the changes, a point or removed under each
+   * name. Reset means the version is too old (or from another run) to
+   * answer from and the library should be loaded again. Asking from -1
+   * gives just the current version
+   */
+  @ReadOnly
+  public JsonValue getChangesSince(RpcParams params) {
+    return changesResult(changeLog.since((long) params.getDouble(0)));
+  }
+
+
+  /**
+   * Function is getChangesSince, but when there is nothing new it waits up
+   * to timeout ms (-Dwaypoint.watch.max at most, default 30000) for the next
+   * change rather than answer with none, and answers with none if that
+   * doesn't come. Only a lone call waits, in a batch it answers at once.
+   * The nio server puts the call aside so no thread waits with it, the
+   * others wait on the thread that has the connection, which in the pooled
+   * modes is one of a fixed few, so many watchers want nio
+   */
+  @ReadOnly
+  public JsonValue waitForChanges(RpcParams params) {
+
+    final long since = (long) params.getDouble(0);
+    long timeout     = Math.min((long) params.getDouble(1), WATCH_MAX);
+
+    ChangeLog.Changes changes = changeLog.since(since);
+
+    if (changes == null || changes.size() > 0 || timeout <= 0 || !waitable) {
+      return changesResult(changes);
+    }
+
+    ChangeLog.Watch watch = changeLog.watch(since, timeout);
+
+    //Whatever there is by the time it is written
+    JsonValue later = new JsonValue() {
+      public void writeJSON(JsonWriter out) {
+        changesResult(changeLog.since(since)).writeJSON(out);
+      }
+    };
+
+    if (parking) {
+      parked = new Parked(watch, later);
+    } else {
+      watch.join();
+    }
+
+    return later;
+  }
+
+
+  /**
+   * Result of getChangesSince for what since() found
+   */
+  private static JsonValue changesResult(final ChangeLog.Changes changes) {
+
+    final long epoch   = changeLog.getEpoch();
+    final long version = (changes == null) ? changeLog.version() : changes.getVersion();
+
+    return new JsonValue() {
+      public void writeJSON(JsonWriter out) {
+
+        out.beginObject();
+        out.name("epoch").value(epoch);
+        out.name("version").value(version);
+        out.name("reset").value(changes == null);
+        out.name("changes");
+
+        if (changes == null) {
+          out.beginArray().endArray();
+        } else {
+          changes.writeJSON(out);
+        }
+
+        out.endObject();
+      }
+    };
+  }
+
+
+  /**
+   * Cursor for the page starting at a walk's position, an epoch and the
+   * position in url safe base64
+   */
+  private static String encodeCursor(long position) {
+
+    ByteBuffer raw = ByteBuffer.allocate(16).putLong(CURSOR_EPOCH).putLong(position);
+
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.array());
+  }
+
+
+  private static WaypointStore.Walk decodeCursor(String cursor) {
+
+    ByteBuffer raw;
+
+    try {
+      raw = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Bad cursor: " + cursor);
+    }
+
+    if (raw.remaining() != 16) {
+      throw new IllegalArgumentException("Bad cursor: " + cursor);
+    }
+
+    if (raw.getLong() != CURSOR_EPOCH) {
+      throw new IllegalArgumentException("Cursor is from before the server restarted, start from the first page");
+    }
+
+    long position = raw.getLong();
+
+    if ((int) position < 0) {
+      throw new IllegalArgumentException("Bad cursor: " + cursor);
+    }
+
+    WaypointStore.Walk walk = waypointList.walk(position);
+
+    if (walk == null) {
+      throw new IllegalArgumentException("Cursor is from before the library was compacted twice, start from the first page");
+    }
+
+    return walk;
+  }
+
+
+  /**
+   * Add a users waypoint inputs into the list
+   */
+  public String addWaypoint(RpcParams params) {
+
+    String name = params.getString(0);    
+    double lat  = params.getDouble(1);
+    double lon  = params.getDouble(2);
+    double ele  = params.getDouble(3);
+
+    waypointList.put(name, lat, lon, ele);
+    commit();
+
+    setActive(name);
+
+    return "passed";
+  }
+
+
+  /**
+   * Pretty self explanatory on this one..
+   */
+  public String removeWaypoint(RpcParams params) {
+  
+    boolean lastEntry = false;
+    String name       = params.getString(0);
+
+    waypointList.remove(name);
+    commit();
+
+    //Set the oldest point as the new active
+    String first = waypointList.first();
+
+    if (first == null) {
+      lastEntry = true;
+    } else {
+      setActive(first);
+    }
+
+    return String.valueOf(lastEntry);
+  }
+
+
+  /**
+   * Function will modify an existing waypoint. If the name hasn't changed, 
+   * it will just replace it values. If the name did change, it will be recreated
+   * and adding to the bottom of the list.
+   */
+  public String modifyWaypoint(RpcParams params) {
+
+    String oldName = getActive();
+    String newName = params.getString(0);
+    
+    double lat = params.getDouble(1);
+    double lon = params.getDouble(2);
+    double ele = params.getDouble(3);
+
+    if (!oldName.equals(newName)) {
+      removeWaypoint(new RpcParams().add(oldName));
+    }
+
+    waypointList.put(newName, lat, lon, ele);
+    commit();
+
+    setActive(newName);
+
+    return "passed";
+  }
+
+
+  /**
+   * Function takes 2 lookup names and performs GC calculations on them
+   */
+  @ReadOnly
+  @Cached
+  public JsonValue calcDistBear(RpcParams params) {
+
+    String wayFrom = params.getString(0);
+    String wayTo   = params.getString(1);
+
+    Waypoint fromPoint = lookup(wayFrom);
+    Waypoint toPoint   = lookup(wayTo);
+
+    final double distance = distanceGCTo(fromPoint, toPoint, STATUTE);
+    final double bearing  = bearingGCInitTo(fromPoint, toPoint);
+
+    return new JsonValue() {
+      public void writeJSON(JsonWriter out) {
+        out.beginArray().value(distance).value(bearing).endArray();
+      }
+    };
+  }
+
+
+  /**
+   * Function works out distance and bearing from every origin to every
+   * destination, one row per origin of [distance, bearing] pairs. The rows
+   * are made in parallel and streamed, so big matrices never sit in memory
+   */
+  @ReadOnly
+  public ResultStream calcDistBearMatrix(RpcParams params) {
+
+    GeodesyKernel.Points origins      = lookupAll(params.getJSONArray(0));
+    GeodesyKernel.Points destinations = lookupAll(params.getJSONArray(1));
+    int scale                         = GreatCircle.checkScale(params.getInt(2));
+
+    if ((long) origins.capacity() * destinations.capacity() > MATRIX_MAX) {
+      throw new IllegalArgumentException("Matrix can hold at most " + MATRIX_MAX + " pairs");
+    }
+
+    return new DistanceMatrix(origins, destinations, scale);
+  }
+
+
+  /**
+   * Function finds the k waypoints closest to a lat/lon, closest first.
+   * Distances are in statute miles
+   */
+  @ReadOnly
+  public JsonValue nearestWaypoints(RpcParams params) {
+
+    double lat = params.getDouble(0);
+    double lon = params.getDouble(1);
+    int k      = params.getInt(2);
+
+    if (k < 1 || k > NEAREST_MAX) {
+      throw new IllegalArgumentException("k must be 1 to " + NEAREST_MAX);
+    }
+
+    return hitsToJSON(spatialIndex.nearest(lat, lon, k), STATUTE);
+  }
+
+
+  /**
+   * Function finds every waypoint within a distance of a lat/lon, closest 
+   * first. The radius and the distances returned are in the given unit
+   */
+  @ReadOnly
+  public JsonValue waypointsWithinRadius(RpcParams params) {
+
+    double lat    = params.getDouble(0);
+    double lon    = params.getDouble(1);
+    double radius = params.getDouble(2);
+    int scale     = GreatCircle.checkScale(params.getInt(3));
+
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius can't be negative");
+    }
+
+    return hitsToJSON(spatialIndex.withinRadius(lat, lon, GreatCircle.toKilometers(radius, scale)), scale);
+  }
+
+
+  /**
+   * Function finds every waypoint inside south, west, north, east bounds.
+   * West greater than east is a box across the antimeridian
+   */
+  @ReadOnly
+  public JsonValue waypointsInBox(RpcParams params) {
+
+    double south = params.getDouble(0);
+    double west  = params.getDouble(1);
+    double north = params.getDouble(2);
+    double east  = params.getDouble(3);
+
+    if (south > north) {
+      throw new IllegalArgumentException("South must not be above north");
+    }
+
+    return hitsToJSON(spatialIndex.inBox(south, west, north, east), -1);
+  }
+
+
+  /**
+   * Each hit as {"name", "lat", "lon", "ele"} plus "distance" when a scale is given
+   */
+  private JsonValue hitsToJSON(final List<SpatialIndex.Hit> hits, final int scale) {
+
+    return new JsonValue() {
+      public void writeJSON(JsonWriter out) {
+
+        out.beginArray();
+
+        for (SpatialIndex.Hit hit : hits) {
+
+          out.beginObject().name("name").value(hit.name);
+          hit.point.writeFields(out);
+
+          if (scale >= 0) {
+            out.name("distance").value(hit.distance(scale));
+          }
+
+          out.endObject();
+        }
+
+        out.endArray();
+      }
+    };
+  }
+
+
+  /**
+   * Wait until the changes this thread just made are on disk, as far
+   * as the log's fsync policy goes
+   */
+  private void commit() {
+
+    WriteAheadLog log = journal;
+
+    if (log != null && !batching) {
+      log.sync();
+    }
+  }
+
+
+  /**
+   * Point stored under a name, a missing one is the caller's mistake
+   */
+  private Waypoint lookup(String name) {
+
+    Waypoint point = waypointList.get(name);
+
+    if (point == null) {
+      throw new IllegalArgumentException("No waypoint named " + name);
+    }
+
+    return point;
+  }
+
+
+  /**
+   * Cached trig of the points for an array of names, every one must exist
+   */
+  private GeodesyKernel.Points lookupAll(JSONArray names) {
+
+    GeodesyKernel.Points points = new GeodesyKernel.Points(names.length());
+
+    for (int i = 0; i < names.length(); i++) {
+
+      if (!(names.get(i) instanceof String)) {
+        throw new IllegalArgumentException("Waypoint names must be strings");
+      }
+
+      if (!waypointList.readTrig(names.getString(i), points, i)) {
+        throw new IllegalArgumentException("No waypoint named " + names.getString(i));
+      }
+    }
+
+    return points;
+  }
+
+
+  /**
+   * GC distance calculation
+   */
+  public double distanceGCTo(Waypoint wayFrom, Waypoint wayTo, int scale) {
+    return GreatCircle.distance(wayFrom.getLat(), wayFrom.getLon(), wayTo.getLat(), wayTo.getLon(), scale);
+  }
+
+
+  /**
+   * GC bearing calculation
+   */
+  public double bearingGCInitTo(Waypoint wayFrom, Waypoint wayTo) {
+    return GreatCircle.bearing(wayFrom.getLat(), wayFrom.getLon(), wayTo.getLat(), wayTo.getLon());
+  }
+
+
+  /**
+   * Always have an idea of what is inside my server waypoint list
+   */
+  public String debugLibrary() {
+
+    System.out.println("\n===============");
+    System.out.println("STARTING DEBUG:");
+    System.out.println("MAP SIZE = " + waypointList.size());
+    System.out.println("CURRENT ACTIVE = " + lastLookup);
+
+    String newLine = System.getProperty("line.separator");
+
+    for (String wayName : waypointList.names()) {
+
+      Waypoint meta = waypointList.get(wayName);
+
+      //Removed while we were printing
+      if (meta == null) {
+        continue;
+      }
+      
+      System.out.println(wayName + newLine + "---------------");
+      System.out.println("lat = " + meta.getLat());
+      System.out.println("lon = " + meta.getLon());
+      System.out.println("ele = " + meta.getEle());
+    }
+
+    System.out.println("===============\n");
+
+    return "passed";
+  }
+
+
+  /**
+   * Passing whatever a server function returned. The envelope is written
+   * around the value's own json in a reused buffer rather than built up
+   * as a JSONObject and serialized again
+   */
+  public String setupJSONResult(Object value) {
+
+    if (value instanceof ResultStream) {
+      return setupJSONResult((ResultStream) value);
+    }
+
+    beginResult();
+    replyWriter.value(value);
+
+    return reply.append('}').toString();
+  }
+
+
+  /**
+   * Passing a result already in json
+   */
+  private String setupEncodedResult(String json) {
+
+    beginResult();
+
+    return reply.append(json).append('}').toString();
+  }
+
+
+  /**
+   * Start the reused envelope off, up to where the result goes
+   */
+  private void beginResult() {
+
+    reply.setLength(0);
+    replyWriter.reset();
+
+    reply.append("{\"jsonrpc\":\"2.0\",\"id\":");
+    replyWriter.value(nextReplyId());
+    reply.append(",\"result\":");
+
+    resultAt = reply.length();
+  }
+
+
+  /**
+   * Passing a streamed result. When the transport can send it in chunks it
+   * is kept for handleRequest and nothing is returned, otherwise (a batch,
+   * an HTTP/1.0 client) the whole thing is built here
+   */
+  public String setupJSONResult(ResultStream value) {
+
+    beginResult();
+
+    String head = reply.toString();
+
+    if (streamable) {
+      stream = new EnvelopeStream(head, value);
+      return "";
+    }
+
+    StringBuilder obj = new StringBuilder(head);
+    byte[] piece;
+
+    while ((piece = value.next()) != null) {
+      obj.append(new String(piece, StandardCharsets.UTF_8));
+    }
+
+    return obj.append('}').toString();
+  }
+
+
+  /**
+   * Id for the result being built, the call's own when it sent one
+   */
+  private Object nextReplyId() {
+
+    Object id = replyId;
+
+    replyId = null;
+
+    return (id != null) ? id : jsonid.getAndIncrement();
+  }
+
+
+  /**
+   * Passing an error, id is the request's or null when it could not be read
+   */
+  public String setupJSONError(int code, String message, Object id) {
+
+    failed = true;
+
+    return setupError(code, message, id);
+  }
+
+
+  private static String setupError(int code, String message, Object id) {
+
+    StringBuilder text = new StringBuilder(96);
+    JsonWriter out     = new JsonWriter(text);
+
+    out.beginObject();
+    out.name("jsonrpc").value("2.0");
+    out.name("id").value(id);
+    out.name("error").beginObject().name("code").value(code).name("message").value(message).endObject();
+    out.endObject();
+
+    return text.toString();
+  }
+
+
+  /**
+   * Purpose: A lone call put aside until ready is done, with what is needed
+   *          to answer it then
+   */
+  static class Parked {
+
+    private final CompletableFuture<Void> ready;
+    private final JsonValue result;
+
+    //Filled in as the call and its request finish
+    private Object id;
+    private int coding;
+    private boolean keepAlive;
+
+    //Whole body of a request run elsewhere, sent in place of result
+    private String answer;
+
+
+    Parked(CompletableFuture<Void> ready, JsonValue result) {
+
+      this.ready  = ready;
+      this.result = result;
+    }
+
+
+    public CompletableFuture<Void> getReady() {
+      return ready;
+    }
+
+
+    /**
+     * Stop waiting, nobody is left to answer
+     */
+    public void cancel() {
+      ready.cancel(false);
+    }
+  }
+
+
+  /**
+   * Purpose: Wraps a streamed result in its json-rpc envelope
+   */
+  private static class EnvelopeStream implements ResultStream {
+
+    private byte[] head;
+    private ResultStream result;
+
+
+    EnvelopeStream(String head, ResultStream result) {
+
+      this.head   = head.getBytes(StandardCharsets.UTF_8);
+      this.result = result;
+    }
+
+
+    public byte[] next() {
+
+      if (head != null) {
+
+        byte[] piece = head;
+        head         = null;
+
+        return piece;
+      }
+
+      if (result == null) {
+        return null;
+      }
+
+      byte[] piece = result.next();
+
+      if (piece == null) {
+        result = null;
+        return new byte[] { '}' };
+      }
+
+      return piece;
+    }
+  }
+}
@@ -0,0 +1,327 @@
+package cst420.thread.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class keeps the server's own numbers. Every rpc method gets a
+ *          latency histogram and an error count, every request has its read,
+ *          parse, dispatch, serialize and write phases timed, and open
+ *          connections, requests in flight, clients watching for changes and
+ *          threads are gauged. It is all
+ *          counters and LatencyHistograms, nothing takes a lock on the way
+ *          through a request
+ *
+ *          The serverStats rpc hands them out as json, GET /metrics as
+ *          plain text in the Prometheus exposition format
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class ServerMetrics {
+
+  public final static int READ      = 0;
+  public final static int PARSE     = 1;
+  public final static int DISPATCH  = 2;
+  public final static int SERIALIZE = 3;
+  public final static int WRITE     = 4;
+
+  private final static String[] PHASES = { "read", "parse", "dispatch", "serialize", "write" };
+
+  private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  private final static long STARTED = System.currentTimeMillis();
+
+  private final static LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+  private final static Map<String, MethodStats> methods = new ConcurrentHashMap<String, MethodStats>();
+
+  //Executors whose threads and queues are gauged, by name
+  private final static Map<String, Executor> pools = new ConcurrentHashMap<String, Executor>();
+
+  private final static AtomicInteger openConnections = new AtomicInteger();
+  private final static LongAdder connections         = new LongAdder();
+  private final static AtomicInteger inFlight        = new AtomicInteger();
+  private final static LongAdder requests            = new LongAdder();
+  private final static AtomicInteger watching        = new AtomicInteger();
+
+  static {
+
+    for (int i = 0; i < phases.length; i++) {
+      phases[i] = new LatencyHistogram();
+    }
+
+    watch("common", ForkJoinPool.commonPool());
+  }
+
+
+  private ServerMetrics() { }
+
+
+  /**
+   * Time a request spent in one phase
+   */
+  public static void phase(int phase, long nanos) {
+    phases[phase].record(nanos);
+  }
+
+
+  /**
+   * One call of an rpc method, from its params being checked to its json
+   * result being written
+   */
+  public static void call(String method, long nanos, boolean failed) {
+
+    MethodStats stats = methods.get(method);
+
+    if (stats == null) {
+      methods.putIfAbsent(method, new MethodStats());
+      stats = methods.get(method);
+    }
+
+    stats.latency.record(nanos);
+
+    if (failed) {
+      stats.errors.increment();
+    }
+  }
+
+
+  public static void opened() {
+    openConnections.incrementAndGet();
+    connections.increment();
+  }
+
+
+  public static void closed() {
+    openConnections.decrementAndGet();
+  }
+
+
+  public static void requestStarted() {
+    inFlight.incrementAndGet();
+    requests.increment();
+  }
+
+
+  public static void requestDone() {
+    inFlight.decrementAndGet();
+  }
+
+
+  public static void watchStarted() {
+    watching.incrementAndGet();
+  }
+
+
+  public static void watchDone() {
+    watching.decrementAndGet();
+  }
+
+
+  /**
+   * Gauge the threads and queue of an executor, when it is a kind
+   * that says how busy it is
+   */
+  public static void watch(String name, Executor pool) {
+
+    if (pool instanceof ThreadPoolExecutor || pool instanceof ForkJoinPool) {
+      pools.put(name, pool);
+    }
+  }
+
+
+  /**
+   * Everything as json, latencies in microseconds
+   */
+  public static JSONObject toJSON() {
+
+    JSONObject stats = new JSONObject();
+
+    stats.put("uptimeSeconds", (System.currentTimeMillis() - STARTED) / 1000);
+
+    JSONObject traffic = new JSONObject();
+
+    traffic.put("connectionsOpen", openConnections.get());
+    traffic.put("connectionsTotal", connections.sum());
+    traffic.put("requestsInFlight", inFlight.get());
+    traffic.put("requestsTotal", requests.sum());
+    traffic.put("watching", watching.get());
+
+    stats.put("traffic", traffic);
+
+    ThreadMXBean jvm     = ManagementFactory.getThreadMXBean();
+    JSONObject threads   = new JSONObject();
+    JSONObject executors = new JSONObject();
+
+    threads.put("live", jvm.getThreadCount());
+    threads.put("peak", jvm.getPeakThreadCount());
+    threads.put("daemon", jvm.getDaemonThreadCount());
+
+    for (Map.Entry<String, Executor> pool : new TreeMap<String, Executor>(pools).entrySet()) {
+
+      long[] gauge     = gauge(pool.getValue());
+      JSONObject entry = new JSONObject();
+
+      entry.put("threads", gauge[0]);
+      entry.put("active", gauge[1]);
+      entry.put("queued", gauge[2]);
+
+      executors.put(pool.getKey(), entry);
+    }
+
+    threads.put("pools", executors);
+    stats.put("threads", threads);
+
+    JSONObject phaseStats = new JSONObject();
+
+    for (int i = 0; i < phases.length; i++) {
+      phaseStats.put(PHASES[i], phases[i].toJSON());
+    }
+
+    stats.put("phases", phaseStats);
+
+    JSONObject methodStats = new JSONObject();
+
+    for (Map.Entry<String, MethodStats> method : new TreeMap<String, MethodStats>(methods).entrySet()) {
+
+      JSONObject entry = method.getValue().latency.toJSON();
+
+      entry.put("errors", method.getValue().errors.sum());
+      methodStats.put(method.getKey(), entry);
+    }
+
+    stats.put("methods", methodStats);
+
+    return stats;
+  }
+
+
+  /**
+   * Everything in the Prometheus text format, latencies in seconds
+   */
+  public static String toText() {
+
+    StringBuilder out = new StringBuilder(4096);
+
+    gauge(out, "waypoint_uptime_seconds", "Seconds since the server started", (System.currentTimeMillis() - STARTED) / 1000);
+    gauge(out, "waypoint_connections_open", "Client connections open now", openConnections.get());
+    counter(out, "waypoint_connections_total", "Client connections accepted", connections.sum());
+    gauge(out, "waypoint_requests_in_flight", "Http requests being answered now", inFlight.get());
+    counter(out, "waypoint_requests_total", "Http requests answered", requests.sum());
+    gauge(out, "waypoint_watching", "Calls waiting for the library to change", watching.get());
+
+    ThreadMXBean jvm = ManagementFactory.getThreadMXBean();
+
+    gauge(out, "waypoint_jvm_threads", "Live jvm threads", jvm.getThreadCount());
+    gauge(out, "waypoint_jvm_threads_peak", "Most live jvm threads at once", jvm.getPeakThreadCount());
+
+    help(out, "waypoint_pool_threads", "gauge", "Threads of each executor");
+
+    for (Map.Entry<String, Executor> pool : new TreeMap<String, Executor>(pools).entrySet()) {
+      out.append("waypoint_pool_threads{pool=\"").append(pool.getKey()).append("\"} ").append(gauge(pool.getValue())[0]).append('\n');
+    }
+
+    help(out, "waypoint_pool_active", "gauge", "Threads of each executor running a task");
+
+    for (Map.Entry<String, Executor> pool : new TreeMap<String, Executor>(pools).entrySet()) {
+      out.append("waypoint_pool_active{pool=\"").append(pool.getKey()).append("\"} ").append(gauge(pool.getValue())[1]).append('\n');
+    }
+
+    help(out, "waypoint_pool_queued", "gauge", "Tasks waiting for a thread of each executor");
+
+    for (Map.Entry<String, Executor> pool : new TreeMap<String, Executor>(pools).entrySet()) {
+      out.append("waypoint_pool_queued{pool=\"").append(pool.getKey()).append("\"} ").append(gauge(pool.getValue())[2]).append('\n');
+    }
+
+    help(out, "waypoint_phase_seconds", "summary", "Time each request spends in each phase");
+
+    for (int i = 0; i < phases.length; i++) {
+      summary(out, "waypoint_phase_seconds", "phase=\"" + PHASES[i] + "\"", phases[i]);
+    }
+
+    Map<String, MethodStats> sorted = new TreeMap<String, MethodStats>(methods);
+
+    help(out, "waypoint_rpc_seconds", "summary", "Time each rpc method takes, call to json result");
+
+    for (Map.Entry<String, MethodStats> method : sorted.entrySet()) {
+      summary(out, "waypoint_rpc_seconds", "method=\"" + method.getKey() + "\"", method.getValue().latency);
+    }
+
+    help(out, "waypoint_rpc_errors_total", "counter", "Calls of each rpc method answered with an error");
+
+    for (Map.Entry<String, MethodStats> method : sorted.entrySet()) {
+      out.append("waypoint_rpc_errors_total{method=\"").append(method.getKey()).append("\"} ").append(method.getValue().errors.sum()).append('\n');
+    }
+
+    return out.toString();
+  }
+
+
+  /**
+   * Threads, busy threads and queued tasks of a watched executor
+   */
+  private static long[] gauge(Executor pool) {
+
+    if (pool instanceof ThreadPoolExecutor) {
+
+      ThreadPoolExecutor threads = (ThreadPoolExecutor) pool;
+
+      return new long[] { threads.getPoolSize(), threads.getActiveCount(), threads.getQueue().size() };
+    }
+
+    ForkJoinPool forkJoin = (ForkJoinPool) pool;
+
+    return new long[] { forkJoin.getPoolSize(), forkJoin.getActiveThreadCount(), forkJoin.getQueuedSubmissionCount() + forkJoin.getQueuedTaskCount() };
+  }
+
+
+  private static void help(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+
+  private static void gauge(StringBuilder out, String name, String help, long value) {
+    help(out, name, "gauge", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    help(out, name, "counter", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+
+  private static void summary(StringBuilder out, String name, String labels, LatencyHistogram latency) {
+
+    for (double quantile : QUANTILES) {
+      out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+         .append(latency.getPercentile(quantile) / 1e9).append('\n');
+    }
+
+    out.append(name).append("_sum{").append(labels).append("} ").append(latency.getSum() / 1e9).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(latency.getCount()).append('\n');
+  }
+
+
+  /**
+   * Purpose: Latency and errors of one rpc method
+   */
+  private static class MethodStats {
+
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder errors         = new LongAdder();
+  }
+}
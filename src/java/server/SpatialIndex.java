@@ -0,0 +1,631 @@
+package cst420.thread.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Purpose: Class is a lat/lon grid over the slots of a WaypointStore. It
+ *          listens to the store so every add, modify and remove keeps it up
+ *          to date, and answers nearest, radius and box queries by looking
+ *          only at the cells that can hold an answer. Candidates are scored
+ *          a cell at a time by the GeodesyKernel from the store's cached trig.
+ *          Cell size comes from -Dwaypoint.grid.degrees (default 1 degree)
+ *
+ *          The grid is only built on the first query, so a library opened
+ *          from a mapped snapshot isn't read end to end before the server
+ *          can answer anything else
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class SpatialIndex implements WaypointStore.Listener {
+
+  private final WaypointStore store;
+  private final GeodesyKernel kernel = GeodesyKernel.getDefault();
+
+  private final double cellDeg;
+  private final int rows;
+  private final int cols;
+
+  //Only cells holding points exist
+  private final ConcurrentHashMap<Long, Cell> cells = new ConcurrentHashMap<Long, Cell>();
+
+  //Set by the build while it holds every writer off. A change's listener
+  //call is made while the store holds the build off, so it either sees
+  //this set and files the change itself, or the build finds the change
+  private volatile boolean built;
+
+
+  public SpatialIndex(WaypointStore store) {
+    this(store, Double.parseDouble(System.getProperty("waypoint.grid.degrees", "1.0")));
+  }
+
+
+  public SpatialIndex(WaypointStore store, double cellDeg) {
+
+    this.store   = store;
+    this.cellDeg = cellDeg;
+    this.rows    = (int) Math.ceil(180 / cellDeg);
+    this.cols    = (int) Math.ceil(360 / cellDeg);
+
+    store.addListener(this);
+  }
+
+
+  /**
+   * Put every point in the store into the grid, once. Writers wait while
+   * it runs, and until it has run their changes are left for it to find
+   */
+  private void build() {
+
+    if (built) {
+      return;
+    }
+
+    Lock hold = store.holdWrites();
+
+    try {
+
+      if (built) {
+        return;
+      }
+
+      long start = System.currentTimeMillis();
+
+      for (int slot = 0; slot < store.slotLimit(); slot++) {
+
+        if (store.nameAt(slot) != null) {
+
+          Waypoint point = store.read(slot);
+          cellAt(point.getLat(), point.getLon(), true).add(slot);
+        }
+      }
+
+      built = true;
+
+      System.out.println("Spatial index of " + store.size() + " waypoints built in " + (System.currentTimeMillis() - start) + "ms");
+    } finally {
+      hold.unlock();
+    }
+  }
+
+
+  /**
+   * Cells are picked from the point as it reads back, as the build picks
+   * them, a fixed point store may round it into the next cell
+   */
+  public void added(String name, int slot, double lat, double lon, double ele) {
+
+    if (built) {
+
+      Waypoint point = store.read(slot);
+      cellAt(point.getLat(), point.getLon(), true).add(slot);
+    }
+  }
+
+
+  public void replaced(String name, int slot, Waypoint before, double lat, double lon, double ele) {
+
+    if (!built) {
+      return;
+    }
+
+    Waypoint point = store.read(slot);
+
+    long from = key(before.getLat(), before.getLon());
+    long to   = key(point.getLat(), point.getLon());
+
+    if (from == to) {
+      return;
+    }
+
+    remove(cellFor(from, false), slot);
+    cellFor(to, true).add(slot);
+  }
+
+
+  public void removed(String name, int slot, Waypoint before) {
+
+    if (built) {
+      remove(cellAt(before.getLat(), before.getLon(), false), slot);
+    }
+  }
+
+
+  private static void remove(Cell cell, int slot) {
+
+    if (cell != null) {
+      cell.remove(slot);
+    }
+  }
+
+
+  /**
+   * The store was compacted, writers are held off and nobody has the
+   * slots pinned, so the cells can be renumbered in place
+   */
+  public void moved(int[] kept) {
+
+    for (Cell cell : cells.values()) {
+      cell.renumber(kept);
+    }
+  }
+
+
+  /**
+   * Queries build the grid the first time, then keep the store from being
+   * compacted while the slots they take from cells are read
+   */
+  public List<Hit> nearest(double lat, double lon, int k) {
+
+    build();
+
+    store.pinSlots();
+
+    try {
+      return findNearest(lat, lon, k);
+    } finally {
+      store.unpinSlots();
+    }
+  }
+
+
+  public List<Hit> withinRadius(double lat, double lon, double radiusKm) {
+
+    build();
+
+    store.pinSlots();
+
+    try {
+      return findWithinRadius(lat, lon, radiusKm);
+    } finally {
+      store.unpinSlots();
+    }
+  }
+
+
+  public List<Hit> inBox(double south, double west, double north, double east) {
+
+    build();
+
+    store.pinSlots();
+
+    try {
+      return findInBox(south, west, north, east);
+    } finally {
+      store.unpinSlots();
+    }
+  }
+
+
+  /**
+   * The k points closest to lat/lon, closest first. Rings of cells are
+   * searched outwards until no unsearched cell can beat the k-th best
+   */
+  private List<Hit> findNearest(double lat, double lon, int k) {
+
+    k = Math.min(k, store.size());
+
+    if (k <= 0) {
+      return new ArrayList<Hit>();
+    }
+
+    //Worst of the best k on top
+    PriorityQueue<Hit> best = new PriorityQueue<Hit>(k, Collections.reverseOrder(Hit.BY_DISTANCE));
+
+    //Rings wider than the world wrap onto cells we have already seen
+    Set<Long> seen = new HashSet<Long>();
+
+    lon = normalize(lon);
+
+    int row = row(lat);
+    int col = col(lon);
+
+    GeodesyKernel.Points origin = GeodesyKernel.Points.of(lat, lon);
+
+    for (int ring = 0; ; ring++) {
+
+      for (int r = row - ring; r <= row + ring; r++) {
+
+        if (r < 0 || r >= rows) {
+          continue;
+        }
+
+        //Inner rows only have their two ends in the new ring, edge
+        //rows never need more than one trip round the world
+        boolean edgeRow = (r == row - ring || r == row + ring);
+        int last        = Math.min(ring, cols - 1 - ring);
+        int step        = edgeRow ? 1 : Math.max(1, 2 * ring);
+
+        for (int dc = -ring; dc <= (edgeRow ? last : ring); dc += step) {
+
+          long key = key(r, wrap(col + dc));
+
+          if (!seen.add(key)) {
+            continue;
+          }
+
+          Cell cell = cells.get(key);
+
+          if (cell != null) {
+            offer(best, k, cell, origin);
+          }
+        }
+      }
+
+      boolean allRows = (row - ring <= 0 && row + ring >= rows - 1);
+      boolean allCols = (2 * ring + 1 >= cols);
+
+      if (allRows && allCols) {
+        break;
+      }
+
+      if (best.size() == k && best.peek().angle <= unsearchedBound(lat, lon, row, col, ring, allRows, allCols)) {
+        break;
+      }
+    }
+
+    List<Hit> hits = new ArrayList<Hit>(best);
+    Collections.sort(hits, Hit.BY_DISTANCE);
+
+    return hits;
+  }
+
+
+  /**
+   * Every point within radius km of lat/lon, closest first
+   */
+  private List<Hit> findWithinRadius(double lat, double lon, double radiusKm) {
+
+    lon = normalize(lon);
+
+    double angle    = radiusKm / Server.radiusE;
+    double angleDeg = Math.toDegrees(angle);
+
+    double south = Math.max(-90, lat - angleDeg);
+    double north = Math.min(90, lat + angleDeg);
+
+    List<Hit> hits = new ArrayList<Hit>();
+
+    //The circle can span every longitude when it is big or near a pole
+    double cosLat = Math.cos(Math.toRadians(lat));
+    boolean allLon = (north >= 90 || south <= -90 || angle >= Math.PI / 2 || Math.sin(angle) >= cosLat);
+
+    double dlon = allLon ? 180 : Math.toDegrees(Math.asin(Math.sin(angle) / cosLat));
+
+    int[] slots     = slotsInBox(south, lon - dlon, north, lon + dlon, allLon);
+    double[] angles = angles(slots, GeodesyKernel.Points.of(lat, lon));
+
+    for (int i = 0; i < slots.length; i++) {
+
+      if (angles[i] > angle) {
+        continue;
+      }
+
+      Hit hit = hit(slots[i], angles[i]);
+
+      if (hit != null) {
+        hits.add(hit);
+      }
+    }
+
+    Collections.sort(hits, Hit.BY_DISTANCE);
+
+    return hits;
+  }
+
+
+  /**
+   * Every point inside a box, in insertion order. West greater than
+   * east means the box crosses the antimeridian
+   */
+  private List<Hit> findInBox(double south, double west, double north, double east) {
+
+    boolean allLon = (west == -180 && east == 180);
+
+    if (east < west) {
+      east += 360;
+    }
+
+    List<Hit> hits = new ArrayList<Hit>();
+    int[] slots    = slotsInBox(south, west, north, east, allLon);
+
+    Arrays.sort(slots);
+
+    for (int slot : slots) {
+
+      //Box results have no distance
+      Hit hit = hit(slot, 0);
+
+      if (hit == null) {
+        continue;
+      }
+
+      double lon = hit.point.getLon();
+
+      if (lon < west) {
+        lon += 360;
+      }
+
+      if (hit.point.getLat() >= south && hit.point.getLat() <= north && lon >= west && lon <= east) {
+        hits.add(hit);
+      }
+    }
+
+    return hits;
+  }
+
+
+  /**
+   * Slots in every cell touching the box. East may run past 180 to wrap
+   */
+  private int[] slotsInBox(double south, double west, double north, double east, boolean allLon) {
+
+    int rowFrom = row(south);
+    int rowTo   = row(north);
+    int colFrom = allLon ? 0 : (int) Math.floor((west + 180) / cellDeg);
+    int colTo   = allLon ? cols - 1 : (int) Math.floor((east + 180) / cellDeg);
+
+    if (colTo - colFrom >= cols) {
+      colFrom = 0;
+      colTo   = cols - 1;
+    }
+
+    int[] found = new int[16];
+    int count   = 0;
+
+    for (int r = rowFrom; r <= rowTo; r++) {
+
+      for (int c = colFrom; c <= colTo; c++) {
+
+        Cell cell = cells.get(key(r, wrap(c)));
+
+        if (cell == null) {
+          continue;
+        }
+
+        int[] slots = cell.snapshot();
+
+        if (count + slots.length > found.length) {
+          found = Arrays.copyOf(found, Math.max(found.length * 2, count + slots.length));
+        }
+
+        System.arraycopy(slots, 0, found, count, slots.length);
+        count += slots.length;
+      }
+    }
+
+    return Arrays.copyOf(found, count);
+  }
+
+
+  private void offer(PriorityQueue<Hit> best, int k, Cell cell, GeodesyKernel.Points origin) {
+
+    int[] slots     = cell.snapshot();
+    double[] angles = angles(slots, origin);
+
+    for (int i = 0; i < slots.length; i++) {
+
+      //Only read the point when it makes the cut
+      if (best.size() == k && angles[i] >= best.peek().angle) {
+        continue;
+      }
+
+      Hit hit = hit(slots[i], angles[i]);
+
+      if (hit == null) {
+        continue;
+      }
+
+      if (best.size() == k) {
+        best.poll();
+      }
+
+      best.add(hit);
+    }
+  }
+
+
+  /**
+   * Angle from the origin to each slot, in one kernel pass
+   */
+  private double[] angles(int[] slots, GeodesyKernel.Points origin) {
+
+    GeodesyKernel.Points points = new GeodesyKernel.Points(slots.length);
+    double[] angles             = new double[slots.length];
+
+    for (int i = 0; i < slots.length; i++) {
+      store.readTrig(slots[i], points, i);
+    }
+
+    kernel.angles(origin, 0, points, slots.length, angles);
+
+    return angles;
+  }
+
+
+  /**
+   * The current name and point of a slot, or null if the slot
+   * was removed since we saw it in a cell
+   */
+  private Hit hit(int slot, double angle) {
+
+    String name = store.nameAt(slot);
+
+    if (name == null) {
+      return null;
+    }
+
+    return new Hit(name, store.read(slot), angle);
+  }
+
+
+  /**
+   * Smallest angle from lat/lon to any point outside the searched block of
+   * cells. Such a point is either past the block's latitudes, so at least
+   * that far away, or past its longitudes, so at least the distance to the
+   * nearer bounding meridian, asin(cos(lat) * sin(dlon))
+   */
+  private double unsearchedBound(double lat, double lon, int row, int col, int ring, boolean allRows, boolean allCols) {
+
+    double latBound = Double.MAX_VALUE;
+    double lonBound = Double.MAX_VALUE;
+
+    if (!allRows) {
+
+      double south = (row - ring) * cellDeg - 90;
+      double north = (row + ring + 1) * cellDeg - 90;
+
+      latBound = Math.toRadians(Math.min(lat - south, north - lat));
+    }
+
+    if (!allCols) {
+
+      double west = (col - ring) * cellDeg - 180;
+      double east = (col + ring + 1) * cellDeg - 180;
+      double dlon = Math.min(90, Math.min(lon - west, east - lon));
+
+      lonBound = Math.asin(Math.cos(Math.toRadians(lat)) * Math.sin(Math.toRadians(dlon)));
+    }
+
+    return Math.min(latBound, lonBound);
+  }
+
+
+  private static double normalize(double lon) {
+    return ((lon + 180) % 360 + 360) % 360 - 180;
+  }
+
+
+  private int row(double lat) {
+    return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat + 90) / cellDeg)));
+  }
+
+
+  private int col(double lon) {
+    return wrap((int) Math.floor((lon + 180) / cellDeg));
+  }
+
+
+  private int wrap(int col) {
+    return ((col % cols) + cols) % cols;
+  }
+
+
+  private long key(int row, int col) {
+    return (long) row * cols + col;
+  }
+
+
+  private long key(double lat, double lon) {
+    return key(row(lat), col(lon));
+  }
+
+
+  private Cell cellAt(double lat, double lon, boolean create) {
+    return cellFor(key(lat, lon), create);
+  }
+
+
+  private Cell cellFor(long key, boolean create) {
+
+    Cell cell = cells.get(key);
+
+    if (cell == null && create) {
+
+      Cell made = new Cell();
+
+      cell = cells.putIfAbsent(key, made);
+      cell = (cell == null) ? made : cell;
+    }
+
+    return cell;
+  }
+
+
+  /**
+   * Purpose: One answer, the point as it was read and how far away it is
+   */
+  static class Hit {
+
+    final static Comparator<Hit> BY_DISTANCE = new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+        return Double.compare(a.angle, b.angle);
+      }
+    };
+
+    final String name;
+    final Waypoint point;
+
+    //Central angle from the query point, in radians
+    final double angle;
+
+
+    Hit(String name, Waypoint point, double angle) {
+
+      this.name  = name;
+      this.point = point;
+      this.angle = angle;
+    }
+
+
+    public double distance(int scale) {
+      return GreatCircle.fromKilometers(Server.radiusE * angle, scale);
+    }
+  }
+
+
+  /**
+   * Purpose: Slots of the points in one cell. Empty cells are left in
+   *          place, there are at most rows * cols of them
+   */
+  private static class Cell {
+
+    private int[] slots = new int[4];
+    private int count;
+
+
+    synchronized void add(int slot) {
+
+      if (count == slots.length) {
+        slots = Arrays.copyOf(slots, count * 2);
+      }
+
+      slots[count++] = slot;
+    }
+
+
+    synchronized void remove(int slot) {
+
+      for (int i = 0; i < count; i++) {
+
+        if (slots[i] == slot) {
+          slots[i] = slots[--count];
+          return;
+        }
+      }
+    }
+
+
+    synchronized int[] snapshot() {
+      return Arrays.copyOf(slots, count);
+    }
+
+
+    //Every slot here is live, so it is in kept
+    synchronized void renumber(int[] kept) {
+
+      for (int i = 0; i < count; i++) {
+        slots[i] = Arrays.binarySearch(kept, slots[i]);
+      }
+    }
+  }
+}
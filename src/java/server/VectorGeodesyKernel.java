@@ -0,0 +1,98 @@
+package cst420.thread.server;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Purpose: Class is the GeodesyKernel math done a vector of lanes at a time.
+ *          Only compiled with -Dvector.kernel, and only loaded (by name) when
+ *          the jvm runs with --add-modules jdk.incubator.vector. The points
+ *          left over past the last whole vector use the scalar loop
+ *
+ *          The arithmetic is the scalar kernel's, in the same order, and
+ *          atan2 is Math.atan2 lane by lane. The vector ATAN2 may be an ulp
+ *          or so out, which would make the same pair come out differently
+ *          in a matrix and from calcDistBear
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class VectorGeodesyKernel extends GeodesyKernel {
+
+  private final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+
+  public String getName() {
+    return "vector-" + SPECIES.length();
+  }
+
+
+  public void angles(Points from, int i, Points to, int count, double[] out) {
+
+    double cosLat = from.cosLat[i];
+
+    DoubleVector x = DoubleVector.broadcast(SPECIES, cosLat * from.cosLon[i]);
+    DoubleVector y = DoubleVector.broadcast(SPECIES, cosLat * from.sinLon[i]);
+    DoubleVector z = DoubleVector.broadcast(SPECIES, from.sinLat[i]);
+
+    double[] num = new double[SPECIES.length()];
+    double[] den = new double[SPECIES.length()];
+
+    int bound = SPECIES.loopBound(count);
+    int j     = 0;
+
+    for (; j < bound; j += SPECIES.length()) {
+
+      DoubleVector cosLatTo = DoubleVector.fromArray(SPECIES, to.cosLat, j);
+
+      DoubleVector dx = cosLatTo.mul(DoubleVector.fromArray(SPECIES, to.cosLon, j)).sub(x);
+      DoubleVector dy = cosLatTo.mul(DoubleVector.fromArray(SPECIES, to.sinLon, j)).sub(y);
+      DoubleVector dz = DoubleVector.fromArray(SPECIES, to.sinLat, j).sub(z);
+
+      DoubleVector a = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz)).mul(0.25).min(1.0);
+
+      a.sqrt().intoArray(num, 0);
+      a.neg().add(1.0).sqrt().intoArray(den, 0);
+
+      for (int k = 0; k < num.length; k++) {
+        out[j + k] = 2 * Math.atan2(num[k], den[k]);
+      }
+    }
+
+    scalarAngles(from, i, to, j, count, out);
+  }
+
+
+  public void bearings(Points from, int i, Points to, int count, double[] out) {
+
+    double sinLat = from.sinLat[i];
+    double cosLat = from.cosLat[i];
+    double sinLon = from.sinLon[i];
+    double cosLon = from.cosLon[i];
+
+    double[] ys = new double[SPECIES.length()];
+    double[] xs = new double[SPECIES.length()];
+
+    int bound = SPECIES.loopBound(count);
+    int j     = 0;
+
+    for (; j < bound; j += SPECIES.length()) {
+
+      DoubleVector sinLonTo = DoubleVector.fromArray(SPECIES, to.sinLon, j);
+      DoubleVector cosLonTo = DoubleVector.fromArray(SPECIES, to.cosLon, j);
+      DoubleVector cosLatTo = DoubleVector.fromArray(SPECIES, to.cosLat, j);
+
+      DoubleVector sinDlon = sinLonTo.mul(cosLon).sub(cosLonTo.mul(sinLon));
+      DoubleVector cosDlon = cosLonTo.mul(cosLon).add(sinLonTo.mul(sinLon));
+
+      sinDlon.mul(cosLatTo).intoArray(ys, 0);
+      DoubleVector.fromArray(SPECIES, to.sinLat, j).mul(cosLat).sub(cosLatTo.mul(sinLat).mul(cosDlon)).intoArray(xs, 0);
+
+      for (int k = 0; k < ys.length; k++) {
+        out[j + k] = degrees(Math.atan2(ys[k], xs[k]));
+      }
+    }
+
+    scalarBearings(from, i, to, j, count, out);
+  }
+}
@@ -0,0 +1,74 @@
+package cst420.thread.server;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: Class holds the data of a single waypoint. It never changes once
+ *          built, so a reader can hold on to one while others modify the library
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+final class Waypoint {
+
+  private final double lat;
+  private final double lon;
+  private final double ele;
+
+
+  public Waypoint(double lat, double lon, double ele) {
+
+    this.lat = lat;
+    this.lon = lon;
+    this.ele = ele;
+  }
+
+
+  public double getLat() {
+    return lat;
+  }
+
+
+  public double getLon() {
+    return lon;
+  }
+
+
+  public double getEle() {
+    return ele;
+  }
+
+
+  /**
+   * Same shape clients have always been sent, {"lat": .., "lon": .., "ele": ..}
+   */
+  public JSONObject toJSON() {
+
+    JSONObject obj = new JSONObject();
+
+    obj.put("lat", lat);
+    obj.put("lon", lon);
+    obj.put("ele", ele);
+
+    return obj;
+  }
+
+
+  /**
+   * The same object as toJSON(), written straight to out
+   */
+  public void writeJSON(JsonWriter out) {
+
+    out.beginObject();
+    writeFields(out);
+    out.endObject();
+  }
+
+
+  /**
+   * Just the "lat", "lon" and "ele" members, for objects that add their own
+   */
+  public void writeFields(JsonWriter out) {
+    out.name("lat").value(lat).name("lon").value(lon).name("ele").value(ele);
+  }
+}
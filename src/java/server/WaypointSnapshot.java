@@ -0,0 +1,502 @@
+package cst420.thread.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Purpose: Class reads and writes a snapshot of the waypoint library, every
+ *          point in insertion order plus the log sequence number it was
+ *          taken at. A snapshot is only renamed into place once it is
+ *          complete and synced, so one on disk is either whole or ignored
+ *
+ *          Snapshots are written as version 2, the layout MappedSnapshot
+ *          describes, which the store maps and reads in place rather than
+ *          loading. Its header and body each have a crc, both checked
+ *          before the file is used. -Dwaypoint.snapshot.verify=false leaves
+ *          the body to a background check instead, starting sooner on a big
+ *          library. Until that check passes no new snapshot is taken, and if
+ *          it fails the server stops rather than copy the damage into a
+ *          snapshot with a good crc. Version 1 files, "WPSN", version, seq, then per point
+ *          1, name, lat, lon, ele, then 0, the point count and a CRC32 of
+ *          the lot, are still read and loaded point by point
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class WaypointSnapshot {
+
+  private final static int MAGIC   = 0x5750534e;
+  private final static int VERSION = 1;
+
+  private final static int BUFFER = 256 * 1024;
+
+  //Check the whole of a mapped snapshot before serving from it
+  private final static boolean VERIFY = !"false".equals(System.getProperty("waypoint.snapshot.verify"));
+
+  //A mapped snapshot whose body is still being checked in the background,
+  //or that turned out damaged, must not be written into a new one
+  private static volatile boolean checking;
+  private static volatile File damaged;
+
+
+  private WaypointSnapshot() { }
+
+
+  /**
+   * Write the library to a temp file next to file, sync it and rename it
+   * into place. Points changed while we walk may or may not be in it, the
+   * log records after seq put that right on recovery. The store isn't
+   * compacted while it is written, the names are listed by slot and then
+   * their points read from the same slots
+   */
+  public static int write(WaypointStore store, long seq, File file) throws IOException {
+
+    store.pinSlots();
+
+    try {
+      return writePinned(store, seq, file);
+    } finally {
+      store.unpinSlots();
+    }
+  }
+
+
+  private static int writePinned(WaypointStore store, long seq, File file) throws IOException {
+
+    File temp = new File(file.getPath() + ".tmp");
+
+    //Names first, so the points can be written knowing which records a
+    //name that was removed and added again during the walk has left dead
+    List<String> names = new ArrayList<String>();
+    int[] slots        = new int[1024];
+
+    for (int slot = 0; slot < store.slotLimit(); slot++) {
+
+      String name = store.nameAt(slot);
+
+      if (name == null) {
+        continue;
+      }
+
+      if (names.size() == slots.length) {
+        slots = Arrays.copyOf(slots, slots.length * 2);
+      }
+
+      slots[names.size()] = slot;
+      names.add(name);
+    }
+
+    int count     = names.size();
+    int tableSize  = Integer.highestOneBit(Math.max(1, count)) * 4;
+    int[] table    = new int[tableSize];
+    boolean[] dead = new boolean[count];
+    int live       = count;
+
+    for (int i = 0; i < count; i++) {
+
+      int at = MappedSnapshot.hash(names.get(i)) & (tableSize - 1);
+
+      while (table[at] != 0 && !names.get(table[at] - 1).equals(names.get(i))) {
+        at = (at + 1) & (tableSize - 1);
+      }
+
+      //The later slot is where the name lives now
+      if (table[at] != 0) {
+        dead[table[at] - 1] = true;
+        live--;
+      }
+
+      table[at] = i + 1;
+    }
+
+    FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+    try {
+
+      Section out               = new Section(channel, MappedSnapshot.HEADER);
+      GeodesyKernel.Points trig = new GeodesyKernel.Points(1);
+
+      long points = out.position();
+
+      for (int i = 0; i < count; i++) {
+
+        Waypoint point = store.read(slots[i]);
+        store.readTrig(slots[i], trig, 0);
+
+        out.putDouble(dead[i] ? Double.NaN : point.getLat());
+        out.putDouble(point.getLon());
+        out.putDouble(point.getEle());
+        out.putDouble(trig.sinLat[0]);
+        out.putDouble(trig.cosLat[0]);
+        out.putDouble(trig.sinLon[0]);
+        out.putDouble(trig.cosLon[0]);
+      }
+
+      long offsets = out.position();
+      long at      = 0;
+
+      out.putLong(0);
+
+      List<byte[]> encoded = new ArrayList<byte[]>(count);
+
+      for (String name : names) {
+
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+        encoded.add(bytes);
+        at += bytes.length;
+
+        out.putLong(at);
+      }
+
+      long strings = out.position();
+
+      for (byte[] bytes : encoded) {
+        out.put(bytes);
+      }
+
+      out.align();
+
+      long tableAt = out.position();
+
+      for (int entry : table) {
+        out.putInt(entry);
+      }
+
+      long length = out.position();
+      int bodyCrc = out.finish();
+
+      ByteBuffer head = ByteBuffer.allocate(MappedSnapshot.HEADER).order(ByteOrder.LITTLE_ENDIAN);
+
+      head.putInt(0, MappedSnapshot.MAGIC);
+      head.putInt(4, MappedSnapshot.VERSION);
+      head.putLong(8, seq);
+      head.putInt(16, count);
+      head.putInt(20, live);
+      head.putInt(24, tableSize);
+      head.putLong(32, points);
+      head.putLong(40, offsets);
+      head.putLong(48, strings);
+      head.putLong(56, tableAt);
+      head.putLong(64, length);
+      head.putInt(72, MappedSnapshot.headerCrc(head));
+      head.putInt(76, bodyCrc);
+
+      while (head.hasRemaining()) {
+        channel.write(head, head.position());
+      }
+
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Can't rename snapshot into place: " + file);
+    }
+
+    return live;
+  }
+
+
+  /**
+   * True when the file looks like a whole snapshot, checked before anything
+   * is loaded so a bad one never half fills the store. For version 2 that is
+   * the header, and the body too unless -Dwaypoint.snapshot.verify=false
+   */
+  public static boolean verify(File file) {
+
+    if (version(file) == MappedSnapshot.VERSION) {
+
+      try {
+        return !VERIFY || new MappedSnapshot(file).verifyBody();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    long length = file.length();
+
+    if (length < 4) {
+      return false;
+    }
+
+    try {
+
+      InputStream in = new FileInputStream(file);
+
+      try {
+
+        CRC32 crc     = new CRC32();
+        byte[] buffer = new byte[BUFFER];
+        long left     = length - 4;
+
+        while (left > 0) {
+
+          int count = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+
+          if (count < 0) {
+            return false;
+          }
+
+          crc.update(buffer, 0, count);
+          left -= count;
+        }
+
+        return new DataInputStream(in).readInt() == (int) crc.getValue();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+
+  /**
+   * Give a verified snapshot to an empty store, mapped for version 2 and
+   * put point by point for version 1. Returns the log sequence number it
+   * was taken at
+   */
+  public static long load(File file, WaypointStore store) throws IOException {
+
+    if (version(file) == MappedSnapshot.VERSION) {
+
+      MappedSnapshot snapshot = new MappedSnapshot(file);
+
+      store.attach(snapshot);
+
+      if (!VERIFY) {
+        checking = true;
+        verifyLater(snapshot);
+      }
+
+      return snapshot.getSeq();
+    }
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER));
+
+    try {
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a version " + VERSION + " snapshot: " + file);
+      }
+
+      long seq = in.readLong();
+
+      while (in.readByte() == 1) {
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        store.put(new String(bytes, StandardCharsets.UTF_8), in.readDouble(), in.readDouble(), in.readDouble());
+      }
+
+      return seq;
+    } catch (EOFException e) {
+      throw new IOException("Snapshot cut short: " + file, e);
+    } finally {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Throw unless the store is safe to write a snapshot of, that is not
+   * still served from a mapped snapshot whose body hasn't checked out
+   */
+  public static void checkLoaded() throws IOException {
+
+    if (damaged != null) {
+      throw new IOException("Loaded from damaged snapshot " + damaged.getName());
+    }
+
+    if (checking) {
+      throw new IOException("Loaded snapshot is still being checked");
+    }
+  }
+
+
+  public static boolean isChecking() {
+    return checking;
+  }
+
+
+  /**
+   * Check the body of a mapped snapshot on a thread of its own. Reads are
+   * already being served from it, so a damaged one stops the server before
+   * anything is built on it, the log still holds every change since
+   */
+  private static void verifyLater(final MappedSnapshot snapshot) {
+
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+
+        if (snapshot.verifyBody()) {
+          checking = false;
+          return;
+        }
+
+        damaged = snapshot.getFile();
+
+        System.out.println("Snapshot " + damaged.getName() + " is damaged! Move it aside and restart");
+        System.exit(1);
+      }
+    }, "waypoint-snapshot-verify");
+
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /**
+   * Format version of a snapshot file, or -1 when it can't be read
+   */
+  private static int version(File file) {
+
+    try {
+
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+      try {
+
+        int magic   = in.readInt();
+        int version = in.readInt();
+
+        //Version 1 is big endian, version 2 little
+        if (magic == MAGIC) {
+          return version;
+        }
+
+        return (Integer.reverseBytes(magic) == MAGIC) ? Integer.reverseBytes(version) : -1;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+
+  /**
+   * Purpose: Writes the body of a version 2 file through one buffer,
+   *          keeping the crc and position as it goes
+   */
+  private static class Section {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc         = new CRC32();
+    private long position;
+
+
+    Section(FileChannel channel, long position) {
+
+      this.channel  = channel;
+      this.position = position;
+    }
+
+
+    long position() {
+      return position;
+    }
+
+
+    void putDouble(double value) throws IOException {
+      room(8).putDouble(value);
+      position += 8;
+    }
+
+
+    void putLong(long value) throws IOException {
+      room(8).putLong(value);
+      position += 8;
+    }
+
+
+    void putInt(int value) throws IOException {
+      room(4).putInt(value);
+      position += 4;
+    }
+
+
+    void put(byte[] bytes) throws IOException {
+
+      int done = 0;
+
+      while (done < bytes.length) {
+
+        if (!buffer.hasRemaining()) {
+          flush();
+        }
+
+        int span = Math.min(bytes.length - done, buffer.remaining());
+
+        buffer.put(bytes, done, span);
+
+        done     += span;
+        position += span;
+      }
+    }
+
+
+    //Pad to the next 8 bytes, every section starts on one
+    void align() throws IOException {
+
+      while ((position & 7) != 0) {
+        room(1).put((byte) 0);
+        position++;
+      }
+    }
+
+
+    //Write what's left and return the crc of all of it
+    int finish() throws IOException {
+
+      flush();
+
+      return (int) crc.getValue();
+    }
+
+
+    private ByteBuffer room(int bytes) throws IOException {
+
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+
+      return buffer;
+    }
+
+
+    private void flush() throws IOException {
+
+      buffer.flip();
+
+      crc.update(buffer.array(), 0, buffer.limit());
+
+      long at = position - buffer.limit();
+
+      while (buffer.hasRemaining()) {
+        at += channel.write(buffer, at);
+      }
+
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,1271 @@
+package cst420.thread.server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+
+/**
+ * Purpose: Class is the waypoint library shared by every handler thread.
+ *          Coordinates live in primitive columns indexed by an int slot, with
+ *          a name to slot index on top, so a point costs a few dozen bytes
+ *          instead of a map of boxed doubles. Lookups never lock, writes only
+ *          lock the hash bin of their own name plus a stripe of slots (and
+ *          share a lock with each other, see holdWrites), and names are
+ *          listed in the order they were first added (replacing a point
+ *          keeps its place, like the LinkedHashMap it replaces)
+ *
+ *          Slots are handed out in increasing order, so slot order is
+ *          insertion order. A removed point leaves a dead slot behind, and
+ *          once there are as many dead slots as live ones (and at least
+ *          -Dwaypoint.store.compactAt, default a chunk) the live points are
+ *          moved down over them in the background, keeping their order. Walks
+ *          follow the names they are on to their new slots, anything else
+ *          holding slot numbers pins them, see pinSlots
+ *
+ *          With -Dwaypoint.store.fixedPoint=true coordinates are kept as ints,
+ *          lat/lon to 1e-7 degrees (about a centimetre) and ele to a millimetre
+ *
+ *          The sin and cos of each point's lat and lon are worked out once when
+ *          it is written and kept in columns of their own, for GeodesyKernel
+ *
+ *          A store can be started on top of a MappedSnapshot. Its records are
+ *          the first slots and are read straight from the mapping, names are
+ *          found through the file's own hash table, and a chunk of slots is
+ *          only copied onto the heap the first time one of its points is
+ *          changed, so opening a library of any size costs the same
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class WaypointStore {
+
+  //Slots per chunk, columns grow a chunk at a time so nothing is ever copied
+  private final static int CHUNK_BITS = 16;
+  private final static int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private final static int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  //Slot writes take the stamped lock of their stripe, reads just validate it
+  private final static int STRIPES = 64;
+
+  private final static boolean FIXED_POINT = Boolean.getBoolean("waypoint.store.fixedPoint");
+
+  //Fewest dead slots worth compacting away
+  private final static int COMPACT_AT = Integer.getInteger("waypoint.store.compactAt", CHUNK_SIZE);
+
+  //How long a compaction waits for pinned slots, and how long it leaves
+  //it before trying again when they stayed pinned
+  private final static int PIN_WAIT  = 10;
+  private final static int PIN_RETRY = 1000;
+
+  private final ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<String, Integer>();
+
+  private final Column lat;
+  private final Column lon;
+  private final Column ele;
+
+  //Trig of the stored lat/lon, always doubles
+  private final Column sinLat = new DoubleColumn();
+  private final Column cosLat = new DoubleColumn();
+  private final Column sinLon = new DoubleColumn();
+  private final Column cosLon = new DoubleColumn();
+
+  //Name per slot, null once the point is removed. A null chunk
+  //is one still only in the mapped snapshot
+  private volatile String[][] names = new String[0][];
+
+  //Bottom layer of slots, null when the store started empty
+  private volatile MappedSnapshot base;
+  private int baseCount;
+
+  private final StampedLock[] stripes = new StampedLock[STRIPES];
+
+  //Next slot to hand out
+  private final AtomicInteger next = new AtomicInteger();
+
+  //Live points
+  private final AtomicInteger live = new AtomicInteger();
+
+  //No live slot is below this, saves first() walking over old dead ones
+  private volatile int firstHint;
+
+  //Compaction holds both write locks while it moves points. Walks and
+  //readers that keep slot numbers hold a pin, a queued compaction holds
+  //new pins back so a steady stream of them can't starve it. Lookups only
+  //validate against slotLock, which is never held for long
+  private final ReentrantReadWriteLock pins = new ReentrantReadWriteLock();
+  private final StampedLock slotLock        = new StampedLock();
+
+  //Slot numbering in use, and the one before it for cursors made in it
+  private volatile Numbering numbering = new Numbering(0);
+  private volatile Numbering previous;
+
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  private volatile long pinnedAt;
+
+  private final Object growLock = new Object();
+
+  //Every change holds the read lock from before it touches a slot until its
+  //listeners return, holdWrites takes the write lock to stop them all
+  private final ReentrantReadWriteLock changes = new ReentrantReadWriteLock();
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+
+  public WaypointStore() {
+    this(FIXED_POINT);
+  }
+
+
+  public WaypointStore(boolean fixedPoint) {
+
+    if (fixedPoint) {
+      lat = new FixedColumn(1e7);
+      lon = new FixedColumn(1e7);
+      ele = new FixedColumn(1e3);
+    } else {
+      lat = new DoubleColumn();
+      lon = new DoubleColumn();
+      ele = new DoubleColumn();
+    }
+
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new StampedLock();
+    }
+  }
+
+
+  /**
+   * Use a snapshot's records as the first slots of this store, which must
+   * still be empty. The mapping is read in place from then on
+   */
+  public void attach(MappedSnapshot snapshot) {
+
+    synchronized (growLock) {
+
+      if (next.get() != 0) {
+        throw new IllegalStateException("Store already has points");
+      }
+
+      lat.attach(snapshot, 0);
+      lon.attach(snapshot, 1);
+      ele.attach(snapshot, 2);
+      sinLat.attach(snapshot, 3);
+      cosLat.attach(snapshot, 4);
+      sinLon.attach(snapshot, 5);
+      cosLon.attach(snapshot, 6);
+
+      baseCount = snapshot.getCount();
+      base      = snapshot;
+
+      next.set(baseCount);
+      live.set(snapshot.getLive());
+    }
+  }
+
+
+  /**
+   * Be told about every change. Calls for one name arrive in the order the
+   * changes happened, while that name is still locked against other writers
+   */
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+
+  /**
+   * Wait for the changes being made to finish and hold off any more until
+   * the lock given back is unlocked, for a listener that has to read the
+   * whole store while it stands still. Don't call it from a listener
+   */
+  public Lock holdWrites() {
+
+    Lock hold = changes.writeLock();
+    hold.lock();
+
+    return hold;
+  }
+
+
+  /**
+   * The point stored under a name, or null if there is none
+   */
+  public Waypoint get(String name) {
+
+    long stamp     = slotLock.tryOptimisticRead();
+    int slot       = slotOf(name);
+    Waypoint point = (slot < 0) ? null : read(slot);
+
+    if (slotLock.validate(stamp)) {
+      return point;
+    }
+
+    stamp = slotLock.readLock();
+
+    try {
+      slot = slotOf(name);
+      return (slot < 0) ? null : read(slot);
+    } finally {
+      slotLock.unlockRead(stamp);
+    }
+  }
+
+
+  public boolean contains(String name) {
+
+    long stamp    = slotLock.tryOptimisticRead();
+    boolean found = slotOf(name) >= 0;
+
+    if (slotLock.validate(stamp)) {
+      return found;
+    }
+
+    stamp = slotLock.readLock();
+
+    try {
+      return slotOf(name) >= 0;
+    } finally {
+      slotLock.unlockRead(stamp);
+    }
+  }
+
+
+  /**
+   * Copy the cached trig of a named point into point i of a kernel's
+   * columns. False if there is no such point
+   */
+  public boolean readTrig(String name, GeodesyKernel.Points dst, int i) {
+
+    long stamp = slotLock.tryOptimisticRead();
+    int slot   = slotOf(name);
+
+    if (slot >= 0) {
+      readTrig(slot, dst, i);
+    }
+
+    if (slotLock.validate(stamp)) {
+      return slot >= 0;
+    }
+
+    stamp = slotLock.readLock();
+
+    try {
+
+      slot = slotOf(name);
+
+      if (slot >= 0) {
+        readTrig(slot, dst, i);
+      }
+
+      return slot >= 0;
+    } finally {
+      slotLock.unlockRead(stamp);
+    }
+  }
+
+
+  /**
+   * Keep slot numbers meaning the same points until unpinSlots, by holding
+   * compaction off. For reading a slot number kept from earlier, or more
+   * than one slot as of one moment. Pins are per thread
+   */
+  public void pinSlots() {
+    pins.readLock().lock();
+  }
+
+
+  public void unpinSlots() {
+    pins.readLock().unlock();
+  }
+
+
+  /**
+   * Slot of a name, or -1 if there is none. Stays valid until the name is
+   * removed or the slots are compacted, see pinSlots
+   */
+  private int slotOf(String name) {
+
+    Integer slot = index.get(name);
+
+    return (slot == null) ? baseSlot(name) : slot;
+  }
+
+
+  /**
+   * Slot of a name that is only in the mapped snapshot, or -1. A point
+   * from the snapshot keeps its slot when it is replaced, so the index
+   * and the file never disagree about where a live name is
+   */
+  private int baseSlot(String name) {
+
+    MappedSnapshot snapshot = base;
+
+    if (snapshot == null) {
+      return -1;
+    }
+
+    int slot = snapshot.find(name);
+
+    return (slot >= 0 && isLive(slot)) ? slot : -1;
+  }
+
+
+  private boolean isLive(int slot) {
+
+    String[][] chunks = names;
+    int chunk         = slot >>> CHUNK_BITS;
+
+    if (chunk < chunks.length && chunks[chunk] != null) {
+      return chunks[chunk][slot & CHUNK_MASK] != null;
+    }
+
+    MappedSnapshot snapshot = base;
+
+    return snapshot != null && slot < baseCount && !snapshot.isDead(slot);
+  }
+
+
+  /**
+   * Coordinates of a slot, consistent with each other even while a writer
+   * is replacing them. Slot numbers held across calls need pinning
+   */
+  public Waypoint read(int slot) {
+
+    StampedLock stripe = stripes[slot & (STRIPES - 1)];
+    long stamp         = stripe.tryOptimisticRead();
+
+    double la = lat.get(slot);
+    double lo = lon.get(slot);
+    double el = ele.get(slot);
+
+    if (!stripe.validate(stamp)) {
+
+      stamp = stripe.readLock();
+
+      try {
+        la = lat.get(slot);
+        lo = lon.get(slot);
+        el = ele.get(slot);
+      } finally {
+        stripe.unlockRead(stamp);
+      }
+    }
+
+    return new Waypoint(la, lo, el);
+  }
+
+
+  /**
+   * Copy the cached trig of a slot into point i of a kernel's columns
+   */
+  public void readTrig(int slot, GeodesyKernel.Points dst, int i) {
+
+    StampedLock stripe = stripes[slot & (STRIPES - 1)];
+    long stamp         = stripe.tryOptimisticRead();
+
+    copyTrig(slot, dst, i);
+
+    if (!stripe.validate(stamp)) {
+
+      stamp = stripe.readLock();
+
+      try {
+        copyTrig(slot, dst, i);
+      } finally {
+        stripe.unlockRead(stamp);
+      }
+    }
+  }
+
+
+  private void copyTrig(int slot, GeodesyKernel.Points dst, int i) {
+
+    dst.sinLat[i] = sinLat.get(slot);
+    dst.cosLat[i] = cosLat.get(slot);
+    dst.sinLon[i] = sinLon.get(slot);
+    dst.cosLon[i] = cosLon.get(slot);
+  }
+
+
+  /**
+   * Add a point, or replace the one already under that name in place
+   */
+  public void put(final String name, final double la, final double lo, final double el) {
+
+    lat.check(la);
+    lon.check(lo);
+    ele.check(el);
+
+    changes.readLock().lock();
+
+    try {
+      index.compute(name, new BiFunction<String, Integer, Integer>() {
+        public Integer apply(String key, Integer old) {
+
+          if (old == null) {
+
+            int slot = baseSlot(name);
+            old      = (slot >= 0) ? slot : null;
+          }
+
+          if (old == null) {
+
+            int slot = allocate(name);
+
+            write(slot, la, lo, el);
+            live.incrementAndGet();
+
+            for (Listener listener : listeners) {
+              listener.added(name, slot, la, lo, el);
+            }
+
+            return slot;
+          }
+
+          Waypoint before = read(old);
+
+          write(old, la, lo, el);
+
+          for (Listener listener : listeners) {
+            listener.replaced(name, old, before, la, lo, el);
+          }
+
+          return old;
+        }
+      });
+    } finally {
+      changes.readLock().unlock();
+    }
+  }
+
+
+  /**
+   * Returns true if there was a point to remove
+   */
+  public boolean remove(final String name) {
+
+    final boolean[] removed = new boolean[1];
+
+    changes.readLock().lock();
+
+    try {
+      index.compute(name, new BiFunction<String, Integer, Integer>() {
+        public Integer apply(String key, Integer slot) {
+
+          if (slot == null) {
+
+            int found = baseSlot(name);
+            slot      = (found >= 0) ? found : null;
+          }
+
+          if (slot == null) {
+            return null;
+          }
+
+          Waypoint before = read(slot);
+
+          ensureChunk(slot >>> CHUNK_BITS);
+
+          names[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = null;
+          live.decrementAndGet();
+          removed[0] = true;
+
+          for (Listener listener : listeners) {
+            listener.removed(name, slot, before);
+          }
+
+          return null;
+        }
+      });
+    } finally {
+      changes.readLock().unlock();
+    }
+
+    if (removed[0]) {
+      compactLater();
+    }
+
+    return removed[0];
+  }
+
+
+  /**
+   * Compact on the common pool once enough slots are dead, so the remove
+   * that tips it over doesn't wait for it
+   */
+  private void compactLater() {
+
+    int dead = next.get() - live.get();
+
+    if (dead < COMPACT_AT || dead < live.get() || System.currentTimeMillis() - pinnedAt < PIN_RETRY) {
+      return;
+    }
+
+    if (!compacting.compareAndSet(false, true)) {
+      return;
+    }
+
+    ForkJoinPool.commonPool().execute(new Runnable() {
+      public void run() {
+
+        try {
+          compact();
+        } finally {
+          compacting.set(false);
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Move every live point down over the dead slots before it, keeping
+   * their order, and let go of the chunks left empty. Writers wait while
+   * it runs and so does anyone with the slots pinned, walks and listeners
+   * are told where the points went. A store started on a mapped snapshot
+   * is all on the heap afterwards. False if the slots stayed pinned
+   */
+  public boolean compact() {
+
+    Lock hold = holdWrites();
+
+    try {
+
+      boolean unpinned;
+
+      try {
+        unpinned = pins.writeLock().tryLock(PIN_WAIT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        unpinned = false;
+      }
+
+      if (!unpinned) {
+        pinnedAt = System.currentTimeMillis();
+        return false;
+      }
+
+      long stamp = slotLock.writeLock();
+
+      try {
+        renumber();
+      } finally {
+        slotLock.unlockWrite(stamp);
+        pins.writeLock().unlock();
+      }
+
+      return true;
+    } finally {
+      hold.unlock();
+    }
+  }
+
+
+  /**
+   * Called with writers held off and both slot locks held
+   */
+  private void renumber() {
+
+    long start = System.currentTimeMillis();
+    int limit  = next.get();
+
+    //Everything onto the heap, the snapshot's slots are moved too
+    for (int chunk = 0; chunk < (limit + CHUNK_MASK) >>> CHUNK_BITS; chunk++) {
+      ensureChunk(chunk);
+    }
+
+    String[][] chunks = names;
+    int[] kept        = new int[limit];
+    int to            = 0;
+
+    for (int from = 0; from < limit; from++) {
+
+      String name = chunks[from >>> CHUNK_BITS][from & CHUNK_MASK];
+
+      if (name == null) {
+        continue;
+      }
+
+      if (to != from) {
+
+        lat.move(from, to);
+        lon.move(from, to);
+        ele.move(from, to);
+        sinLat.move(from, to);
+        cosLat.move(from, to);
+        sinLon.move(from, to);
+        cosLon.move(from, to);
+
+        chunks[to >>> CHUNK_BITS][to & CHUNK_MASK] = name;
+      }
+
+      index.put(name, to);
+      kept[to++] = from;
+    }
+
+    for (int slot = to; slot < limit; slot++) {
+      chunks[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = null;
+    }
+
+    int used = (to + CHUNK_MASK) >>> CHUNK_BITS;
+
+    names = Arrays.copyOf(chunks, used);
+
+    lat.trim(used);
+    lon.trim(used);
+    ele.trim(used);
+    sinLat.trim(used);
+    cosLat.trim(used);
+    sinLon.trim(used);
+    cosLon.trim(used);
+
+    //Every name is in the index now, the mapping isn't needed
+    base      = null;
+    baseCount = 0;
+
+    next.set(to);
+    firstHint = 0;
+
+    kept = Arrays.copyOf(kept, to);
+
+    Numbering old = numbering;
+    old.kept      = kept;
+    old.next      = new Numbering(old.number + 1);
+
+    previous  = old;
+    numbering = old.next;
+
+    for (Listener listener : listeners) {
+      listener.moved(kept);
+    }
+
+    System.out.println("Compacted " + (limit - to) + " dead slots away in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+
+  public int size() {
+    return live.get();
+  }
+
+
+  /**
+   * Oldest name still in the library, or null when it is empty
+   */
+  public String first() {
+
+    pinSlots();
+
+    try {
+
+      int end = next.get();
+
+      for (int slot = firstHint; slot < end; slot++) {
+
+        String name = nameAt(slot);
+
+        if (name != null) {
+          firstHint = slot;
+          return name;
+        }
+      }
+
+      return null;
+    } finally {
+      unpinSlots();
+    }
+  }
+
+
+  /**
+   * Names in insertion order. Safe to walk while others write, it sees
+   * every name present for the whole walk and never throws
+   */
+  public Iterable<String> names() {
+
+    return new Iterable<String>() {
+      public Iterator<String> iterator() {
+        return new NameIterator(walk());
+      }
+    };
+  }
+
+
+  /**
+   * Walk over the names in insertion order, from the oldest
+   */
+  public Walk walk() {
+
+    pinSlots();
+
+    try {
+      return new Walk(numbering, firstHint, next.get());
+    } finally {
+      unpinSlots();
+    }
+  }
+
+
+  /**
+   * Walk on from where another one was, given its position(). Null when
+   * the slots have been compacted more than once since
+   */
+  public Walk walk(long position) {
+
+    int number = (int) (position >>> 32);
+    int slot   = (int) position;
+
+    pinSlots();
+
+    try {
+
+      Numbering now = numbering;
+      Numbering was = previous;
+
+      if (slot < 0 || (number != now.number && (was == null || number != was.number))) {
+        return null;
+      }
+
+      //The one before is always the one compacted into this one
+      if (number != now.number) {
+        slot = was.moved(slot);
+      }
+
+      return new Walk(now, slot, next.get());
+    } finally {
+      unpinSlots();
+    }
+  }
+
+
+  /**
+   * Name in a slot, null if the slot is dead or not handed out yet
+   */
+  public String nameAt(int slot) {
+
+    String[][] chunks = names;
+    int chunk         = slot >>> CHUNK_BITS;
+
+    if (chunk < chunks.length && chunks[chunk] != null) {
+      return chunks[chunk][slot & CHUNK_MASK];
+    }
+
+    MappedSnapshot snapshot = base;
+
+    if (snapshot != null && slot < baseCount && !snapshot.isDead(slot)) {
+      return snapshot.name(slot);
+    }
+
+    return null;
+  }
+
+
+  /**
+   * One past the highest slot handed out so far
+   */
+  public int slotLimit() {
+    return next.get();
+  }
+
+
+  /**
+   * Only called from inside index.compute for a new name
+   */
+  private int allocate(String name) {
+
+    int slot  = next.getAndIncrement();
+    int chunk = slot >>> CHUNK_BITS;
+
+    ensureChunk(chunk);
+
+    names[chunk][slot & CHUNK_MASK] = name;
+
+    return slot;
+  }
+
+
+  /**
+   * Make sure a chunk is on the heap in every column before a slot in it
+   * is written. Slots of the chunk that come from the mapped snapshot are
+   * copied in, names last, so a chunk with its names present is complete
+   */
+  private void ensureChunk(int chunk) {
+
+    String[][] chunks = names;
+
+    if (chunk < chunks.length && chunks[chunk] != null) {
+      return;
+    }
+
+    synchronized (growLock) {
+
+      chunks = names;
+
+      if (chunk < chunks.length && chunks[chunk] != null) {
+        return;
+      }
+
+      lat.ensure(chunk);
+      lon.ensure(chunk);
+      ele.ensure(chunk);
+      sinLat.ensure(chunk);
+      cosLat.ensure(chunk);
+      sinLon.ensure(chunk);
+      cosLon.ensure(chunk);
+
+      String[] fresh = new String[CHUNK_SIZE];
+      int from       = chunk << CHUNK_BITS;
+      int to         = Math.min(baseCount, from + CHUNK_SIZE);
+
+      for (int slot = from; slot < to; slot++) {
+
+        if (!base.isDead(slot)) {
+          fresh[slot - from] = base.name(slot);
+        }
+      }
+
+      String[][] grown = Arrays.copyOf(chunks, Math.max(chunks.length, chunk + 1));
+      grown[chunk]     = fresh;
+
+      names = grown;
+    }
+  }
+
+
+  private void write(int slot, double la, double lo, double el) {
+
+    ensureChunk(slot >>> CHUNK_BITS);
+
+    //Trig of the values as they will read back, worked out outside the lock
+    double latRad = Math.toRadians(lat.stored(la));
+    double lonRad = Math.toRadians(lon.stored(lo));
+
+    double sla = Math.sin(latRad);
+    double cla = Math.cos(latRad);
+    double slo = Math.sin(lonRad);
+    double clo = Math.cos(lonRad);
+
+    StampedLock stripe = stripes[slot & (STRIPES - 1)];
+    long stamp         = stripe.writeLock();
+
+    try {
+      lat.set(slot, la);
+      lon.set(slot, lo);
+      ele.set(slot, el);
+      sinLat.set(slot, sla);
+      cosLat.set(slot, cla);
+      sinLon.set(slot, slo);
+      cosLon.set(slot, clo);
+    } finally {
+      stripe.unlockWrite(stamp);
+    }
+  }
+
+
+  /**
+   * Purpose: Told about changes to the library as they are made. Keep these
+   *          quick, the name being changed stays locked until they return
+   */
+  interface Listener {
+
+    void added(String name, int slot, double lat, double lon, double ele);
+
+    void replaced(String name, int slot, Waypoint before, double lat, double lon, double ele);
+
+    void removed(String name, int slot, Waypoint before);
+
+    //The store was compacted, the point in slot kept[i] is in slot i now
+    void moved(int[] kept);
+  }
+
+
+  /**
+   * Purpose: One numbering of the slots. Once the store is compacted kept
+   *          holds the slots that were live, in order, and next is the
+   *          numbering they moved to. Both are set with the slots pinned
+   */
+  private static class Numbering {
+
+    final int number;
+
+    int[] kept;
+    Numbering next;
+
+
+    Numbering(int number) {
+      this.number = number;
+    }
+
+
+    /**
+     * Where a slot of this numbering went, a dead one goes to wherever
+     * the next live one did
+     */
+    int moved(int slot) {
+
+      int at = Arrays.binarySearch(kept, slot);
+
+      return (at >= 0) ? at : -at - 1;
+    }
+  }
+
+
+  /**
+   * Purpose: A walk over the live names in slot order, up to the slots
+   *          handed out when it started. When the store is compacted under
+   *          it the walk moves on to the new slots, it never skips or
+   *          repeats a name that was there for the whole walk
+   */
+  class Walk {
+
+    private Numbering numbering;
+    private int slot;
+    private int end;
+
+
+    private Walk(Numbering numbering, int slot, int end) {
+
+      this.numbering = numbering;
+      this.slot      = slot;
+      this.end       = end;
+    }
+
+
+    /**
+     * Next live name, null once the walk is over
+     */
+    public String next() {
+
+      pinSlots();
+
+      try {
+
+        follow();
+
+        while (slot < end) {
+
+          String name = nameAt(slot++);
+
+          if (name != null) {
+            return name;
+          }
+        }
+
+        return null;
+      } finally {
+        unpinSlots();
+      }
+    }
+
+
+    /**
+     * True when no slot is left to look at
+     */
+    public boolean isDone() {
+
+      pinSlots();
+
+      try {
+        return follow().slot >= end;
+      } finally {
+        unpinSlots();
+      }
+    }
+
+
+    /**
+     * Numbering and slot the walk is at, to start another from later
+     */
+    public long position() {
+
+      pinSlots();
+
+      try {
+        follow();
+        return ((long) numbering.number << 32) | slot;
+      } finally {
+        unpinSlots();
+      }
+    }
+
+
+    //Called with the slots pinned
+    private Walk follow() {
+
+      while (numbering.next != null) {
+
+        slot      = numbering.moved(slot);
+        end       = numbering.moved(end);
+        numbering = numbering.next;
+      }
+
+      return this;
+    }
+  }
+
+
+  /**
+   * Purpose: Walks the live names in order, reading ahead one name
+   */
+  private class NameIterator implements Iterator<String> {
+
+    private final Walk walk;
+    private String ahead;
+
+
+    NameIterator(Walk walk) {
+
+      this.walk = walk;
+
+      advance();
+    }
+
+
+    private void advance() {
+      ahead = walk.next();
+    }
+
+
+    public boolean hasNext() {
+      return ahead != null;
+    }
+
+
+    public String next() {
+
+      if (ahead == null) {
+        throw new NoSuchElementException();
+      }
+
+      String name = ahead;
+      advance();
+
+      return name;
+    }
+
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+
+  /**
+   * Purpose: One coordinate for every slot, stored in chunks. Slots in a
+   *          chunk not on the heap yet are read from the mapped snapshot
+   */
+  private static abstract class Column {
+
+    private MappedSnapshot base;
+    private int field;
+    private int baseCount;
+
+    abstract double get(int slot);
+
+    //The chunk must have been made by ensure()
+    abstract void set(int slot, double value);
+
+    //Put a chunk on the heap, holding whatever the snapshot had for it
+    abstract void ensure(int chunk);
+
+    //Copy one slot's value to another, both on the heap
+    abstract void move(int from, int to);
+
+    //Keep only the first chunks, every one on the heap, and let go of
+    //the snapshot
+    abstract void trim(int chunks);
+
+    void attach(MappedSnapshot base, int field) {
+
+      this.base      = base;
+      this.field     = field;
+      this.baseCount = base.getCount();
+    }
+
+    void detach() {
+
+      base      = null;
+      baseCount = 0;
+    }
+
+    //Lock free readers may get here as the snapshot is let go of
+    double baseValue(int slot) {
+
+      MappedSnapshot snapshot = base;
+
+      return (snapshot != null && slot < baseCount) ? snapshot.value(slot, field) : 0;
+    }
+
+    //Copy what the snapshot holds for a chunk into fresh
+    void fill(int chunk, Fill fresh) {
+
+      int from = chunk << CHUNK_BITS;
+      int to   = Math.min(baseCount, from + CHUNK_SIZE);
+
+      for (int slot = from; slot < to; slot++) {
+        fresh.set(slot - from, base.value(slot, field));
+      }
+    }
+
+    //The value as get() will give it back once set
+    double stored(double value) {
+      return value;
+    }
+
+    //Throws if the value can't be stored by this column
+    void check(double value) {
+
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        throw new IllegalArgumentException("Coordinate must be a finite number: " + value);
+      }
+    }
+  }
+
+
+  /**
+   * Purpose: Where fill() puts each value it copies
+   */
+  private interface Fill {
+
+    void set(int i, double value);
+  }
+
+
+  private static class DoubleColumn extends Column {
+
+    private volatile double[][] chunks = new double[0][];
+
+
+    double get(int slot) {
+
+      double[][] all = chunks;
+      int chunk      = slot >>> CHUNK_BITS;
+
+      if (chunk < all.length && all[chunk] != null) {
+        return all[chunk][slot & CHUNK_MASK];
+      }
+
+      return baseValue(slot);
+    }
+
+
+    void set(int slot, double value) {
+      chunks[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = value;
+    }
+
+
+    void move(int from, int to) {
+      chunks[to >>> CHUNK_BITS][to & CHUNK_MASK] = chunks[from >>> CHUNK_BITS][from & CHUNK_MASK];
+    }
+
+
+    void trim(int count) {
+
+      chunks = Arrays.copyOf(chunks, count);
+      detach();
+    }
+
+
+    void ensure(int chunk) {
+
+      final double[] fresh = new double[CHUNK_SIZE];
+
+      fill(chunk, new Fill() {
+        public void set(int i, double value) {
+          fresh[i] = value;
+        }
+      });
+
+      double[][] grown = Arrays.copyOf(chunks, Math.max(chunks.length, chunk + 1));
+      grown[chunk]     = fresh;
+
+      chunks = grown;
+    }
+  }
+
+
+  /**
+   * Purpose: Stores round(value * scale) in an int, half the size of a double
+   */
+  private static class FixedColumn extends Column {
+
+    private final double scale;
+    private volatile int[][] chunks = new int[0][];
+
+
+    FixedColumn(double scale) {
+      this.scale = scale;
+    }
+
+
+    double get(int slot) {
+
+      int[][] all = chunks;
+      int chunk   = slot >>> CHUNK_BITS;
+
+      if (chunk < all.length && all[chunk] != null) {
+        return all[chunk][slot & CHUNK_MASK] / scale;
+      }
+
+      return stored(baseValue(slot));
+    }
+
+
+    void set(int slot, double value) {
+      chunks[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = (int) Math.round(value * scale);
+    }
+
+
+    void move(int from, int to) {
+      chunks[to >>> CHUNK_BITS][to & CHUNK_MASK] = chunks[from >>> CHUNK_BITS][from & CHUNK_MASK];
+    }
+
+
+    void trim(int count) {
+
+      chunks = Arrays.copyOf(chunks, count);
+      detach();
+    }
+
+
+    double stored(double value) {
+      return Math.round(value * scale) / scale;
+    }
+
+
+    void check(double value) {
+
+      super.check(value);
+
+      if (Math.abs(value * scale) > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Coordinate out of fixed point range: " + value);
+      }
+    }
+
+
+    void ensure(int chunk) {
+
+      final int[] fresh = new int[CHUNK_SIZE];
+
+      fill(chunk, new Fill() {
+        public void set(int i, double value) {
+          fresh[i] = (int) Math.round(value * scale);
+        }
+      });
+
+      int[][] grown = Arrays.copyOf(chunks, Math.max(chunks.length, chunk + 1));
+      grown[chunk]  = fresh;
+
+      chunks = grown;
+    }
+  }
+}
@@ -0,0 +1,815 @@
+package cst420.thread.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Purpose: Class makes the waypoint library survive a restart. It listens to
+ *          the store and appends every add, replace and remove to a log of
+ *          checksummed records, takes snapshots in the background and drops
+ *          the log segments a snapshot covers. On startup the newest
+ *          snapshot is loaded and the log after it replayed, a damaged
+ *          snapshot or a gap in the log stops startup rather than bring
+ *          back part of the library
+ *
+ *          Records are only encoded into memory while the store has the name
+ *          locked. Getting them to disk is up to the fsync policy, set with
+ *          -Dwaypoint.log.fsync:
+ *
+ *          always   - each writer writes and syncs the log before its rpc returns
+ *          group    - writers wait while one thread syncs for all of them (default)
+ *          interval - the log is synced every -Dwaypoint.log.interval ms (1000),
+ *                     writes return at once and a crash can lose that much
+ *
+ *          Files in the data directory:
+ *
+ *          wal-<first seq>.log     - "WPLG", version, first seq, then records of
+ *                                    length, crc32c, type, seq, name, [lat lon ele]
+ *          snapshot-<seq>.dat      - see WaypointSnapshot
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+class WriteAheadLog implements WaypointStore.Listener {
+
+  private final static int MAGIC   = 0x57504c47;
+  private final static int VERSION = 1;
+
+  private final static byte PUT    = 1;
+  private final static byte REMOVE = 2;
+
+  //Segment header, magic, version and first seq
+  private final static int HEADER = 16;
+
+  //Length and checksum before each record
+  private final static int FRAME = 8;
+
+  //Bigger than this and a record is garbage, not a waypoint
+  private final static int MAX_RECORD = 1024 * 1024;
+
+  private final static String FSYNC = System.getProperty("waypoint.log.fsync", "group");
+
+  private final static int SYNC_INTERVAL = Integer.getInteger("waypoint.log.interval", 1000);
+
+  //Snapshot this often while the library changes
+  private final static int SNAPSHOT_INTERVAL = Integer.getInteger("waypoint.snapshot.interval", 60000);
+
+  //Or as soon as the log has grown this much since the last one
+  private final static long SNAPSHOT_BYTES = Long.getLong("waypoint.snapshot.bytes", 64L * 1024 * 1024);
+
+  //Buffered records past this wake the syncer early in interval mode
+  private final static int FLUSH_BYTES = 256 * 1024;
+
+  private final File dir;
+  private final WaypointStore store;
+  private final boolean always;
+  private final boolean interval;
+
+  //Appends hold this, records go in pending under their seq
+  private final Object appendLock = new Object();
+  private ByteBuffer pending      = ByteBuffer.allocate(64 * 1024);
+  private ByteBuffer spare        = ByteBuffer.allocate(64 * 1024);
+  private long seq;
+
+  //Writes to the file, syncs and segment changes hold this
+  private final Object syncLock = new Object();
+  private FileChannel channel;
+  private long segmentFirst;
+
+  //Syncer and waiting writers meet here
+  private final Object waiters = new Object();
+  private volatile long synced;
+  private long requested;
+  private volatile IOException failure;
+  private volatile boolean closed;
+
+  //Log written since the last snapshot
+  private volatile long sinceSnapshot;
+  private volatile long lastSnapshot = System.currentTimeMillis();
+  private volatile long snapshotSeq;
+
+  //Seq of the last record each thread appended, what sync() waits for
+  private final ThreadLocal<long[]> lastAppended = new ThreadLocal<long[]>() {
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  private ScheduledExecutorService snapshotter;
+
+
+  private WriteAheadLog(File dir, WaypointStore store) {
+
+    this.dir      = dir;
+    this.store    = store;
+    this.always   = FSYNC.equals("always");
+    this.interval = FSYNC.equals("interval");
+
+    if (!always && !interval && !FSYNC.equals("group")) {
+      throw new IllegalArgumentException("Unknown fsync policy: " + FSYNC);
+    }
+  }
+
+
+  /**
+   * Recover the library in dir into the store, then log every later
+   * change. The store should be empty and not yet in use
+   */
+  public static WriteAheadLog open(File dir, WaypointStore store) throws IOException {
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Can't create data directory " + dir);
+    }
+
+    WriteAheadLog log = new WriteAheadLog(dir, store);
+
+    long start = System.currentTimeMillis();
+    long last  = log.recover();
+
+    System.out.println("Recovered " + store.size() + " waypoints to seq " + last + " in "
+                       + (System.currentTimeMillis() - start) + "ms (fsync " + FSYNC + ")");
+
+    log.seq    = last;
+    log.synced = last;
+
+    log.startSegment(last + 1);
+    log.startThreads();
+
+    store.addListener(log);
+
+    return log;
+  }
+
+
+  public void added(String name, int slot, double lat, double lon, double ele) {
+    append(PUT, name, lat, lon, ele);
+  }
+
+
+  public void replaced(String name, int slot, Waypoint before, double lat, double lon, double ele) {
+    append(PUT, name, lat, lon, ele);
+  }
+
+
+  public void removed(String name, int slot, Waypoint before) {
+    append(REMOVE, name, 0, 0, 0);
+  }
+
+
+  //Records are by name, slots are never logged
+  public void moved(int[] kept) { }
+
+
+  /**
+   * Encode a record into memory. Called with the name locked, so records
+   * for one name are in the order the changes were made
+   */
+  private void append(byte type, String name, double lat, double lon, double ele) {
+
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    int length   = 1 + 8 + 4 + bytes.length + ((type == PUT) ? 24 : 0);
+    boolean wake;
+
+    synchronized (appendLock) {
+
+      if (pending.remaining() < FRAME + length) {
+        pending = grow(pending, FRAME + length);
+      }
+
+      long next = ++seq;
+      int start = pending.position();
+
+      pending.putInt(length);
+      pending.putInt(0);
+      pending.put(type);
+      pending.putLong(next);
+      pending.putInt(bytes.length);
+      pending.put(bytes);
+
+      if (type == PUT) {
+        pending.putDouble(lat);
+        pending.putDouble(lon);
+        pending.putDouble(ele);
+      }
+
+      CRC32C crc = new CRC32C();
+      crc.update(pending.array(), start + FRAME, length);
+      pending.putInt(start + 4, (int) crc.getValue());
+
+      lastAppended.get()[0] = next;
+
+      wake = interval && pending.position() >= FLUSH_BYTES;
+    }
+
+    if (wake) {
+
+      synchronized (waiters) {
+        waiters.notifyAll();
+      }
+    }
+  }
+
+
+  private static ByteBuffer grow(ByteBuffer buffer, int need) {
+
+    ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + need));
+
+    buffer.flip();
+    grown.put(buffer);
+
+    return grown;
+  }
+
+
+  /**
+   * Wait until this thread's last change is as safe as the policy makes
+   * it. Throws if the log can't be written, the change is then in memory
+   * but may not survive a restart
+   */
+  public void sync() {
+
+    long mine = lastAppended.get()[0];
+
+    if (interval || mine <= synced) {
+      checkFailure();
+      return;
+    }
+
+    if (always) {
+
+      try {
+        force();
+      } catch (IOException e) {
+        failure = e;
+      }
+
+      checkFailure();
+      return;
+    }
+
+    synchronized (waiters) {
+
+      if (mine > requested) {
+        requested = mine;
+        waiters.notifyAll();
+      }
+
+      while (synced < mine && failure == null && !closed) {
+
+        try {
+          waiters.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+
+    checkFailure();
+  }
+
+
+  private void checkFailure() {
+
+    IOException e = failure;
+
+    if (e != null) {
+      throw new UncheckedIOException("Write ahead log failed", e);
+    }
+  }
+
+
+  /**
+   * Write out everything appended so far and sync it
+   */
+  private void force() throws IOException {
+
+    synchronized (syncLock) {
+
+      long upTo = writePending();
+
+      if (upTo > synced) {
+        channel.force(false);
+        synced = upTo;
+      }
+    }
+  }
+
+
+  /**
+   * Swap the buffers and write the full one to the segment, called with
+   * syncLock held. Returns the seq of the last record written
+   */
+  private long writePending() throws IOException {
+
+    ByteBuffer full;
+    long upTo;
+
+    synchronized (appendLock) {
+
+      full    = pending;
+      pending = spare;
+      spare   = full;
+      upTo    = seq;
+    }
+
+    full.flip();
+
+    int bytes = full.remaining();
+
+    while (full.hasRemaining()) {
+      channel.write(full);
+    }
+
+    full.clear();
+
+    sinceSnapshot += bytes;
+
+    return upTo;
+  }
+
+
+  /**
+   * Group and interval mode, one thread syncs on behalf of everyone
+   */
+  private void syncLoop() {
+
+    while (!closed) {
+
+      synchronized (waiters) {
+
+        try {
+
+          if (interval) {
+            waiters.wait(SYNC_INTERVAL);
+          } else {
+            while (requested <= synced && !closed) {
+              waiters.wait();
+            }
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+
+      try {
+        force();
+      } catch (IOException e) {
+        System.out.println("Can't sync the write ahead log! " + e.getMessage());
+        failure = e;
+      }
+
+      synchronized (waiters) {
+        waiters.notifyAll();
+      }
+    }
+  }
+
+
+  private void startThreads() {
+
+    if (!always) {
+
+      Thread syncer = new Thread(new Runnable() {
+        public void run() {
+          syncLoop();
+        }
+      }, "waypoint-log-sync");
+
+      syncer.setDaemon(true);
+      syncer.start();
+    }
+
+    snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+
+        Thread thread = new Thread(task, "waypoint-snapshot");
+        thread.setDaemon(true);
+
+        return thread;
+      }
+    });
+
+    snapshotter.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        maybeSnapshot();
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+
+    //Get whatever is buffered to disk on a normal exit
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        close();
+      }
+    }, "waypoint-log-close"));
+  }
+
+
+  private void maybeSnapshot() {
+
+    //Wait for the loaded snapshot to check out before writing the next
+    if (WaypointSnapshot.isChecking()) {
+      return;
+    }
+
+    boolean big = sinceSnapshot >= SNAPSHOT_BYTES;
+    boolean due = System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL;
+
+    if (big || (due && seq > snapshotSeq)) {
+
+      try {
+        snapshot();
+      } catch (IOException e) {
+        System.out.println("Snapshot failed! " + e.getMessage());
+      } catch (RuntimeException e) {
+        System.out.println("Snapshot failed! " + e);
+      }
+    }
+  }
+
+
+  /**
+   * Start a new segment at seq S, write the library to snapshot-S and drop
+   * the segments and snapshots before it. Changes made while the snapshot
+   * is written are in the new segment, replaying them fixes up whatever
+   * state of those points the snapshot caught. Refused while the store is
+   * served from a snapshot that hasn't checked out
+   */
+  public void snapshot() throws IOException {
+
+    WaypointSnapshot.checkLoaded();
+
+    long at;
+
+    synchronized (syncLock) {
+
+      at = writePending();
+
+      if (at > synced) {
+        channel.force(false);
+        synced = at;
+      }
+
+      //A segment nothing has been written to can stay
+      if (segmentFirst != at + 1) {
+        startSegment(at + 1);
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    int count  = WaypointSnapshot.write(store, at, new File(dir, snapshotName(at)));
+
+    syncDirectory();
+
+    snapshotSeq   = at;
+    sinceSnapshot = 0;
+    lastSnapshot  = System.currentTimeMillis();
+
+    //Everything up to at is in the snapshot now
+    for (File file : list("wal-", ".log")) {
+
+      if (seqOf(file) <= at) {
+        file.delete();
+      }
+    }
+
+    for (File file : list("snapshot-", ".dat")) {
+
+      if (seqOf(file) < at) {
+        file.delete();
+      }
+    }
+
+    System.out.println("Snapshot of " + count + " waypoints at seq " + at + " in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+
+  /**
+   * Close the current segment, if any, and start one whose records begin
+   * at first. Called with syncLock held, or before anyone else can write
+   */
+  private void startSegment(long first) throws IOException {
+
+    if (channel != null) {
+      channel.force(false);
+      channel.close();
+    }
+
+    File file = new File(dir, segmentName(first));
+
+    //Never write over a segment, recovery only leaves empty ones behind
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+    header.putInt(MAGIC).putInt(VERSION).putLong(first).flip();
+
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+
+    channel.force(false);
+    syncDirectory();
+
+    segmentFirst = first;
+  }
+
+
+  /**
+   * Load the newest snapshot, then replay every record after it. Returns
+   * the last seq recovered
+   */
+  private long recover() throws IOException {
+
+    long last = 0;
+
+    //Snapshots that never made it into place
+    File[] files = dir.listFiles();
+
+    for (int i = 0; files != null && i < files.length; i++) {
+
+      if (files[i].getName().startsWith("snapshot-") && files[i].getName().endsWith(".tmp")) {
+        files[i].delete();
+      }
+    }
+
+    List<File> snapshots = list("snapshot-", ".dat");
+
+    //The log it covers is gone, so starting without it would quietly
+    //lose every point in it
+    if (!snapshots.isEmpty()) {
+
+      File file = snapshots.get(snapshots.size() - 1);
+
+      if (!WaypointSnapshot.verify(file)) {
+        throw new IOException("Snapshot " + file + " is damaged, move it aside and restore one"
+                              + " from a backup, the log before it was dropped when it was taken");
+      }
+
+      last = WaypointSnapshot.load(file, store);
+    }
+
+    snapshotSeq = last;
+
+    List<File> segments = list("wal-", ".log");
+
+    for (int i = 0; i < segments.size(); i++) {
+
+      File file      = segments.get(i);
+      boolean newest = (i == segments.size() - 1);
+      long[] result  = replay(file, last, newest);
+
+      //Only the newest segment can end in a write a crash cut short,
+      //anywhere else acknowledged changes would be lost, so don't start
+      if (result[1] >= 0 && !newest) {
+        throw new IOException("Write ahead log damaged in " + file + " at offset " + result[1]
+                              + ", move it aside to start without the changes after that point");
+      }
+
+      last = Math.max(last, result[0]);
+
+      //Nothing was ever synced to it, the new segment takes its name
+      if (newest && result[2] == 0) {
+        file.delete();
+      }
+    }
+
+    return last;
+  }
+
+
+  /**
+   * Apply the records of one segment that come after seq. Returns the last
+   * seq seen, the offset of the first bad record (-1 when the whole file
+   * is good) and how many good records it holds. A bad tail on the newest
+   * segment is a write cut short by a crash, it is cut off. The first
+   * record applied has to follow on from seq, a gap means a segment or
+   * snapshot went missing
+   */
+  private long[] replay(File file, long after, boolean newest) throws IOException {
+
+    long last   = after;
+    long offset = HEADER;
+    long bad    = -1;
+    long count  = 0;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024));
+
+    try {
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a version " + VERSION + " log segment: " + file);
+      }
+
+      in.readLong();
+
+      byte[] record = new byte[256];
+      CRC32C crc    = new CRC32C();
+
+      while (true) {
+
+        int length;
+
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+
+        try {
+
+          int sum = in.readInt();
+
+          if (length < 13 || length > MAX_RECORD) {
+            bad = offset;
+            break;
+          }
+
+          if (record.length < length) {
+            record = new byte[length];
+          }
+
+          in.readFully(record, 0, length);
+
+          crc.reset();
+          crc.update(record, 0, length);
+
+          if ((int) crc.getValue() != sum) {
+            bad = offset;
+            break;
+          }
+        } catch (EOFException e) {
+          bad = offset;
+          break;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(record, 0, length);
+        byte type      = buf.get();
+        long at        = buf.getLong();
+        byte[] bytes   = new byte[buf.getInt()];
+
+        buf.get(bytes);
+
+        if (at > after) {
+
+          if (at != last + 1) {
+            throw new IOException("Write ahead log has a gap, " + file + " goes on at seq " + at
+                                  + " but the library was recovered to seq " + last);
+          }
+
+          String name = new String(bytes, StandardCharsets.UTF_8);
+
+          if (type == PUT) {
+            store.put(name, buf.getDouble(), buf.getDouble(), buf.getDouble());
+          } else {
+            store.remove(name);
+          }
+        }
+
+        last    = Math.max(last, at);
+        offset += FRAME + length;
+        count++;
+      }
+    } catch (EOFException e) {
+      bad = 0;
+    } finally {
+      in.close();
+    }
+
+    if (bad >= 0 && newest) {
+
+      System.out.println("Cutting torn tail off " + file.getName() + " at " + bad);
+
+      //Header never got written, nothing in the segment was ever synced
+      if (bad < HEADER) {
+        file.delete();
+        return new long[] { last, bad, count };
+      }
+
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+      try {
+        raf.setLength(bad);
+      } finally {
+        raf.close();
+      }
+    }
+
+    return new long[] { last, bad, count };
+  }
+
+
+  /**
+   * Write and sync what is buffered and stop the background threads
+   */
+  public void close() {
+
+    if (closed) {
+      return;
+    }
+
+    try {
+      force();
+    } catch (IOException e) {
+      System.out.println("Can't sync the write ahead log on close! " + e.getMessage());
+    }
+
+    closed = true;
+
+    if (snapshotter != null) {
+      snapshotter.shutdown();
+    }
+
+    synchronized (waiters) {
+      waiters.notifyAll();
+    }
+  }
+
+
+  /**
+   * Make a new or renamed file in the directory survive a crash
+   */
+  private void syncDirectory() {
+
+    try {
+
+      FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+
+      try {
+        dirChannel.force(true);
+      } finally {
+        dirChannel.close();
+      }
+    } catch (IOException e) {
+      //Not every platform lets a directory be opened, the data is synced regardless
+    }
+  }
+
+
+  /**
+   * Files with a prefix and suffix, oldest seq first
+   */
+  private List<File> list(final String prefix, final String suffix) {
+
+    File[] files     = dir.listFiles();
+    List<File> found = new ArrayList<File>();
+
+    if (files == null) {
+      return found;
+    }
+
+    Arrays.sort(files);
+
+    for (File file : files) {
+
+      String name = file.getName();
+
+      if (name.startsWith(prefix) && name.endsWith(suffix) && seqOf(file) >= 0) {
+        found.add(file);
+      }
+    }
+
+    return found;
+  }
+
+
+  private static long seqOf(File file) {
+
+    String name = file.getName();
+
+    try {
+      return Long.parseLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+
+  //Zero padded so the names sort in seq order
+  private static String segmentName(long first) {
+    return String.format("wal-%020d.log", first);
+  }
+
+
+  private static String snapshotName(long seq) {
+    return String.format("snapshot-%020d.dat", seq);
+  }
+}
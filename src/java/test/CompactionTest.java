@@ -0,0 +1,214 @@
+package cst420.thread.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Purpose: Class checks compacting the store while readers look points up
+ *          by name and by box. Points have to keep their values, their order
+ *          and their cells, and a walk started before two compactions has to
+ *          carry on where it was. Exits 1 on the first check that goes wrong
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+public class CompactionTest {
+
+  private final static int POINTS  = 200000;
+  private final static int READERS = 4;
+  private final static int WALKED  = 1000;
+
+  private final static boolean FIXED_POINT = Boolean.getBoolean("waypoint.store.fixedPoint");
+
+
+  public static void main(String[] args) throws Exception {
+
+    final WaypointStore store = new WaypointStore();
+
+    for (int i = 0; i < POINTS; i++) {
+      store.put("n" + i, lat(i), lon(i), i);
+    }
+
+    final SpatialIndex index = new SpatialIndex(store, 1.0);
+    index.nearest(0, 0, 1);
+
+    WaypointStore.Walk walk = store.walk();
+
+    for (int i = 0; i < WALKED; i++) {
+      check(walk.next().equals("n" + i), "walk starts in order");
+    }
+
+    long position = walk.position();
+
+    final AtomicBoolean stop   = new AtomicBoolean();
+    final Queue<String> errors = new ConcurrentLinkedQueue<String>();
+    Thread[] readers           = new Thread[READERS];
+
+    for (int t = 0; t < READERS; t++) {
+
+      final long seed = t;
+
+      readers[t] = new Thread(new Runnable() {
+        public void run() {
+
+          Random random             = new Random(seed);
+          GeodesyKernel.Points trig = new GeodesyKernel.Points(1);
+
+          while (!stop.get()) {
+
+            int i          = random.nextInt(POINTS);
+            Waypoint point = store.get("n" + i);
+
+            if (point != null && (point.getLat() != lat(i) || point.getLon() != lon(i))) {
+              errors.add("n" + i + " read back as " + point.getLat() + ", " + point.getLon());
+            }
+
+            if (store.readTrig("n" + i, trig, 0) && trig.sinLat[0] != Math.sin(Math.toRadians(lat(i)))) {
+              errors.add("n" + i + " read back the wrong trig");
+            }
+
+            if (i % 8 == 0 && !store.contains("n" + i)) {
+              errors.add("n" + i + " went missing");
+            }
+
+            for (SpatialIndex.Hit hit : index.inBox(lat(i), lon(i), lat(i), lon(i))) {
+
+              int j = Integer.parseInt(hit.name.substring(1));
+
+              if (hit.point.getLat() != lat(j)) {
+                errors.add(hit.name + " found with the wrong point");
+              }
+            }
+          }
+        }
+      });
+
+      readers[t].start();
+    }
+
+    //Half the points dead is enough for the store to compact on its own
+    for (int i = 1; i < POINTS; i += 2) {
+      store.remove("n" + i);
+    }
+
+    check(compacted(store), "compacted in the background, " + store.slotLimit() + " slots for " + store.size());
+
+    for (int i = 0; i < POINTS; i += 2) {
+
+      if (i % 8 != 0) {
+        store.remove("n" + i);
+      }
+    }
+
+    compacted(store);
+    store.compact();
+    check(store.slotLimit() == store.size(), "compacted twice");
+
+    stop.set(true);
+
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    check(errors.isEmpty(), "readers saw " + errors.peek());
+
+    List<String> rest = new ArrayList<String>();
+    List<String> want = new ArrayList<String>();
+    String name;
+
+    while ((name = walk.next()) != null) {
+      rest.add(name);
+    }
+
+    for (int i = WALKED; i < POINTS; i += 8) {
+      want.add("n" + i);
+    }
+
+    check(rest.equals(want), "walk carried on with " + rest.size() + " names, wanted " + want.size());
+    check(store.walk(position) == null, "position from two compactions back turned away");
+
+    List<String> all = new ArrayList<String>();
+    want.clear();
+
+    for (String each : store.names()) {
+      all.add(each);
+    }
+
+    for (int i = 0; i < POINTS; i += 8) {
+      want.add("n" + i);
+    }
+
+    check(all.equals(want), "names kept their order");
+    check(store.first().equals("n0"), "first is still n0");
+    check(index.inBox(-90, -180, 90, 180).size() == store.size(), "every point in the grid once");
+
+    for (int i = 0; i < POINTS; i += 8) {
+
+      int found = 0;
+
+      for (SpatialIndex.Hit hit : index.inBox(lat(i), lon(i), lat(i), lon(i))) {
+
+        if (hit.name.equals("n" + i)) {
+          found++;
+        }
+      }
+
+      check(found == 1, "n" + i + " found " + found + " times in its cell");
+    }
+
+    store.put("late", 1, 1, 1);
+
+    String last = null;
+
+    for (String each : store.names()) {
+      last = each;
+    }
+
+    check("late".equals(last), "adds still go last");
+    check(index.nearest(1, 1, 1).get(0).name.equals("late"), "nearest finds a point added after");
+
+    System.out.println("Passed");
+  }
+
+
+  /**
+   * Give a background compaction up to five seconds to finish
+   */
+  private static boolean compacted(WaypointStore store) throws InterruptedException {
+
+    for (int i = 0; i < 50 && store.slotLimit() != store.size(); i++) {
+      Thread.sleep(100);
+    }
+
+    return store.slotLimit() == store.size();
+  }
+
+
+  private static void check(boolean ok, String what) {
+
+    if (!ok) {
+      System.out.println("Failed: " + what);
+      System.exit(1);
+    }
+  }
+
+
+  //As stored, so fixed point runs compare like for like
+  private static double lat(int i) {
+    return stored((i % 17900) / 100.0 - 89);
+  }
+
+
+  private static double lon(int i) {
+    return stored((i * 7 % 35900) / 100.0 - 179);
+  }
+
+
+  private static double stored(double degrees) {
+    return FIXED_POINT ? Math.round(degrees * 1e7) / 1e7 : degrees;
+  }
+}
@@ -0,0 +1,119 @@
+package cst420.thread.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Purpose: Class checks the incremental http request parser on whole and
+ *          byte at a time input, chunked bodies, and bodies and chunk sizes
+ *          too big to take, which have to end in a 413 rather than anything
+ *          thrown past the parser. Exits 1 on the first check that goes wrong
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+public class HttpRequestParserTest {
+
+  private final static int MAX_BODY = 64 * 1024;
+
+
+  public static void main(String[] args) throws Exception {
+
+    String post    = "POST /rpc HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello";
+    String chunked = "POST /rpc HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                     + "3\r\nhel\r\n2;ext=1\r\nlo\r\n0\r\nTrailer: t\r\n\r\n";
+
+    HttpRequestParser parser = new HttpRequestParser(MAX_BODY);
+
+    check(parser.feed(bytes(post)), "content length request parsed");
+    check(body(parser).equals("hello"), "content length body");
+    check(parser.getMethod().equals("POST") && parser.getTarget().equals("/rpc"), "request line");
+    check(parser.isKeepAlive(), "1.1 keeps alive");
+
+    parser.reset();
+    check(parser.feed(bytes(chunked)), "chunked request parsed");
+    check(body(parser).equals("hello"), "chunked body");
+
+    //A byte at a time comes out the same
+    parser.reset();
+
+    ByteBuffer trickle = bytes(chunked);
+    boolean done       = false;
+
+    while (trickle.hasRemaining()) {
+
+      ByteBuffer one = ByteBuffer.wrap(new byte[] { trickle.get() });
+      done           = parser.feed(one);
+
+      check(!done || !trickle.hasRemaining(), "done before the last byte");
+    }
+
+    check(done && body(parser).equals("hello"), "chunked body a byte at a time");
+
+    tooLarge("POST /rpc HTTP/1.1\r\nContent-Length: " + (MAX_BODY + 1) + "\r\n\r\n", 0, "content length over the limit");
+    tooLarge(chunkedHead() + (Integer.toHexString(MAX_BODY + 1)) + "\r\n", 0, "chunk over the limit");
+    tooLarge(chunkedHead() + "7fffffffffffffff\r\n", 0, "first chunk of Long.MAX_VALUE");
+
+    //Once a chunk is in, the next size plus what we have used to wrap negative
+    tooLarge(chunkedHead() + "1\r\na\r\n7fffffffffffffff\r\n", MAX_BODY, "chunk of Long.MAX_VALUE after one byte");
+    tooLarge(chunkedHead() + "1\r\na\r\n" + Integer.toHexString(MAX_BODY) + "\r\n", 0, "second chunk past the limit");
+
+    check(parse(chunkedHead() + "1\r\na\r\n" + Integer.toHexString(MAX_BODY - 1) + "\r\n", MAX_BODY - 1) == 0,
+          "chunks adding up to the limit accepted");
+
+    System.out.println("Passed");
+  }
+
+
+  /**
+   * Feed a request head plus filler bytes of body, it has to be turned
+   * away with a 413
+   */
+  private static void tooLarge(String head, int filler, String what) {
+    check(parse(head, filler) == 413, what + " answered 413");
+  }
+
+
+  /**
+   * Status a parse ended in, 0 when the parser took it all
+   */
+  private static int parse(String head, int filler) {
+
+    HttpRequestParser parser = new HttpRequestParser(MAX_BODY);
+
+    try {
+      parser.feed(bytes(head));
+      parser.feed(ByteBuffer.wrap(new byte[filler]));
+      return 0;
+    } catch (HttpRequestParser.ParseException e) {
+      return e.getStatus();
+    } catch (RuntimeException e) {
+      check(false, "parser threw " + e);
+      return -1;
+    }
+  }
+
+
+  private static String chunkedHead() {
+    return "POST /rpc HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+  }
+
+
+  private static ByteBuffer bytes(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+
+  private static String body(HttpRequestParser parser) {
+    return new String(parser.getBody(), 0, parser.getBodyLength(), StandardCharsets.ISO_8859_1);
+  }
+
+
+  private static void check(boolean ok, String what) {
+
+    if (!ok) {
+      System.out.println("Failed: " + what);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package cst420.thread.server;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Purpose: Class checks the spatial index built on its first query while
+ *          writers add, move and remove points. Afterwards every live point
+ *          has to be in its own cell exactly once and nothing may have thrown.
+ *          Exits 1 on the first round that goes wrong
+ *
+ * @author Brandon Sleater
+ * @version November 20, 2014
+ */
+public class SpatialIndexRaceTest {
+
+  private final static int ROUNDS  = Integer.getInteger("test.rounds", 50);
+  private final static int POINTS  = 2000;
+  private final static int WRITERS = 4;
+  private final static int WRITES  = 2000;
+
+
+  public static void main(String[] args) throws Exception {
+
+    for (int round = 0; round < ROUNDS; round++) {
+
+      String failed = round(new Random(round));
+
+      if (failed != null) {
+        System.out.println("Round " + round + " failed: " + failed);
+        System.exit(1);
+      }
+    }
+
+    System.out.println("Passed " + ROUNDS + " rounds");
+  }
+
+
+  /**
+   * One store, one index and a build racing the writers. Returns what
+   * went wrong, or null
+   */
+  private static String round(Random random) throws InterruptedException {
+
+    final WaypointStore store = new WaypointStore();
+
+    for (int i = 0; i < POINTS; i++) {
+      store.put("p" + i, lat(random), lon(random), 0);
+    }
+
+    final SpatialIndex index      = new SpatialIndex(store, 1.0);
+    final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+    final CountDownLatch start    = new CountDownLatch(1);
+    Thread[] threads              = new Thread[WRITERS + 1];
+
+    for (int t = 0; t < WRITERS; t++) {
+
+      final int writer = t;
+      final long seed  = random.nextLong();
+
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+
+          Random random = new Random(seed);
+
+          try {
+
+            start.await();
+
+            for (int k = 0; k < WRITES; k++) {
+
+              //Each writer moves and removes its own share of the old points
+              String old = "p" + (writer + WRITERS * random.nextInt(POINTS / WRITERS));
+
+              switch (k % 3) {
+                case 0:
+                  store.put("w" + writer + "_" + k, lat(random), lon(random), 0);
+                  break;
+                case 1:
+                  store.put(old, lat(random), lon(random), 0);
+                  break;
+                default:
+                  store.remove(old);
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      });
+    }
+
+    //The first query builds the grid, part way through the writes
+    threads[WRITERS] = new Thread(new Runnable() {
+      public void run() {
+
+        try {
+          start.await();
+          Thread.yield();
+          index.nearest(0, 0, 1);
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      }
+    });
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (!errors.isEmpty()) {
+      return "thrown " + errors.peek();
+    }
+
+    int everywhere = index.inBox(-90, -180, 90, 180).size();
+
+    if (everywhere != store.size()) {
+      return everywhere + " points in the grid, " + store.size() + " in the store";
+    }
+
+    for (String name : store.names()) {
+
+      Waypoint point              = store.get(name);
+      List<SpatialIndex.Hit> hits = index.inBox(point.getLat(), point.getLon(), point.getLat(), point.getLon());
+      int found                   = 0;
+
+      for (SpatialIndex.Hit hit : hits) {
+
+        if (hit.name.equals(name)) {
+          found++;
+        }
+      }
+
+      if (found != 1) {
+        return name + " found " + found + " times in its cell";
+      }
+    }
+
+    return null;
+  }
+
+
+  private static double lat(Random random) {
+    return random.nextDouble() * 178 - 89;
+  }
+
+
+  private static double lon(Random random) {
+    return random.nextDouble() * 358 - 179;
+  }
+}